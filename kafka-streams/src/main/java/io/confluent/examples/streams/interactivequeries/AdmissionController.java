@@ -0,0 +1,240 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries;
+
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Avg;
+import org.apache.kafka.common.metrics.stats.Count;
+import org.apache.kafka.common.metrics.stats.Max;
+import org.apache.kafka.common.metrics.stats.Rate;
+import org.apache.kafka.common.metrics.stats.Total;
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.DynamicFeature;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.FeatureContext;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * Limits the number of requests that each endpoint of a REST service works on concurrently, so
+ * that the latency of the requests it accepts stays bounded when it is overloaded, e.g., while
+ * the application rebalances and remote calls hang.
+ *
+ * A request that finds its endpoint at the limit waits for a short while in a bounded queue. If
+ * the queue is full, or no request completes in time, the request is rejected right away with a
+ * 503 (Service Unavailable) and a Retry-After header. The number of admitted and rejected requests
+ * and the time spent queueing are recorded per endpoint in the "rest-admission" metrics group.
+ *
+ * Callers can pass the time they are going to wait for a response in the
+ * {@value #TIMEOUT_HEADER} header. The time a request spent queueing is deducted from it before
+ * the request is handed to its endpoint, which should use {@link #timeoutMs(String, long)} to
+ * bound the time it works on the request as well as its own calls to other instances, and pass
+ * the remaining time on to those instances in turn.
+ *
+ * A request holds on to its slot until Jersey has finished processing it, i.e., until its
+ * response, including any streamed entity, has been written, or it failed with an exception that
+ * no mapper handled.
+ *
+ * The endpoints are identified by the names of their resource methods.
+ */
+public class AdmissionController implements DynamicFeature, ApplicationEventListener {
+
+  /**
+   * The header in which a caller passes the time in milliseconds that it is going to wait for the
+   * response.
+   */
+  public static final String TIMEOUT_HEADER = "X-Request-Timeout-Ms";
+
+  private static final String METRICS_GROUP = "rest-admission";
+  private static final String PERMIT_PROPERTY = AdmissionController.class.getName() + ".permit";
+  private static final int RETRY_AFTER_SECONDS = 1;
+  // Returns the slot of a request once it has been processed, no matter how
+  private static final RequestEventListener RELEASE_ON_FINISH = event -> {
+    if (event.getType() == RequestEvent.Type.FINISHED) {
+      final Object limit = event.getContainerRequest().getProperty(PERMIT_PROPERTY);
+      if (limit instanceof EndpointLimit) {
+        event.getContainerRequest().removeProperty(PERMIT_PROPERTY);
+        ((EndpointLimit) limit).permits.release();
+      }
+    }
+  };
+
+  private final String name;
+  private final int defaultMaxConcurrent;
+  private final Map<String, Integer> maxConcurrent = new HashMap<>();
+  private final ConcurrentMap<String, EndpointLimit> limits = new ConcurrentHashMap<>();
+  private final int maxQueued;
+  private final long maxQueueMs;
+  private final Metrics metrics;
+
+  /**
+   * @param name                  name of the REST service, used as the metrics tag
+   * @param defaultMaxConcurrent  the number of requests each endpoint works on concurrently,
+   *                              unless configured otherwise via {@link #limit(String, int)}
+   * @param maxQueued             the maximum number of requests waiting per endpoint
+   * @param maxQueueMs            the maximum time a request waits before it is rejected
+   * @param metrics               where to register the metrics
+   */
+  public AdmissionController(final String name,
+                             final int defaultMaxConcurrent,
+                             final int maxQueued,
+                             final long maxQueueMs,
+                             final Metrics metrics) {
+    this.name = name;
+    this.defaultMaxConcurrent = defaultMaxConcurrent;
+    this.maxQueued = maxQueued;
+    this.maxQueueMs = maxQueueMs;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Set the number of requests the given endpoint works on concurrently. Must be called before
+   * the REST service is started.
+   * @param endpoint    the name of the resource method of the endpoint
+   */
+  public AdmissionController limit(final String endpoint, final int maxConcurrent) {
+    this.maxConcurrent.put(endpoint, maxConcurrent);
+    return this;
+  }
+
+  @Override
+  public void configure(final ResourceInfo resourceInfo, final FeatureContext context) {
+    final String endpoint = resourceInfo.getResourceMethod().getName();
+    // Jersey may configure the same resource method more than once, which must share its limit
+    context.register(limits.computeIfAbsent(
+        endpoint, e -> new EndpointLimit(e, maxConcurrent.getOrDefault(e, defaultMaxConcurrent))));
+  }
+
+  @Override
+  public void onEvent(final ApplicationEvent event) {
+  }
+
+  @Override
+  public RequestEventListener onRequest(final RequestEvent event) {
+    return RELEASE_ON_FINISH;
+  }
+
+  /**
+   * The time an endpoint may work on a request.
+   * @param timeoutHeader   the {@value #TIMEOUT_HEADER} header of the request, or null
+   * @param defaultMs       the time to use if the caller did not pass one, which is also the
+   *                        maximum
+   */
+  public static long timeoutMs(final String timeoutHeader, final long defaultMs) {
+    if (timeoutHeader == null) {
+      return defaultMs;
+    }
+    try {
+      return Math.max(0L, Math.min(Long.parseLong(timeoutHeader.trim()), defaultMs));
+    } catch (final NumberFormatException e) {
+      return defaultMs;
+    }
+  }
+
+  private final class EndpointLimit implements ContainerRequestFilter {
+    private final Semaphore permits;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Sensor admittedSensor;
+    private final Sensor queueTimeSensor;
+    private final Sensor shedSensor;
+
+    private EndpointLimit(final String endpoint, final int maxConcurrent) {
+      this.permits = new Semaphore(maxConcurrent);
+
+      final Map<String, String> tags = new HashMap<>();
+      tags.put("client-id", name);
+      tags.put("endpoint", endpoint);
+      final String sensorPrefix = name + "-" + endpoint;
+      admittedSensor = metrics.sensor(sensorPrefix + "-admitted");
+      admittedSensor.add(metricName("admitted-rate", "The number of requests admitted per second", tags),
+                         new Rate(new Count()));
+      queueTimeSensor = metrics.sensor(sensorPrefix + "-queue-time");
+      queueTimeSensor.add(metricName("queue-time-avg", "The average time admitted requests waited in ms", tags),
+                          new Avg());
+      queueTimeSensor.add(metricName("queue-time-max", "The maximum time admitted requests waited in ms", tags),
+                          new Max());
+      shedSensor = metrics.sensor(sensorPrefix + "-shed");
+      shedSensor.add(metricName("shed-rate", "The number of requests rejected per second", tags),
+                     new Rate(new Count()));
+      shedSensor.add(metricName("shed-total", "The number of requests rejected", tags),
+                     new Total());
+    }
+
+    private MetricName metricName(final String name, final String description, final Map<String, String> tags) {
+      return metrics.metricName(name, METRICS_GROUP, description, tags);
+    }
+
+    @Override
+    public void filter(final ContainerRequestContext request) {
+      final long start = System.currentTimeMillis();
+      final String timeoutHeader = request.getHeaderString(TIMEOUT_HEADER);
+      final long timeoutMs = timeoutMs(timeoutHeader, Long.MAX_VALUE);
+      if (!permits.tryAcquire() && !awaitPermit(Math.min(maxQueueMs, timeoutMs))) {
+        shed(request);
+        return;
+      }
+      request.setProperty(PERMIT_PROPERTY, this);
+
+      final long queueTimeMs = System.currentTimeMillis() - start;
+      admittedSensor.record();
+      queueTimeSensor.record(queueTimeMs);
+      if (timeoutHeader != null) {
+        // the caller has less time left by now
+        request.getHeaders().putSingle(TIMEOUT_HEADER, Long.toString(Math.max(0L, timeoutMs - queueTimeMs)));
+      }
+    }
+
+    private boolean awaitPermit(final long waitMs) {
+      if (queued.incrementAndGet() > maxQueued) {
+        queued.decrementAndGet();
+        return false;
+      }
+      try {
+        return permits.tryAcquire(waitMs, TimeUnit.MILLISECONDS);
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      } finally {
+        queued.decrementAndGet();
+      }
+    }
+
+    private void shed(final ContainerRequestContext request) {
+      shedSensor.record();
+      request.abortWith(Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                            .header(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS)
+                            .type(MediaType.TEXT_PLAIN_TYPE)
+                            .entity("Too many concurrent requests, please try again later")
+                            .build());
+    }
+  }
+
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries;
+
+import org.apache.avro.AvroRuntimeException;
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.reflect.ReflectData;
+import org.apache.avro.reflect.ReflectDatumReader;
+import org.apache.avro.reflect.ReflectDatumWriter;
+import org.apache.avro.specific.SpecificData;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Reads and writes entities as Avro binary, for clients that ask for {@value #AVRO_BINARY} rather
+ * than JSON. The schema of an entity is derived from its Java type via reflection, e.g., an array
+ * of records for a {@code List<KeyValueBean>}, and every field may be null. Client and server
+ * must agree on the Java types, as the schema is not sent along. Its responses are the smallest,
+ * but take longer to write than JSON or Smile, as every field is accessed via reflection.
+ *
+ * Types that cannot be represented in Avro, e.g., maps with keys other than strings, are not
+ * supported, and neither are raw collections, whose element type is unknown. Resources that
+ * return collections within a {@link javax.ws.rs.core.Response} or asynchronously must wrap them
+ * in a {@link javax.ws.rs.core.GenericEntity}.
+ */
+@Provider
+@Produces(AvroProvider.AVRO_BINARY)
+@Consumes(AvroProvider.AVRO_BINARY)
+public class AvroProvider implements MessageBodyWriter<Object>, MessageBodyReader<Object> {
+
+  public static final String AVRO_BINARY = "application/avro";
+  public static final MediaType AVRO_BINARY_TYPE = MediaType.valueOf(AVRO_BINARY);
+
+  private static final ReflectData DATA = new NullableData();
+
+  // empty for types that cannot be represented in Avro
+  private final ConcurrentMap<Type, Optional<ReflectDatumWriter<Object>>> writers = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Type, Optional<Reader>> readers = new ConcurrentHashMap<>();
+  private final ThreadLocal<BinaryEncoder> encoders = new ThreadLocal<>();
+  private final ThreadLocal<BinaryDecoder> decoders = new ThreadLocal<>();
+
+  @Override
+  public boolean isWriteable(final Class<?> type,
+                             final Type genericType,
+                             final Annotation[] annotations,
+                             final MediaType mediaType) {
+    return writer(type, genericType) != null;
+  }
+
+  @Override
+  public long getSize(final Object entity,
+                      final Class<?> type,
+                      final Type genericType,
+                      final Annotation[] annotations,
+                      final MediaType mediaType) {
+    return -1;
+  }
+
+  @Override
+  public void writeTo(final Object entity,
+                      final Class<?> type,
+                      final Type genericType,
+                      final Annotation[] annotations,
+                      final MediaType mediaType,
+                      final MultivaluedMap<String, Object> httpHeaders,
+                      final OutputStream entityStream) throws IOException {
+    final BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(entityStream, encoders.get());
+    encoders.set(encoder);
+    writer(type, genericType).write(entity, encoder);
+    encoder.flush();
+  }
+
+  @Override
+  public boolean isReadable(final Class<?> type,
+                            final Type genericType,
+                            final Annotation[] annotations,
+                            final MediaType mediaType) {
+    return reader(type, genericType) != null;
+  }
+
+  @Override
+  public Object readFrom(final Class<Object> type,
+                         final Type genericType,
+                         final Annotation[] annotations,
+                         final MediaType mediaType,
+                         final MultivaluedMap<String, String> httpHeaders,
+                         final InputStream entityStream) throws IOException {
+    final BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(entityStream, decoders.get());
+    decoders.set(decoder);
+    return reader(type, genericType).read(null, decoder);
+  }
+
+  private ReflectDatumWriter<Object> writer(final Class<?> type, final Type genericType) {
+    return writers.computeIfAbsent(genericType, t -> schema(type, t).map(
+        schema -> new ReflectDatumWriter<Object>(schema, DATA))).orElse(null);
+  }
+
+  private Reader reader(final Class<?> type, final Type genericType) {
+    return readers.computeIfAbsent(genericType, t -> schema(type, t).map(
+        schema -> new Reader(schema))).orElse(null);
+  }
+
+  private static final class Reader extends ReflectDatumReader<Object> {
+    private Reader(final Schema schema) {
+      super(schema, schema, DATA);
+    }
+
+    // Avro knows how to create lists, but not sets, e.g., for HostStoreInfo.getStoreNames()
+    @Override
+    protected Object newArray(final Object old, final int size, final Schema schema) {
+      if (old == null && Set.class.getName().equals(schema.getProp(SpecificData.CLASS_PROP))) {
+        return new HashSet<>(size);
+      }
+      return super.newArray(old, size, schema);
+    }
+  }
+
+  /**
+   * Makes every field nullable, i.e., a union of null and the type of the field, like
+   * {@link ReflectData.AllowNull}. Such a union is resolved by whether the datum is null, rather
+   * than by looking up the schema of the datum, which would otherwise dominate the cost of
+   * writing every field of every element.
+   */
+  private static final class NullableData extends ReflectData.AllowNull {
+    @Override
+    public int resolveUnion(final Schema union, final Object datum) {
+      final List<Schema> types = union.getTypes();
+      if (types.size() == 2) {
+        if (types.get(0).getType() == Schema.Type.NULL) {
+          return datum == null ? 0 : 1;
+        }
+        if (types.get(1).getType() == Schema.Type.NULL) {
+          return datum == null ? 1 : 0;
+        }
+      }
+      return super.resolveUnion(union, datum);
+    }
+  }
+
+  private static Optional<Schema> schema(final Class<?> type, final Type genericType) {
+    if ((Collection.class.isAssignableFrom(type) || Map.class.isAssignableFrom(type))
+        && !(genericType instanceof ParameterizedType)) {
+      return Optional.empty();
+    }
+    try {
+      return Optional.of(DATA.getSchema(genericType));
+    } catch (final AvroRuntimeException e) {
+      return Optional.empty();
+    }
+  }
+
+}
@@ -0,0 +1,286 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.reflect.ReflectData;
+import org.apache.avro.reflect.ReflectDatumWriter;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.processor.StateStore;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.QueryableStoreType;
+import org.apache.kafka.streams.state.QueryableStoreTypes;
+import org.apache.kafka.streams.state.ReadOnlyKeyValueStore;
+import org.apache.kafka.streams.state.internals.StateStoreProvider;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.Variant;
+
+/**
+ * Writes the entries of a key-value store, or of a range of its keys, as an array of
+ * {@link KeyValueBean}s while they are read from the store, rather than collecting them first. So
+ * the memory needed to answer a query does not depend on the number of entries, and the
+ * iterators over the store are closed once the response has been written, even if that fails.
+ *
+ * A store is split into partitions, each of which iterates over its keys in order. The entries of
+ * all partitions are merged into a single sorted sequence, so that clients can page through them:
+ * a page holds at most a given number of entries, and the next page is requested with the last key
+ * of the previous one, which resumes the iteration right after that key. The entries of other
+ * instances, which are sorted just the same, can be merged in as well.
+ */
+final class KeyValueRangeOutput implements StreamingOutput {
+
+  /**
+   * Provides the partitions of a key-value store, rather than a single view of all of them as
+   * {@link QueryableStoreTypes#keyValueStore()} does.
+   */
+  static final QueryableStoreType<List<ReadOnlyKeyValueStore<String, Long>>> PARTITIONS =
+      new QueryableStoreType<List<ReadOnlyKeyValueStore<String, Long>>>() {
+        @Override
+        public boolean accepts(final StateStore stateStore) {
+          return QueryableStoreTypes.keyValueStore().accepts(stateStore);
+        }
+
+        @Override
+        public List<ReadOnlyKeyValueStore<String, Long>> create(final StateStoreProvider storeProvider,
+                                                                final String storeName) {
+          return storeProvider.stores(storeName, QueryableStoreTypes.<String, Long>keyValueStore());
+        }
+      };
+
+  private static final List<Variant> VARIANTS =
+      Variant.mediaTypes(MediaType.APPLICATION_JSON_TYPE, AvroProvider.AVRO_BINARY_TYPE, SmileProvider.SMILE_TYPE)
+          .build();
+
+  // The stores order their keys by their UTF-8 encoding, in which no key that is a valid string
+  // sorts after the highest code point, apart from longer keys that start with it. That code
+  // point is a noncharacter, so it serves as the upper bound of a range that has none.
+  static final String LAST_KEY = new String(Character.toChars(Character.MAX_CODE_POINT));
+
+  private static final JsonFactory JSON = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+  private static final JsonFactory SMILE = new SmileFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+  private static final ReflectDatumWriter<KeyValueBean> AVRO =
+      new ReflectDatumWriter<>(ReflectData.AllowNull.get().getSchema(KeyValueBean.class), ReflectData.AllowNull.get());
+
+  private final List<ReadOnlyKeyValueStore<String, Long>> partitions;
+  private final List<? extends KeyValueIterator<String, Long>> others;
+  private final String from;
+  private final String to;
+  private final String after;
+  private final int limit;
+  private final MediaType mediaType;
+
+  /**
+   * Write the entries of the given partitions of a store, see below.
+   */
+  KeyValueRangeOutput(final List<ReadOnlyKeyValueStore<String, Long>> partitions,
+                      final String from,
+                      final String to,
+                      final String after,
+                      final int limit,
+                      final MediaType mediaType) {
+    this(partitions, Collections.<KeyValueIterator<String, Long>>emptyList(), from, to, after, limit, mediaType);
+  }
+
+  /**
+   * @param partitions  the partitions of the store to query
+   * @param others      iterators over further entries in the order of their keys, e.g., the ones
+   *                    of other instances, which must already be restricted to the range and
+   *                    page; they are closed along with the iterators over the partitions
+   * @param from        the first key of the range (inclusive), or null for all keys up to {@code to}
+   * @param to          the last key of the range (inclusive), or null for all keys from {@code from}
+   * @param after       the key to resume the iteration after, i.e., the last key of the previous
+   *                    page, or null to start with the first key of the range
+   * @param limit       the maximum number of entries to write
+   * @param mediaType   the format to write the entries in
+   */
+  KeyValueRangeOutput(final List<ReadOnlyKeyValueStore<String, Long>> partitions,
+                      final List<? extends KeyValueIterator<String, Long>> others,
+                      final String from,
+                      final String to,
+                      final String after,
+                      final int limit,
+                      final MediaType mediaType) {
+    this.partitions = partitions;
+    this.others = others;
+    this.from = from;
+    this.to = to;
+    this.after = after;
+    this.limit = limit;
+    this.mediaType = mediaType;
+  }
+
+  /**
+   * The media type that the client of the given request prefers among the ones this class can
+   * write, or JSON if it accepts none of them.
+   */
+  static MediaType mediaType(final Request request) {
+    final Variant variant = request.selectVariant(VARIANTS);
+    return variant != null ? variant.getMediaType() : MediaType.APPLICATION_JSON_TYPE;
+  }
+
+  MediaType mediaType() {
+    return mediaType;
+  }
+
+  @Override
+  public void write(final OutputStream output) throws IOException {
+    if (mediaType.isCompatible(AvroProvider.AVRO_BINARY_TYPE)) {
+      writeAvro(output);
+    } else {
+      writeJackson(mediaType.isCompatible(SmileProvider.SMILE_TYPE) ? SMILE : JSON, output);
+    }
+  }
+
+  private void writeJackson(final JsonFactory factory, final OutputStream output) throws IOException {
+    try (final JsonGenerator generator = factory.createGenerator(output)) {
+      generator.writeStartArray();
+      forEach((key, value) -> {
+        generator.writeStartObject();
+        generator.writeStringField("key", key);
+        generator.writeNumberField("value", value);
+        generator.writeEndObject();
+      });
+      generator.writeEndArray();
+    }
+  }
+
+  private void writeAvro(final OutputStream output) throws IOException {
+    // An Avro array may be written in blocks, so every entry is written as a block of its own
+    // rather than counting the entries first. The result reads like any List<KeyValueBean>.
+    final BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(output, null);
+    final KeyValueBean bean = new KeyValueBean();
+    encoder.writeArrayStart();
+    forEach((key, value) -> {
+      encoder.setItemCount(1);
+      encoder.startItem();
+      bean.setKey(key);
+      bean.setValue(value);
+      AVRO.write(bean, encoder);
+    });
+    encoder.writeArrayEnd();
+    encoder.flush();
+  }
+
+  @FunctionalInterface
+  private interface EntryWriter {
+    void write(String key, long value) throws IOException;
+  }
+
+  /**
+   * Pass the entries of the page to the given writer in the order of their keys.
+   */
+  private void forEach(final EntryWriter writer) throws IOException {
+    String lower = from;
+    if (after != null && (lower == null || compare(after, lower) > 0)) {
+      lower = after;
+    }
+    final String upper = lower != null && to == null ? LAST_KEY : to;
+
+    final List<KeyValueIterator<String, Long>> iterators = new ArrayList<>(others);
+    final PriorityQueue<Partition> heads = new PriorityQueue<>(Math.max(partitions.size() + others.size(), 1));
+    try {
+      for (final ReadOnlyKeyValueStore<String, Long> partition : partitions) {
+        iterators.add(lower == null ? partition.all() : partition.range(lower, upper));
+      }
+      for (final KeyValueIterator<String, Long> iterator : iterators) {
+        if (iterator.hasNext()) {
+          heads.add(new Partition(iterator));
+        }
+      }
+
+      int written = 0;
+      while (written < limit && !heads.isEmpty()) {
+        final Partition head = heads.poll();
+        final KeyValue<String, Long> entry = head.next;
+        if (head.advance()) {
+          heads.add(head);
+        }
+        if (after != null && entry.key.equals(after)) {
+          continue;
+        }
+        writer.write(entry.key, entry.value);
+        written++;
+      }
+    } catch (final UncheckedIOException e) {
+      // e.g., another instance failed while streaming its entries
+      throw e.getCause();
+    } finally {
+      for (final KeyValueIterator<String, Long> iterator : iterators) {
+        iterator.close();
+      }
+    }
+  }
+
+  /**
+   * The next entry of a partition, or of another instance, ordered by its key.
+   */
+  private static final class Partition implements Comparable<Partition> {
+    private final KeyValueIterator<String, Long> iterator;
+    private KeyValue<String, Long> next;
+
+    private Partition(final KeyValueIterator<String, Long> iterator) {
+      this.iterator = iterator;
+      this.next = iterator.next();
+    }
+
+    private boolean advance() {
+      if (!iterator.hasNext()) {
+        return false;
+      }
+      next = iterator.next();
+      return true;
+    }
+
+    @Override
+    public int compareTo(final Partition other) {
+      return compare(next.key, other.next.key);
+    }
+  }
+
+  /**
+   * Compare keys by code point, which is the order of their UTF-8 encoding in the stores, rather
+   * than by UTF-16 char as {@link String#compareTo(String)} does.
+   */
+  static int compare(final String a, final String b) {
+    int i = 0;
+    int j = 0;
+    while (i < a.length() && j < b.length()) {
+      final int codePointA = a.codePointAt(i);
+      final int codePointB = b.codePointAt(j);
+      if (codePointA != codePointB) {
+        return Integer.compare(codePointA, codePointB);
+      }
+      i += Character.charCount(codePointA);
+      j += Character.charCount(codePointB);
+    }
+    return Integer.compare(a.length() - i, b.length() - j);
+  }
+
+}
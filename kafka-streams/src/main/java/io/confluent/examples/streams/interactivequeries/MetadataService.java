@@ -16,13 +16,18 @@
  */
 package io.confluent.examples.streams.interactivequeries;
 
+import org.apache.kafka.common.serialization.LongSerializer;
 import org.apache.kafka.common.serialization.Serializer;
 import org.apache.kafka.common.serialization.StringSerializer;
 import org.apache.kafka.streams.KafkaStreams;
+import org.apache.kafka.streams.state.HostInfo;
 import org.apache.kafka.streams.state.StreamsMetadata;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 import javax.ws.rs.GET;
@@ -35,13 +40,46 @@ import javax.ws.rs.core.MediaType;
 /**
  * Looks up StreamsMetadata from KafkaStreams and converts the results
  * into Beans that can be JSON serialized via Jersey.
+ *
+ * Keys that are serialized with the StringSerializer or LongSerializer are routed through a
+ * {@link PartitionRoutingTable}, if one has been registered as the state listener of the
+ * KafkaStreams instance, and looked up via KafkaStreams otherwise.
  */
 public class MetadataService {
 
+  private static final StringSerializer STRING_SERIALIZER = new StringSerializer();
+  private static final LongSerializer LONG_SERIALIZER = new LongSerializer();
+
   private final KafkaStreams streams;
+  private final HostInfo hostInfo;
+  private final PartitionRoutingTable routingTable;
 
   public MetadataService(final KafkaStreams streams) {
+    this(streams, null);
+  }
+
+  /**
+   * @param streams     the KafkaStreams instance to look up the metadata from
+   * @param hostInfo    the host and port of this instance, as configured via
+   *                    {@link org.apache.kafka.streams.StreamsConfig#APPLICATION_SERVER_CONFIG}
+   */
+  public MetadataService(final KafkaStreams streams, final HostInfo hostInfo) {
+    this(streams, hostInfo, null);
+  }
+
+  /**
+   * @param streams       the KafkaStreams instance to look up the metadata from
+   * @param hostInfo      the host and port of this instance, as configured via
+   *                      {@link org.apache.kafka.streams.StreamsConfig#APPLICATION_SERVER_CONFIG}
+   * @param routingTable  the routing table that has been registered as the state listener of
+   *                      {@code streams}, or null
+   */
+  public MetadataService(final KafkaStreams streams,
+                         final HostInfo hostInfo,
+                         final PartitionRoutingTable routingTable) {
     this.streams = streams;
+    this.hostInfo = hostInfo;
+    this.routingTable = routingTable;
   }
 
   /**
@@ -76,6 +114,12 @@ public class MetadataService {
   public <K> HostStoreInfo streamsMetadataForStoreAndKey(final String store,
                                                          final K key,
                                                          final Serializer<K> serializer) {
+    // Most lookups can be answered from the routing table without serializing the key
+    final HostStoreInfo route = routingTable != null ? routingTable.hostForKey(store, key, serializer) : null;
+    if (route != null) {
+      return route;
+    }
+
     // Get metadata for the instances of this Kafka Streams application hosting the store and
     // potentially the value for key
     final StreamsMetadata metadata = streams.metadataForKey(store, key, serializer);
@@ -88,6 +132,56 @@ public class MetadataService {
                              metadata.stateStoreNames());
   }
 
+  /**
+   * Group the given keys by the instance of this Kafka Streams Application that has the given
+   * store and would have the respective key if it exists. This allows callers to fetch all keys
+   * hosted by the same instance with a single request.
+   * @param store   Store to find
+   * @param keys    The keys to find
+   * @return Map of {@link HostStoreInfo} to the keys hosted by that instance
+   */
+  public <K> Map<HostStoreInfo, List<K>> streamsMetadataForStoreAndKeys(final String store,
+                                                                       final Collection<K> keys,
+                                                                       final Serializer<K> serializer) {
+    final Map<HostStoreInfo, List<K>> keysByHost = new LinkedHashMap<>();
+    for (final K key : keys) {
+      final HostStoreInfo host = streamsMetadataForStoreAndKey(store, key, serializer);
+      keysByHost.computeIfAbsent(host, h -> new ArrayList<>()).add(key);
+    }
+    return keysByHost;
+  }
+
+  /**
+   * Check whether this instance hosts the partition of the given store that the given key
+   * belongs to, i.e., whether the key can be looked up in the local state store.
+   * @param store   Store to check
+   * @param key     The key to check
+   */
+  public boolean isLocal(final String store, final String key) {
+    return isThisHost(streamsMetadataForStoreAndKey(store, key, STRING_SERIALIZER));
+  }
+
+  /**
+   * Check whether this instance hosts the partition of the given store that the given key
+   * belongs to, i.e., whether the key can be looked up in the local state store.
+   * @param store   Store to check
+   * @param key     The key to check
+   */
+  public boolean isLocal(final String store, final long key) {
+    final HostStoreInfo route = routingTable != null ? routingTable.hostForKey(store, key) : null;
+    return isThisHost(route != null ? route : streamsMetadataForStoreAndKey(store, key, LONG_SERIALIZER));
+  }
+
+  /**
+   * Check whether the given instance is this instance.
+   */
+  public boolean isThisHost(final HostStoreInfo host) {
+    if (hostInfo == null) {
+      throw new IllegalStateException("The host info of this instance is unknown");
+    }
+    return host.getHost().equals(hostInfo.host()) && host.getPort() == hostInfo.port();
+  }
+
   private List<HostStoreInfo> mapInstancesToHostStoreInfo(
       final Collection<StreamsMetadata> metadatas) {
     return metadatas.stream().map(metadata -> new HostStoreInfo(metadata.host(),
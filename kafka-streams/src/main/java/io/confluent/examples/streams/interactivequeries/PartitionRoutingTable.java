@@ -0,0 +1,286 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries;
+
+import org.apache.kafka.common.serialization.LongSerializer;
+import org.apache.kafka.common.serialization.Serializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.streams.KafkaStreams;
+import org.apache.kafka.streams.state.StreamsMetadata;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps the partitions of every state store to the instance of this Kafka Streams application that
+ * hosts them.
+ *
+ * {@link KafkaStreams#metadataForKey(String, Object, org.apache.kafka.common.serialization.Serializer)}
+ * serializes the key and walks the cluster metadata on every call. The assignment of partitions to
+ * instances only changes when the application rebalances though, so this table is (re)built once
+ * the application is running again after a rebalance, and looking up the instance for a key boils
+ * down to hashing the key and reading one array element.
+ *
+ * The keys are hashed exactly like Kafka's default partitioner does, i.e., using murmur2 over the
+ * bytes that the StringSerializer and LongSerializer produce. The fast paths for String and long
+ * keys encode the key into a reusable, per-thread buffer and therefore do not allocate.
+ *
+ * The table must be registered as the state listener of the KafkaStreams instance before it is
+ * started. As KafkaStreams only has a single state listener, a listener of the application itself
+ * can be passed to the table, which notifies it of every change of state in turn.
+ */
+public class PartitionRoutingTable implements KafkaStreams.StateListener {
+
+  private static final ThreadLocal<byte[]> KEY_BUFFER = ThreadLocal.withInitial(() -> new byte[64]);
+
+  private final KafkaStreams streams;
+  // store name -> instance hosting partition i of the store. Replaced as a whole whenever it
+  // changes so that it can be read without locking.
+  private volatile Map<String, HostStoreInfo[]> routes = Collections.emptyMap();
+  // We track the state ourselves: KafkaStreams notifies its state listener while holding its own
+  // lock, so calling KafkaStreams#state() while holding ours could deadlock.
+  private volatile KafkaStreams.State state;
+  private final KafkaStreams.StateListener next;
+
+  public PartitionRoutingTable(final KafkaStreams streams) {
+    this(streams, null);
+  }
+
+  /**
+   * @param streams   the KafkaStreams instance to route the keys of
+   * @param next      the state listener of the application, which is notified after the table
+   *                  has been updated, or null
+   */
+  public PartitionRoutingTable(final KafkaStreams streams, final KafkaStreams.StateListener next) {
+    this.streams = streams;
+    this.state = streams.state();
+    this.next = next;
+  }
+
+  @Override
+  public synchronized void onChange(final KafkaStreams.State newState, final KafkaStreams.State oldState) {
+    state = newState;
+    if (newState == KafkaStreams.State.RUNNING) {
+      final Map<String, HostStoreInfo[]> newRoutes = new HashMap<>();
+      for (final StreamsMetadata metadata : streams.allMetadata()) {
+        for (final String store : metadata.stateStoreNames()) {
+          if (!newRoutes.containsKey(store)) {
+            final HostStoreInfo[] storeRoutes = buildRoutes(store);
+            if (storeRoutes != null) {
+              newRoutes.put(store, storeRoutes);
+            }
+          }
+        }
+      }
+      routes = newRoutes;
+    } else {
+      // the partitions are being reassigned, so none of the routes can be trusted anymore
+      routes = Collections.emptyMap();
+    }
+    if (next != null) {
+      next.onChange(newState, oldState);
+    }
+  }
+
+  /**
+   * Find the instance that hosts the partition of the given store that the given key belongs to.
+   * @return {@link HostStoreInfo} or null if the routes of the store are not known (yet), e.g.,
+   * because the application is rebalancing
+   */
+  public HostStoreInfo hostForKey(final String store, final String key) {
+    final HostStoreInfo[] storeRoutes = routesFor(store);
+    if (storeRoutes == null) {
+      return null;
+    }
+    return storeRoutes[partitionForKey(key, storeRoutes.length)];
+  }
+
+  /**
+   * Find the instance that hosts the partition of the given store that the given key belongs to.
+   * @return {@link HostStoreInfo} or null if the routes of the store are not known (yet), e.g.,
+   * because the application is rebalancing
+   */
+  public HostStoreInfo hostForKey(final String store, final long key) {
+    final HostStoreInfo[] storeRoutes = routesFor(store);
+    if (storeRoutes == null) {
+      return null;
+    }
+    return storeRoutes[partitionForKey(key, storeRoutes.length)];
+  }
+
+  /**
+   * Find the instance that hosts the partition of the given store that the given key belongs to,
+   * provided the key is serialized with the StringSerializer or LongSerializer.
+   * @return {@link HostStoreInfo} or null if the key uses a different serializer or the routes of
+   * the store are not known (yet)
+   */
+  public <K> HostStoreInfo hostForKey(final String store, final K key, final Serializer<K> serializer) {
+    if (key instanceof String && serializer instanceof StringSerializer) {
+      return hostForKey(store, (String) key);
+    }
+    if (key instanceof Long && serializer instanceof LongSerializer) {
+      return hostForKey(store, ((Long) key).longValue());
+    }
+    return null;
+  }
+
+  private HostStoreInfo[] routesFor(final String store) {
+    final HostStoreInfo[] storeRoutes = routes.get(store);
+    if (storeRoutes != null) {
+      return storeRoutes;
+    }
+    return addRoutes(store);
+  }
+
+  // Used for stores that were not known when the table was last rebuilt, e.g., because the
+  // table was registered as state listener after the application had been started.
+  private synchronized HostStoreInfo[] addRoutes(final String store) {
+    if (state != KafkaStreams.State.RUNNING) {
+      return null;
+    }
+    final HostStoreInfo[] storeRoutes = routes.containsKey(store) ? routes.get(store) : buildRoutes(store);
+    if (storeRoutes != null && !routes.containsKey(store)) {
+      final Map<String, HostStoreInfo[]> newRoutes = new HashMap<>(routes);
+      newRoutes.put(store, storeRoutes);
+      routes = newRoutes;
+    }
+    return storeRoutes;
+  }
+
+  private HostStoreInfo[] buildRoutes(final String store) {
+    // Kafka Streams tells a custom partitioner how many partitions the store has...
+    final int[] numPartitions = {-1};
+    final StreamsMetadata first = streams.metadataForKey(store, 0, (key, value, partitions) -> {
+      numPartitions[0] = partitions;
+      return 0;
+    });
+    if (first == null || StreamsMetadata.NOT_AVAILABLE.equals(first) || numPartitions[0] <= 0) {
+      return null;
+    }
+
+    // ...and the partitioner can also be used to ask for the instance hosting a given partition.
+    final Map<StreamsMetadata, HostStoreInfo> hosts = new HashMap<>();
+    final HostStoreInfo[] storeRoutes = new HostStoreInfo[numPartitions[0]];
+    for (int partition = 0; partition < storeRoutes.length; partition++) {
+      final StreamsMetadata metadata = streams.metadataForKey(store, partition, (key, value, partitions) -> key);
+      if (metadata == null || StreamsMetadata.NOT_AVAILABLE.equals(metadata)) {
+        return null;
+      }
+      storeRoutes[partition] = hosts.computeIfAbsent(metadata, m -> new HostStoreInfo(m.host(),
+                                                                                     m.port(),
+                                                                                     m.stateStoreNames()));
+    }
+    return storeRoutes;
+  }
+
+  /**
+   * The partition that Kafka's default partitioner picks for the given key when the key is
+   * serialized with the StringSerializer, i.e., as UTF-8.
+   */
+  static int partitionForKey(final String key, final int numPartitions) {
+    byte[] buffer = KEY_BUFFER.get();
+    // a char takes at most 3 bytes in UTF-8 (surrogate pairs take 4 bytes for 2 chars)
+    if (buffer.length < key.length() * 3) {
+      buffer = new byte[key.length() * 3];
+      KEY_BUFFER.set(buffer);
+    }
+    final int length = encodeUtf8(key, buffer);
+    return toPositive(murmur2(buffer, length)) % numPartitions;
+  }
+
+  /**
+   * The partition that Kafka's default partitioner picks for the given key when the key is
+   * serialized with the LongSerializer, i.e., as 8 bytes in big-endian order.
+   */
+  static int partitionForKey(final long key, final int numPartitions) {
+    final byte[] buffer = KEY_BUFFER.get();
+    for (int i = 0; i < 8; i++) {
+      buffer[i] = (byte) (key >>> (56 - 8 * i));
+    }
+    return toPositive(murmur2(buffer, 8)) % numPartitions;
+  }
+
+  // Same as String.getBytes(StandardCharsets.UTF_8), which replaces malformed surrogates with '?'
+  private static int encodeUtf8(final String value, final byte[] buffer) {
+    int length = 0;
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      if (c < 0x80) {
+        buffer[length++] = (byte) c;
+      } else if (c < 0x800) {
+        buffer[length++] = (byte) (0xc0 | (c >> 6));
+        buffer[length++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isSurrogate(c)) {
+        if (Character.isHighSurrogate(c) && i + 1 < value.length()
+            && Character.isLowSurrogate(value.charAt(i + 1))) {
+          final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+          buffer[length++] = (byte) (0xf0 | (codePoint >> 18));
+          buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+          buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+          buffer[length++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else {
+          buffer[length++] = '?';
+        }
+      } else {
+        buffer[length++] = (byte) (0xe0 | (c >> 12));
+        buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buffer[length++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    return length;
+  }
+
+  // Same as org.apache.kafka.common.utils.Utils.murmur2(), but for the first length bytes of data
+  private static int murmur2(final byte[] data, final int length) {
+    final int seed = 0x9747b28c;
+    final int m = 0x5bd1e995;
+    final int r = 24;
+
+    int h = seed ^ length;
+    final int length4 = length / 4;
+
+    for (int i = 0; i < length4; i++) {
+      final int i4 = i * 4;
+      int k = (data[i4] & 0xff) + ((data[i4 + 1] & 0xff) << 8) + ((data[i4 + 2] & 0xff) << 16)
+              + ((data[i4 + 3] & 0xff) << 24);
+      k *= m;
+      k ^= k >>> r;
+      k *= m;
+      h *= m;
+      h ^= k;
+    }
+
+    switch (length % 4) {
+      case 3:
+        h ^= (data[(length & ~3) + 2] & 0xff) << 16;
+      case 2:
+        h ^= (data[(length & ~3) + 1] & 0xff) << 8;
+      case 1:
+        h ^= data[length & ~3] & 0xff;
+        h *= m;
+    }
+
+    h ^= h >>> 13;
+    h *= m;
+    h ^= h >>> 15;
+
+    return h;
+  }
+
+  private static int toPositive(final int number) {
+    return number & 0x7fffffff;
+  }
+
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.state.KeyValueIterator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.NoSuchElementException;
+
+import javax.ws.rs.core.Response;
+
+/**
+ * Iterates over the key-value pairs that another instance answers a range query with, as an
+ * array of {@link KeyValueBean}s in Smile (see {@link KeyValueRangeOutput}). The pairs are parsed
+ * one at a time while they arrive, so that the other instance can stream them and need not be
+ * read any further than they are needed.
+ *
+ * Closing this iterator closes the response, which abandons the rest of the pairs. If the other
+ * instance fails while streaming, {@link #next()} throws an {@link UncheckedIOException}.
+ */
+final class RemoteKeyValueIterator implements KeyValueIterator<String, Long> {
+
+  private static final JsonFactory SMILE = new SmileFactory();
+
+  private final Response response;
+  private final JsonParser parser;
+  private KeyValue<String, Long> next;
+
+  /**
+   * @param response    the response of the other instance, which takes over closing it
+   */
+  RemoteKeyValueIterator(final Response response) throws IOException {
+    this.response = response;
+    try {
+      if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+        throw new IOException("Range query failed with status " + response.getStatus());
+      }
+      this.parser = SMILE.createParser(response.readEntity(InputStream.class));
+      if (parser.nextToken() != JsonToken.START_ARRAY) {
+        throw new IOException("Range query was not answered with an array");
+      }
+      advance();
+    } catch (final IOException | RuntimeException e) {
+      response.close();
+      throw e;
+    }
+  }
+
+  private void advance() throws IOException {
+    final JsonToken token = parser.nextToken();
+    if (token == JsonToken.END_ARRAY) {
+      next = null;
+      return;
+    }
+    if (token != JsonToken.START_OBJECT) {
+      // e.g., the stream ended before the array did
+      throw new IOException("Range query was answered with a truncated array");
+    }
+    String key = null;
+    Long value = null;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      final String field = parser.getCurrentName();
+      parser.nextToken();
+      if ("key".equals(field)) {
+        key = parser.getValueAsString();
+      } else if ("value".equals(field)) {
+        value = parser.getLongValue();
+      } else {
+        parser.skipChildren();
+      }
+    }
+    next = KeyValue.pair(key, value);
+  }
+
+  @Override
+  public boolean hasNext() {
+    return next != null;
+  }
+
+  @Override
+  public KeyValue<String, Long> next() {
+    if (next == null) {
+      throw new NoSuchElementException();
+    }
+    final KeyValue<String, Long> current = next;
+    try {
+      advance();
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return current;
+  }
+
+  @Override
+  public String peekNextKey() {
+    if (next == null) {
+      throw new NoSuchElementException();
+    }
+    return next.key;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException("remove() is not supported");
+  }
+
+  @Override
+  public void close() {
+    try {
+      parser.close();
+    } catch (final IOException ignored) {
+      // the response is closed anyway
+    }
+    response.close();
+  }
+
+}
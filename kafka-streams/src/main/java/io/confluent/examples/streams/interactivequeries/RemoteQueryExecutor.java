@@ -0,0 +1,262 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries;
+
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Avg;
+import org.apache.kafka.common.metrics.stats.Count;
+import org.apache.kafka.common.metrics.stats.Max;
+import org.apache.kafka.common.metrics.stats.Rate;
+import org.apache.kafka.common.metrics.stats.Total;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+
+/**
+ * Runs the calls that an instance makes to its peers, e.g., to fetch a value that is hosted by
+ * another instance, on a bounded pool of threads. This keeps the threads of the embedded Jetty
+ * server free to serve requests that can be answered from the local state stores, no matter how
+ * slow the remote instances are.
+ *
+ * Remote calls that are asynchronous themselves can be tracked via {@link #submitAsync(Supplier)}.
+ * Every call is subject to a timeout. The number of calls, their latency, as well as the number
+ * of calls that timed out, failed, or were rejected because the pool was saturated are recorded
+ * in the "remote-queries" metrics group.
+ */
+public class RemoteQueryExecutor {
+
+  private static final String METRICS_GROUP = "remote-queries";
+
+  private final ThreadPoolExecutor executor;
+  private final ScheduledExecutorService timer;
+  private final long timeoutMs;
+  private final Sensor callSensor;
+  private final Sensor timeoutSensor;
+  private final Sensor errorSensor;
+  private final Sensor rejectedSensor;
+
+  /**
+   * @param name        name of this executor, used for the thread names and as the metrics tag
+   * @param threads     the maximum number of concurrent remote calls
+   * @param queueSize   the maximum number of remote calls waiting for a thread
+   * @param timeoutMs   the time after which a remote call is abandoned
+   * @param metrics     where to register the metrics of this executor
+   */
+  public RemoteQueryExecutor(final String name,
+                             final int threads,
+                             final int queueSize,
+                             final long timeoutMs,
+                             final Metrics metrics) {
+    final AtomicInteger threadCount = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                           new ArrayBlockingQueue<>(queueSize),
+                                           runnable -> {
+                                             final Thread thread = new Thread(runnable,
+                                                 name + "-remote-query-" + threadCount.incrementAndGet());
+                                             thread.setDaemon(true);
+                                             return thread;
+                                           });
+    this.executor.allowCoreThreadTimeOut(true);
+    this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, name + "-remote-query-timer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.timeoutMs = timeoutMs;
+
+    final Map<String, String> tags = Collections.singletonMap("client-id", name);
+    callSensor = metrics.sensor(name + "-remote-calls");
+    callSensor.add(metricName(metrics, "remote-call-rate", "The number of remote calls per second", tags),
+                   new Rate(new Count()));
+    callSensor.add(metricName(metrics, "remote-call-latency-avg", "The average latency of remote calls in ms", tags),
+                   new Avg());
+    callSensor.add(metricName(metrics, "remote-call-latency-max", "The maximum latency of remote calls in ms", tags),
+                   new Max());
+    timeoutSensor = metrics.sensor(name + "-remote-call-timeouts");
+    timeoutSensor.add(metricName(metrics, "remote-call-timeout-total", "The number of remote calls that timed out", tags),
+                      new Total());
+    errorSensor = metrics.sensor(name + "-remote-call-errors");
+    errorSensor.add(metricName(metrics, "remote-call-error-total", "The number of remote calls that failed", tags),
+                    new Total());
+    rejectedSensor = metrics.sensor(name + "-remote-call-rejections");
+    rejectedSensor.add(metricName(metrics, "remote-call-rejected-total",
+                                  "The number of remote calls rejected because all threads were busy", tags),
+                       new Total());
+  }
+
+  private static MetricName metricName(final Metrics metrics,
+                                       final String name,
+                                       final String description,
+                                       final Map<String, String> tags) {
+    return metrics.metricName(name, METRICS_GROUP, description, tags);
+  }
+
+  /**
+   * Run the given remote call on one of the threads of this executor.
+   * @param call    the remote call to make
+   * @return a future that completes with the result of the call, or exceptionally if the call
+   * failed, timed out, or could not be scheduled at all
+   */
+  public <T> CompletableFuture<T> submit(final Supplier<T> call) {
+    return submit(call, timeoutMs);
+  }
+
+  /**
+   * Run the given remote call on one of the threads of this executor, and abandon it after the
+   * given time.
+   */
+  public <T> CompletableFuture<T> submit(final Supplier<T> call, final long timeoutMs) {
+    final CompletableFuture<T> result = new CompletableFuture<>();
+    final long start = System.currentTimeMillis();
+    final Future<?> task;
+    try {
+      task = executor.submit(() -> {
+        try {
+          result.complete(call.get());
+        } catch (final Throwable e) {
+          result.completeExceptionally(e);
+        }
+      });
+    } catch (final RejectedExecutionException e) {
+      rejectedSensor.record();
+      result.completeExceptionally(e);
+      return result;
+    }
+
+    track(result, start, timeoutMs, () -> task.cancel(true));
+    return result;
+  }
+
+  /**
+   * Track a remote call that is asynchronous itself, e.g., a query sent over a pipelined
+   * connection. Such calls do not take up one of the threads of this executor, but they are
+   * subject to the same timeout and recorded in the same metrics as all other calls.
+   * @param call    starts the remote call
+   * @return a future that completes with the result of the call, or exceptionally if the call
+   * failed or timed out
+   */
+  public <T> CompletableFuture<T> submitAsync(final Supplier<CompletableFuture<T>> call) {
+    return submitAsync(call, timeoutMs);
+  }
+
+  /**
+   * Track a remote call that is asynchronous itself, and abandon it after the given time.
+   */
+  public <T> CompletableFuture<T> submitAsync(final Supplier<CompletableFuture<T>> call, final long timeoutMs) {
+    final CompletableFuture<T> result = new CompletableFuture<>();
+    final long start = System.currentTimeMillis();
+    CompletableFuture<T> pending;
+    try {
+      pending = call.get();
+    } catch (final RuntimeException e) {
+      pending = new CompletableFuture<>();
+      pending.completeExceptionally(e);
+    }
+    pending.whenComplete((value, exception) -> {
+      if (exception == null) {
+        result.complete(value);
+      } else {
+        result.completeExceptionally(exception);
+      }
+    });
+    final CompletableFuture<T> started = pending;
+    track(result, start, timeoutMs, () -> started.cancel(true));
+    return result;
+  }
+
+  private <T> void track(final CompletableFuture<T> result,
+                         final long start,
+                         final long timeoutMs,
+                         final Runnable abandon) {
+    final Future<?> timeout = timer.schedule(() -> {
+      if (result.completeExceptionally(new TimeoutException("Remote call timed out after " + timeoutMs + " ms"))) {
+        abandon.run();
+      }
+    }, timeoutMs, TimeUnit.MILLISECONDS);
+
+    result.whenComplete((value, exception) -> {
+      timeout.cancel(false);
+      callSensor.record(System.currentTimeMillis() - start);
+      if (exception instanceof TimeoutException) {
+        timeoutSensor.record();
+      } else if (exception != null) {
+        errorSensor.record();
+      }
+    });
+  }
+
+  /**
+   * Resume the given suspended request with the result of the given future once it completes.
+   * Remote calls that timed out are answered with 504 (Gateway Timeout), and calls that could not
+   * be scheduled with 503 (Service Unavailable).
+   */
+  public static <T> void resume(final AsyncResponse response, final CompletableFuture<T> result) {
+    result.whenComplete((value, exception) -> {
+      if (exception == null) {
+        response.resume(value);
+        return;
+      }
+      final Throwable cause = exception instanceof CompletionException && exception.getCause() != null
+                              ? exception.getCause() : exception;
+      if (cause instanceof TimeoutException) {
+        response.resume(new WebApplicationException(cause, Response.Status.GATEWAY_TIMEOUT));
+      } else if (cause instanceof RejectedExecutionException) {
+        response.resume(new WebApplicationException(cause, Response.Status.SERVICE_UNAVAILABLE));
+      } else {
+        response.resume(cause);
+      }
+    });
+  }
+
+  /**
+   * Resume the given suspended request with the result of the given future once it completes, or
+   * with 504 (Gateway Timeout) if it does not complete within the given time.
+   */
+  public static <T> void resume(final AsyncResponse response,
+                                final CompletableFuture<T> result,
+                                final long timeoutMs) {
+    response.setTimeoutHandler(timedOut -> timedOut.resume(
+        new WebApplicationException("Query timed out after " + timeoutMs + " ms", Response.Status.GATEWAY_TIMEOUT)));
+    // a timeout of zero would suspend the request indefinitely
+    response.setTimeout(Math.max(timeoutMs, 1L), TimeUnit.MILLISECONDS);
+    resume(response, result);
+  }
+
+  /**
+   * Stop all threads of this executor.
+   */
+  public void close() {
+    executor.shutdownNow();
+    timer.shutdownNow();
+  }
+
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent identical queries, so that they share a single in-flight computation
+ * rather than each of them reading the same state store or calling the same remote instance.
+ *
+ * A query is identified by a key, which should cover everything the result depends on, e.g., the
+ * store, the key within the store, and the instance the query is routed to. Optionally, a result
+ * is held for a short while after it has been computed and handed to subsequent queries as well,
+ * trading a little staleness for fewer computations. Failures are never held.
+ *
+ * @param <K> the type of the keys identifying the queries
+ * @param <V> the type of the results
+ */
+public class SingleFlight<K, V> {
+
+  private static final int PURGE_THRESHOLD = 1024;
+
+  private final long holdMs;
+  private final ConcurrentMap<K, Flight<V>> flights = new ConcurrentHashMap<>();
+
+  private static final class Flight<V> {
+    private final CompletableFuture<V> result = new CompletableFuture<>();
+    // when the result is not to be handed out anymore, or Long.MAX_VALUE while it is in flight
+    private volatile long expiresMs = Long.MAX_VALUE;
+  }
+
+  /**
+   * @param holdMs  how long a result is handed to subsequent queries after it has been computed,
+   *                or 0 to only share computations that are still in flight
+   */
+  public SingleFlight(final long holdMs) {
+    if (holdMs < 0) {
+      throw new IllegalArgumentException("hold time must not be negative, but was " + holdMs);
+    }
+    this.holdMs = holdMs;
+  }
+
+  /**
+   * Get the result of the query with the given key: either that of an identical query that is in
+   * flight or was completed less than the hold time ago, or the result of a new computation.
+   * @param key           identifies the query
+   * @param computation   starts the computation of the result
+   * @return a future that completes with the result. Completing or cancelling it does not affect
+   * the other queries that share the computation.
+   */
+  public CompletableFuture<V> execute(final K key, final Supplier<CompletableFuture<V>> computation) {
+    while (true) {
+      final Flight<V> flight = flights.get(key);
+      if (flight != null) {
+        if (flight.expiresMs > System.currentTimeMillis()) {
+          return flight.result.thenApply(value -> value);
+        }
+        flights.remove(key, flight);
+        continue;
+      }
+
+      final Flight<V> started = new Flight<>();
+      if (flights.putIfAbsent(key, started) != null) {
+        // an identical query got ahead of us
+        continue;
+      }
+      if (flights.size() > PURGE_THRESHOLD) {
+        purge();
+      }
+      CompletableFuture<V> pending;
+      try {
+        pending = computation.get();
+      } catch (final RuntimeException e) {
+        pending = new CompletableFuture<>();
+        pending.completeExceptionally(e);
+      }
+      pending.whenComplete((value, exception) -> {
+        if (exception == null && holdMs > 0) {
+          started.expiresMs = System.currentTimeMillis() + holdMs;
+        } else {
+          flights.remove(key, started);
+        }
+        if (exception == null) {
+          started.result.complete(value);
+        } else {
+          started.result.completeExceptionally(exception);
+        }
+      });
+      return started.result.thenApply(value -> value);
+    }
+  }
+
+  /**
+   * The number of queries that are in flight or whose result is held.
+   */
+  public int size() {
+    return flights.size();
+  }
+
+  // Removes the held results of queries that were not repeated within the hold time
+  private void purge() {
+    final long now = System.currentTimeMillis();
+    flights.forEach((key, flight) -> {
+      if (flight.expiresMs <= now) {
+        flights.remove(key, flight);
+      }
+    });
+  }
+
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Reads and writes entities as Smile, the binary encoding of JSON, for clients that ask for
+ * {@value #SMILE} rather than JSON. Entities are mapped the same way as for JSON, so that any
+ * Jackson-based client can read them, but there is no text to format or parse, and repeated
+ * field names, as in lists of beans, are written only once.
+ */
+@Provider
+@Produces(SmileProvider.SMILE)
+@Consumes(SmileProvider.SMILE)
+public class SmileProvider implements MessageBodyWriter<Object>, MessageBodyReader<Object> {
+
+  public static final String SMILE = "application/x-jackson-smile";
+  public static final MediaType SMILE_TYPE = MediaType.valueOf(SMILE);
+
+  private final ObjectMapper mapper = new ObjectMapper(new SmileFactory()
+                                                           .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+                                                           .disable(JsonParser.Feature.AUTO_CLOSE_SOURCE));
+
+  @Override
+  public boolean isWriteable(final Class<?> type,
+                             final Type genericType,
+                             final Annotation[] annotations,
+                             final MediaType mediaType) {
+    return true;
+  }
+
+  @Override
+  public long getSize(final Object entity,
+                      final Class<?> type,
+                      final Type genericType,
+                      final Annotation[] annotations,
+                      final MediaType mediaType) {
+    return -1;
+  }
+
+  @Override
+  public void writeTo(final Object entity,
+                      final Class<?> type,
+                      final Type genericType,
+                      final Annotation[] annotations,
+                      final MediaType mediaType,
+                      final MultivaluedMap<String, Object> httpHeaders,
+                      final OutputStream entityStream) throws IOException {
+    mapper.writerFor(mapper.constructType(genericType)).writeValue(entityStream, entity);
+  }
+
+  @Override
+  public boolean isReadable(final Class<?> type,
+                            final Type genericType,
+                            final Annotation[] annotations,
+                            final MediaType mediaType) {
+    return true;
+  }
+
+  @Override
+  public Object readFrom(final Class<Object> type,
+                         final Type genericType,
+                         final Annotation[] annotations,
+                         final MediaType mediaType,
+                         final MultivaluedMap<String, String> httpHeaders,
+                         final InputStream entityStream) throws IOException {
+    return mapper.readValue(entityStream, mapper.constructType(genericType));
+  }
+
+}
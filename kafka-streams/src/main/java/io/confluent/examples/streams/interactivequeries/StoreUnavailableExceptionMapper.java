@@ -0,0 +1,41 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries;
+
+import org.apache.kafka.streams.errors.InvalidStateStoreException;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+
+/**
+ * Answers queries for a state store that is not available, e.g., because the application is
+ * rebalancing or the store has been migrated to another instance, with a 503 (Service
+ * Unavailable) rather than a 500, so that clients know they should try again shortly.
+ */
+public class StoreUnavailableExceptionMapper implements ExceptionMapper<InvalidStateStoreException> {
+
+  private static final int RETRY_AFTER_SECONDS = 1;
+
+  @Override
+  public Response toResponse(final InvalidStateStoreException exception) {
+    return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+        .header(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS)
+        .type(MediaType.TEXT_PLAIN_TYPE)
+        .entity(exception.getMessage())
+        .build();
+  }
+
+}
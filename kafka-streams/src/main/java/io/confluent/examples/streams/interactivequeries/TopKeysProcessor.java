@@ -0,0 +1,128 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries;
+
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.processor.Processor;
+import org.apache.kafka.streams.processor.ProcessorContext;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.KeyValueStore;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Maintains the keys with the highest values of a table, e.g., the most frequent words of a word
+ * count, so that they can be queried without reading and sorting the whole table.
+ *
+ * The top keys are kept in a state store of their own, which holds at most a given number of keys
+ * per partition of the table, along with a copy in memory that is ordered by value. An update of a
+ * key that is not among the top keys replaces the lowest of them if its value is higher. This is
+ * exact as long as the values of the table only grow, as counts do: a key that has been replaced
+ * cannot rise above the top keys without being updated.
+ *
+ * The store is partitioned like the table, so it needs no repartitioning, and the top keys of the
+ * whole table are among the top keys of its partitions.
+ */
+class TopKeysProcessor implements Processor<String, Long> {
+
+  static final String TOP_STORE_SUFFIX = "-top";
+
+  /**
+   * Orders keys by their values, from the lowest to the highest, and keys of the same value in
+   * reverse order, see {@link KeyValueRangeOutput#compare(String, String)}.
+   */
+  static final Comparator<KeyValue<String, Long>> LOWEST_FIRST =
+      Comparator.<KeyValue<String, Long>, Long>comparing(keyValue -> keyValue.value)
+          .thenComparing((a, b) -> KeyValueRangeOutput.compare(b.key, a.key));
+
+  private final String topStore;
+  private final int size;
+  private final Map<String, Long> values = new HashMap<>();
+  private final TreeSet<KeyValue<String, Long>> lowestFirst = new TreeSet<>(LOWEST_FIRST);
+  private KeyValueStore<String, Long> top;
+
+  /**
+   * @param topStore   the store that holds the top keys
+   * @param size       the number of top keys to keep per partition
+   */
+  TopKeysProcessor(final String topStore, final int size) {
+    this.topStore = topStore;
+    this.size = size;
+  }
+
+  /**
+   * The name of the store that holds the top keys of the given store.
+   */
+  static String topStoreName(final String store) {
+    return store + TOP_STORE_SUFFIX;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void init(final ProcessorContext context) {
+    top = (KeyValueStore<String, Long>) context.getStateStore(topStore);
+    // the store has been restored by now, so the copy in memory can be rebuilt from it
+    try (final KeyValueIterator<String, Long> iterator = top.all()) {
+      while (iterator.hasNext()) {
+        final KeyValue<String, Long> next = iterator.next();
+        values.put(next.key, next.value);
+        lowestFirst.add(next);
+      }
+    }
+    while (lowestFirst.size() > size) {
+      remove(lowestFirst.first().key);
+    }
+  }
+
+  @Override
+  public void process(final String key, final Long value) {
+    if (value == null) {
+      if (values.containsKey(key)) {
+        remove(key);
+      }
+      return;
+    }
+
+    final Long previous = values.get(key);
+    if (previous != null) {
+      lowestFirst.remove(KeyValue.pair(key, previous));
+    } else if (values.size() >= size) {
+      final KeyValue<String, Long> lowest = lowestFirst.first();
+      if (LOWEST_FIRST.compare(KeyValue.pair(key, value), lowest) <= 0) {
+        return;
+      }
+      remove(lowest.key);
+    }
+    values.put(key, value);
+    lowestFirst.add(KeyValue.pair(key, value));
+    top.put(key, value);
+  }
+
+  private void remove(final String key) {
+    lowestFirst.remove(KeyValue.pair(key, values.remove(key)));
+    top.delete(key);
+  }
+
+  @Override
+  public void punctuate(final long timestamp) {
+  }
+
+  @Override
+  public void close() {
+  }
+
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries;
+
+import org.apache.kafka.streams.kstream.Windowed;
+import org.apache.kafka.streams.processor.Processor;
+import org.apache.kafka.streams.processor.ProcessorContext;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.KeyValueStore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maintains an index of a windowed table by time, i.e., which keys are active in each window.
+ *
+ * A window store can only be queried for the windows of a given key, so finding all keys of a time
+ * range means reading the whole store. The index is a key-value store whose keys start with the
+ * start of the window as a fixed-width hex number, followed by the key of the table, e.g.,
+ * "0000015d3ef79800kafka", and whose values are the latest values of the table. As the store
+ * orders its keys by their bytes, a time range is a key range that covers only the windows in it.
+ *
+ * The index is partitioned like the table, so it needs no repartitioning. Windows that are older
+ * than the retention period of the table are removed on punctuation, as the window store would.
+ */
+class WindowIndexProcessor implements Processor<Windowed<String>, Long> {
+
+  static final String INDEX_STORE_SUFFIX = "-index";
+
+  private static final int WINDOW_START_LENGTH = 16;
+
+  private final String indexStore;
+  private final long retentionMs;
+  private final long purgeIntervalMs;
+  private KeyValueStore<String, Long> index;
+
+  /**
+   * @param indexStore        the store that holds the index
+   * @param retentionMs       how long the windows are kept after they have started
+   * @param purgeIntervalMs   how often (in stream time) expired windows are removed
+   */
+  WindowIndexProcessor(final String indexStore, final long retentionMs, final long purgeIntervalMs) {
+    this.indexStore = indexStore;
+    this.retentionMs = retentionMs;
+    this.purgeIntervalMs = purgeIntervalMs;
+  }
+
+  /**
+   * The name of the store that holds the index of the given window store.
+   */
+  static String indexStoreName(final String windowStore) {
+    return windowStore + INDEX_STORE_SUFFIX;
+  }
+
+  /**
+   * The key of the index for the given key in the window that starts at the given time.
+   */
+  static String indexKey(final long windowStart, final String key) {
+    return String.format("%0" + WINDOW_START_LENGTH + "x", windowStart) + key;
+  }
+
+  /**
+   * The first key of the index for the window that starts at the given time.
+   */
+  static String firstIndexKey(final long windowStart) {
+    return indexKey(windowStart, "");
+  }
+
+  /**
+   * The last key of the index for the window that starts at the given time, see
+   * {@link KeyValueRangeOutput#LAST_KEY}.
+   */
+  static String lastIndexKey(final long windowStart) {
+    return indexKey(windowStart, KeyValueRangeOutput.LAST_KEY);
+  }
+
+  static long windowStart(final String indexKey) {
+    return Long.parseUnsignedLong(indexKey.substring(0, WINDOW_START_LENGTH), 16);
+  }
+
+  static String key(final String indexKey) {
+    return indexKey.substring(WINDOW_START_LENGTH);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void init(final ProcessorContext context) {
+    index = (KeyValueStore<String, Long>) context.getStateStore(indexStore);
+    context.schedule(purgeIntervalMs);
+  }
+
+  @Override
+  public void process(final Windowed<String> windowedKey, final Long value) {
+    final String key = indexKey(windowedKey.window().start(), windowedKey.key());
+    if (value == null) {
+      index.delete(key);
+    } else {
+      index.put(key, value);
+    }
+  }
+
+  @Override
+  public void punctuate(final long timestamp) {
+    final long expired = timestamp - retentionMs;
+    if (expired <= 0) {
+      return;
+    }
+    // collect the expired keys first rather than delete them while iterating over the store
+    final List<String> expiredKeys = new ArrayList<>();
+    try (final KeyValueIterator<String, Long> iterator = index.range(firstIndexKey(0), lastIndexKey(expired - 1))) {
+      while (iterator.hasNext()) {
+        expiredKeys.add(iterator.next().key);
+      }
+    }
+    for (final String key : expiredKeys) {
+      index.delete(key);
+    }
+  }
+
+  @Override
+  public void close() {
+  }
+
+}
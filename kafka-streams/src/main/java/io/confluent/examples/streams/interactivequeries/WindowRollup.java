@@ -0,0 +1,94 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries;
+
+import org.apache.kafka.streams.KeyValue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Rolls up the windows of a key, as returned by a window store, into the sum, minimum, maximum
+ * and number of their values, either over all of them or per coarser bucket, e.g., per hour of
+ * per-minute windows. The windows are aggregated one at a time while they are iterated over, as
+ * they arrive in the order of their start times, so only the aggregates are kept.
+ */
+final class WindowRollup {
+
+  private final long start;
+  private final long end;
+  private long sum = 0L;
+  private long min = Long.MAX_VALUE;
+  private long max = Long.MIN_VALUE;
+  private long count = 0L;
+
+  private WindowRollup(final long start, final long end) {
+    this.start = start;
+    this.end = end;
+  }
+
+  /**
+   * @param windows    the start times and values of the windows, in the order of their start times
+   * @param from       the start time of the earliest window that was queried
+   * @param to         the start time of the latest window that was queried
+   * @param bucketMs   the size of the buckets to roll the windows up into, aligned to the epoch, or
+   *                   null to roll all windows up into one from {@code from} to {@code to}
+   * @return the rollups of the buckets that have windows, in the order of their start times
+   */
+  static List<WindowRollupBean> rollUp(final Iterator<KeyValue<Long, Long>> windows,
+                                       final long from,
+                                       final long to,
+                                       final Long bucketMs) {
+    final List<WindowRollupBean> rollups = new ArrayList<>();
+    WindowRollup bucket = null;
+    while (windows.hasNext()) {
+      final KeyValue<Long, Long> window = windows.next();
+      if (window.value == null) {
+        continue;
+      }
+      if (bucket != null && window.key >= bucket.end) {
+        rollups.add(bucket.toBean());
+        bucket = null;
+      }
+      if (bucket == null) {
+        bucket = bucketMs == null
+                 ? new WindowRollup(from, to == Long.MAX_VALUE ? to : to + 1)
+                 : bucketOf(window.key, bucketMs);
+      }
+      bucket.add(window.value);
+    }
+    if (bucket != null) {
+      rollups.add(bucket.toBean());
+    }
+    return rollups;
+  }
+
+  private static WindowRollup bucketOf(final long windowStart, final long bucketMs) {
+    final long start = windowStart - Math.floorMod(windowStart, bucketMs);
+    return new WindowRollup(start, start + bucketMs);
+  }
+
+  private void add(final long value) {
+    sum += value;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+    count++;
+  }
+
+  private WindowRollupBean toBean() {
+    return new WindowRollupBean(start, end, sum, min, max, count);
+  }
+
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries;
+
+import java.util.Objects;
+
+/**
+ * The aggregates of the values of a key over the windows that start from {@code start} (inclusive)
+ * to {@code end} (exclusive), as returned by
+ * {@link WordCountInteractiveQueriesRestService#windowedRollup(String, String, Long, Long, Long)}.
+ * {@code count} is the number of windows that have a value.
+ */
+public class WindowRollupBean {
+
+  private Long start;
+  private Long end;
+  private Long sum;
+  private Long min;
+  private Long max;
+  private Long count;
+
+  public WindowRollupBean() {}
+
+  public WindowRollupBean(final Long start,
+                          final Long end,
+                          final Long sum,
+                          final Long min,
+                          final Long max,
+                          final Long count) {
+    this.start = start;
+    this.end = end;
+    this.sum = sum;
+    this.min = min;
+    this.max = max;
+    this.count = count;
+  }
+
+  public Long getStart() {
+    return start;
+  }
+
+  public void setStart(final Long start) {
+    this.start = start;
+  }
+
+  public Long getEnd() {
+    return end;
+  }
+
+  public void setEnd(final Long end) {
+    this.end = end;
+  }
+
+  public Long getSum() {
+    return sum;
+  }
+
+  public void setSum(final Long sum) {
+    this.sum = sum;
+  }
+
+  public Long getMin() {
+    return min;
+  }
+
+  public void setMin(final Long min) {
+    this.min = min;
+  }
+
+  public Long getMax() {
+    return max;
+  }
+
+  public void setMax(final Long max) {
+    this.max = max;
+  }
+
+  public Long getCount() {
+    return count;
+  }
+
+  public void setCount(final Long count) {
+    this.count = count;
+  }
+
+  @Override
+  public String toString() {
+    return "WindowRollupBean{" +
+           "start=" + start +
+           ", end=" + end +
+           ", sum=" + sum +
+           ", min=" + min +
+           ", max=" + max +
+           ", count=" + count +
+           '}';
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    final WindowRollupBean that = (WindowRollupBean) o;
+    return Objects.equals(start, that.start) &&
+           Objects.equals(end, that.end) &&
+           Objects.equals(sum, that.sum) &&
+           Objects.equals(min, that.min) &&
+           Objects.equals(max, that.max) &&
+           Objects.equals(count, that.count);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(start, end, sum, min, max, count);
+  }
+}
@@ -20,12 +20,18 @@ import org.apache.kafka.streams.StreamsConfig;
 import org.apache.kafka.streams.kstream.KGroupedStream;
 import org.apache.kafka.streams.kstream.KStream;
 import org.apache.kafka.streams.kstream.KStreamBuilder;
+import org.apache.kafka.streams.kstream.KTable;
 import org.apache.kafka.streams.kstream.TimeWindows;
+import org.apache.kafka.streams.kstream.Windowed;
+import org.apache.kafka.streams.processor.StateStoreSupplier;
+import org.apache.kafka.streams.state.HostInfo;
+import org.apache.kafka.streams.state.Stores;
 
 import java.io.File;
 import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -113,11 +119,29 @@ import java.util.Properties;
  * # localhost:7070
  * http://localhost:7070/state/keyvalues/word-count/all
  *
+ * # Get the first 100 key-value records from the "word-count" state store across all instances
+ * http://localhost:7070/state/cluster/keyvalues/word-count/all?limit=100
+ *
  * # Find the app instance that contains key "hello" (if it exists) for the state store "word-count"
  * http://localhost:7070/state/instance/word-count/hello
  *
  * # Get the latest value for key "hello" in state store "word-count"
  * http://localhost:7070/state/keyvalue/word-count/hello
+ *
+ * # Get the ten most frequent words in state store "word-count" across all instances
+ * http://localhost:7070/state/cluster/keyvalues/word-count/top?n=10
+ *
+ * # Get the latest values for keys "hello" and "world" in state store "word-count", wherever they
+ * # are hosted
+ * curl -X POST -H "Content-Type: application/json" -d '["hello", "world"]' \
+ *      http://localhost:7070/state/cluster/keyvalues/word-count/get
+ *
+ * # Get the ten most frequent words of the windows that started between the given times in
+ * # state store "windowed-word-count" hosted on the instance running localhost:7070
+ * http://localhost:7070/state/windowedkeys/windowed-word-count/1500000000000/1500000300000?top=10
+ *
+ * # Get the hourly totals of the per-minute counts of "hello" in state store "windowed-word-count"
+ * http://localhost:7070/state/windowed/windowed-word-count/hello/1500000000000/1500086400000/rollup?bucket=3600000
  * }
  * </pre>
  *
@@ -135,6 +159,13 @@ import java.util.Properties;
 public class WordCountInteractiveQueriesExample {
 
   static final String TEXT_LINES_TOPIC = "TextLinesTopic";
+  static final String WORD_COUNT = "word-count";
+  static final String WINDOWED_WORD_COUNT = "windowed-word-count";
+  // the number of most frequent words that are kept track of per partition
+  static final int TOP_WORDS_SIZE = 100;
+  static final long WINDOW_SIZE_MS = 60000L;
+  // the default retention of windows, which the index of the windowed word counts adheres to
+  static final long WINDOW_RETENTION_MS = TimeUnit.DAYS.toMillis(1);
 
   public static void main(String[] args) throws Exception {
     if (args.length == 0 || args.length > 2) {
@@ -167,13 +198,17 @@ public class WordCountInteractiveQueriesExample {
     // is truly needed, i.e., only under certain conditions (e.g., the presence of a command line flag for your app).
     // See `ApplicationResetExample.java` for a production-like example.
     streams.cleanUp();
+    // Route the keys of interactive queries to the instances that host them. The routing table
+    // needs to be told about rebalances, so it must be registered before the streams are started.
+    final PartitionRoutingTable routingTable = new PartitionRoutingTable(streams);
+    streams.setStateListener(routingTable);
     // Now that we have finished the definition of the processing topology we can actually run
     // it via `start()`.  The Streams application as a whole can be launched just like any
     // normal Java application that has a `main()` method.
     streams.start();
 
     // Start the Restful proxy for servicing remote access to state stores
-    final WordCountInteractiveQueriesRestService restService = startRestProxy(streams, port);
+    final WordCountInteractiveQueriesRestService restService = startRestProxy(streams, routingTable, port);
 
     // Add shutdown hook to respond to SIGTERM and gracefully close Kafka Streams
     Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -187,10 +222,13 @@ public class WordCountInteractiveQueriesExample {
   }
 
 
-  static WordCountInteractiveQueriesRestService startRestProxy(final KafkaStreams streams, final int port)
+  static WordCountInteractiveQueriesRestService startRestProxy(final KafkaStreams streams,
+                                                               final PartitionRoutingTable routingTable,
+                                                               final int port)
       throws Exception {
     final WordCountInteractiveQueriesRestService
-        wordCountInteractiveQueriesRestService = new WordCountInteractiveQueriesRestService(streams);
+        wordCountInteractiveQueriesRestService =
+        new WordCountInteractiveQueriesRestService(streams, new HostInfo("localhost", port), routingTable);
     wordCountInteractiveQueriesRestService.start(port);
     return wordCountInteractiveQueriesRestService;
   }
@@ -206,11 +244,34 @@ public class WordCountInteractiveQueriesExample {
         .groupBy((key, word) -> word, stringSerde, stringSerde);
 
     // Create a State Store for with the all time word count
-    groupedByWord.count("word-count");
+    final KTable<String, Long> wordCounts = groupedByWord.count(WORD_COUNT);
+
+    // Keep track of the most frequent words, so that they can be queried without sorting all words
+    final StateStoreSupplier topWords = Stores.create(TopKeysProcessor.topStoreName(WORD_COUNT))
+        .withKeys(stringSerde)
+        .withValues(Serdes.Long())
+        .persistent()
+        .build();
+    builder.addStateStore(topWords);
+    wordCounts.toStream()
+        .process(() -> new TopKeysProcessor(topWords.name(), TOP_WORDS_SIZE), topWords.name());
 
     // Create a Windowed State Store that contains the word count for every
     // 1 minute
-    groupedByWord.count(TimeWindows.of(60000), "windowed-word-count");
+    final KTable<Windowed<String>, Long> windowedWordCounts =
+        groupedByWord.count(TimeWindows.of(WINDOW_SIZE_MS).until(WINDOW_RETENTION_MS), WINDOWED_WORD_COUNT);
+
+    // Index the windowed word counts by time, so that all words of a time range can be queried
+    // without reading the windows of every word
+    final StateStoreSupplier windowIndex = Stores.create(WindowIndexProcessor.indexStoreName(WINDOWED_WORD_COUNT))
+        .withKeys(stringSerde)
+        .withValues(Serdes.Long())
+        .persistent()
+        .build();
+    builder.addStateStore(windowIndex);
+    windowedWordCounts.toStream()
+        .process(() -> new WindowIndexProcessor(windowIndex.name(), WINDOW_RETENTION_MS, WINDOW_SIZE_MS),
+                 windowIndex.name());
 
     return new KafkaStreams(builder, streamsConfiguration);
   }
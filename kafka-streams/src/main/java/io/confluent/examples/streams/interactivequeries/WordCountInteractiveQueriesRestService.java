@@ -13,9 +13,14 @@
  */
 package io.confluent.examples.streams.interactivequeries;
 
+import org.apache.kafka.common.metrics.JmxReporter;
+import org.apache.kafka.common.metrics.MetricConfig;
+import org.apache.kafka.common.metrics.Metrics;
 import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.common.utils.Time;
 import org.apache.kafka.streams.KafkaStreams;
 import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.state.HostInfo;
 import org.apache.kafka.streams.state.KeyValueIterator;
 import org.apache.kafka.streams.state.QueryableStoreTypes;
 import org.apache.kafka.streams.state.ReadOnlyKeyValueStore;
@@ -24,36 +29,138 @@ import org.apache.kafka.streams.state.WindowStoreIterator;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.glassfish.jersey.client.ClientProperties;
 import org.glassfish.jersey.jackson.JacksonFeature;
 import org.glassfish.jersey.server.ResourceConfig;
 import org.glassfish.jersey.servlet.ServletContainer;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.function.Function;
-
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.NotFoundException;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
 
 /**
  *  A simple REST proxy that runs embedded in the {@link WordCountInteractiveQueriesExample}. This is used to
  *  demonstrate how a developer can use the Interactive Queries APIs exposed by Kafka Streams to
  *  locate and query the State Stores within a Kafka Streams Application.
+ *
+ *  All endpoints answer with JSON by default. Clients that ask for Avro binary or Smile in the
+ *  Accept header, see {@link AvroProvider} and {@link SmileProvider}, get the same response in
+ *  that format, which is smaller and cheaper to produce.
+ *
+ *  The key-value pairs of a store, or of a range of its keys, are written while the store is
+ *  read, ordered by key, and can be paged through with the query parameters {@code limit} and
+ *  {@code after}, e.g., {@code /state/keyvalues/word-count/all?limit=100&after=kafka} for the
+ *  (at most) 100 words that follow "kafka".
+ *
+ *  The same queries under {@code /state/cluster/keyvalues} cover the whole store rather than the
+ *  partitions hosted by this instance. They are sent to all instances that host the store at
+ *  once, which stream back their sorted entries, and the entries are merged while they arrive.
+ *  Like all cluster-wide queries, they are asynchronous: the Jetty thread is released while the
+ *  other instances are queried, and the request is resumed once they have answered.
+ *
+ *  Many keys are looked up at once by posting a list of them to
+ *  {@code /state/cluster/keyvalues/word-count/get}. The keys are grouped by the instance that
+ *  hosts them, and every other instance is asked for all of its keys in a single request.
+ *
+ *  The most frequent words are kept track of while the words are counted, see
+ *  {@link TopKeysProcessor}, so {@code /state/cluster/keyvalues/word-count/top?n=10} reads only
+ *  the top words of every instance and merges them rather than sorting all words.
+ *
+ *  The words counted in a range of windows, e.g., the last five minutes, are found through an
+ *  index of the windowed counts by time, see {@link WindowIndexProcessor}, rather than by
+ *  fetching the windows of every word. The windows of a word can be rolled up into the sum,
+ *  minimum, maximum and number of their counts, e.g., hourly totals of the per-minute counts with
+ *  {@code /state/windowed/windowed-word-count/kafka/0/<now>/rollup?bucket=3600000}, which are
+ *  computed while the windows are read, so that only the totals are sent.
  */
 @Path("state")
 public class WordCountInteractiveQueriesRestService {
 
+  // The number of requests each endpoint works on concurrently, and how many requests may wait
+  // for how long before they are rejected
+  private static final int ENDPOINT_MAX_CONCURRENT = 32;
+  private static final int ENDPOINT_MAX_QUEUED = 64;
+  private static final long ENDPOINT_MAX_QUEUE_MS = 100L;
+  private static final int REMOTE_QUERY_THREADS = 16;
+  private static final int REMOTE_QUERY_QUEUE_SIZE = 256;
+  private static final long REMOTE_QUERY_TIMEOUT_MS = 5000L;
+  private static final StringSerializer STRING_SERIALIZER = new StringSerializer();
+  private static final int DEFAULT_TOP_SIZE = 10;
+  // orders key-value pairs by value, from the highest to the lowest, and then by key
+  private static final Comparator<KeyValueBean> HIGHEST_FIRST =
+      Comparator.comparing(KeyValueBean::getValue).reversed()
+          .thenComparing((a, b) -> KeyValueRangeOutput.compare(a.getKey(), b.getKey()));
+  // lists the instances that did not answer a cluster-wide query in time, if any
+  static final String MISSING_INSTANCES_HEADER = "X-Missing-Instances";
+
   private final KafkaStreams streams;
   private final MetadataService metadataService;
+  private final Metrics metrics =
+      new Metrics(new MetricConfig(), Collections.singletonList(new JmxReporter("kafka.wordcount")), Time.SYSTEM);
+  private final AdmissionController admissionController =
+      new AdmissionController("word-count", ENDPOINT_MAX_CONCURRENT, ENDPOINT_MAX_QUEUED, ENDPOINT_MAX_QUEUE_MS,
+                              metrics);
+  private final Client client = ClientBuilder.newBuilder()
+      .property(ClientProperties.CONNECT_TIMEOUT, (int) REMOTE_QUERY_TIMEOUT_MS)
+      .property(ClientProperties.READ_TIMEOUT, (int) REMOTE_QUERY_TIMEOUT_MS)
+      .register(SmileProvider.class)
+      .build();
+  private final RemoteQueryExecutor remoteQueries =
+      new RemoteQueryExecutor("word-count", REMOTE_QUERY_THREADS, REMOTE_QUERY_QUEUE_SIZE, REMOTE_QUERY_TIMEOUT_MS,
+                              metrics);
+  // The entries of a cluster-wide range query are merged while the response is written, which
+  // happens on the thread that resumes the request, so that is left to threads of their own
+  // rather than to whichever thread completed the last remote call
+  private final AtomicInteger rangeWriterCount = new AtomicInteger();
+  private final ExecutorService rangeWriters = Executors.newCachedThreadPool(r -> {
+    final Thread thread = new Thread(r, "word-count-range-writer-" + rangeWriterCount.incrementAndGet());
+    thread.setDaemon(true);
+    return thread;
+  });
   private Server jettyServer;
 
-  WordCountInteractiveQueriesRestService(final KafkaStreams streams) {
+  WordCountInteractiveQueriesRestService(final KafkaStreams streams,
+                                         final HostInfo hostInfo,
+                                         final PartitionRoutingTable routingTable) {
     this.streams = streams;
-    this.metadataService = new MetadataService(streams);
+    this.metadataService = new MetadataService(streams, hostInfo, routingTable);
   }
 
   /**
@@ -64,7 +171,7 @@ public class WordCountInteractiveQueriesRestService {
    */
   @GET
   @Path("/keyvalue/{storeName}/{key}")
-  @Produces(MediaType.APPLICATION_JSON)
+  @Produces({MediaType.APPLICATION_JSON, AvroProvider.AVRO_BINARY, SmileProvider.SMILE})
   public KeyValueBean byKey(@PathParam("storeName") final String storeName,
                         @PathParam("key") final String key) {
 
@@ -83,34 +190,335 @@ public class WordCountInteractiveQueriesRestService {
   }
 
   /**
-   * Get all of the key-value pairs available in a store
+   * Get the key-value pairs of the given keys that are hosted by this instance. Keys that are
+   * not found are left out of the result.
+   * @param storeName   the store to look in
+   * @param keys        the keys to get
+   * @return List of {@link KeyValueBean}s in the order of the given keys
+   */
+  @POST
+  @Path("/keyvalues/{storeName}/get")
+  @Consumes({MediaType.APPLICATION_JSON, AvroProvider.AVRO_BINARY, SmileProvider.SMILE})
+  @Produces({MediaType.APPLICATION_JSON, AvroProvider.AVRO_BINARY, SmileProvider.SMILE})
+  public List<KeyValueBean> byKeys(@PathParam("storeName") final String storeName,
+                                   final List<String> keys) {
+    final Map<String, Long> values = localValues(storeName, keys);
+    final List<KeyValueBean> results = new ArrayList<>(values.size());
+    values.forEach((key, value) -> results.add(new KeyValueBean(key, value)));
+    return results;
+  }
+
+  /**
+   * Get the key-value pairs of the given keys from the instances that host them. Keys that are
+   * not found are left out of the result.
+   * @param storeName   the store to look in
+   * @param keys        the keys to get
+   * @return List of {@link KeyValueBean}s in the order of the given keys, with the instances that
+   * did not answer in time listed in the {@value #MISSING_INSTANCES_HEADER} header
+   */
+  @POST
+  @Path("/cluster/keyvalues/{storeName}/get")
+  @Consumes({MediaType.APPLICATION_JSON, AvroProvider.AVRO_BINARY, SmileProvider.SMILE})
+  @Produces({MediaType.APPLICATION_JSON, AvroProvider.AVRO_BINARY, SmileProvider.SMILE})
+  public void clusterByKeys(@PathParam("storeName") final String storeName,
+                            @HeaderParam(AdmissionController.TIMEOUT_HEADER) final String timeout,
+                            final List<String> keys,
+                            @Suspended final AsyncResponse asyncResponse) {
+    if (keys == null) {
+      throw new BadRequestException("No keys were given");
+    }
+    final long timeoutMs = AdmissionController.timeoutMs(timeout, REMOTE_QUERY_TIMEOUT_MS);
+    final Map<HostStoreInfo, List<String>> keysByHost =
+        metadataService.streamsMetadataForStoreAndKeys(storeName, new LinkedHashSet<>(keys), STRING_SERIALIZER);
+
+    // kick off the lookups on the other instances first, so that they run while we look in the
+    // local store
+    final Map<HostStoreInfo, CompletableFuture<List<KeyValueBean>>> remoteLookups = new LinkedHashMap<>();
+    keysByHost.forEach((host, hostKeys) -> {
+      if (!metadataService.isThisHost(host)) {
+        remoteLookups.put(host, remoteQueries.submit(() -> fetchValues(host, storeName, hostKeys, timeoutMs),
+                                                     timeoutMs));
+      }
+    });
+
+    final Map<String, Long> values = new HashMap<>();
+    keysByHost.forEach((host, hostKeys) -> {
+      if (metadataService.isThisHost(host)) {
+        values.putAll(localValues(storeName, hostKeys));
+      }
+    });
+
+    RemoteQueryExecutor.resume(asyncResponse, allSettled(remoteLookups.values()).thenApply(done -> {
+      final List<String> missingInstances = new ArrayList<>();
+      remoteLookups.forEach((host, remoteLookup) -> {
+        if (remoteLookup.isCompletedExceptionally()) {
+          missingInstances.add(host.getHost() + ":" + host.getPort());
+          return;
+        }
+        for (final KeyValueBean remoteValue : remoteLookup.join()) {
+          values.put(remoteValue.getKey(), remoteValue.getValue());
+        }
+      });
+      if (!remoteLookups.isEmpty() && missingInstances.size() == keysByHost.size()) {
+        throw new ServiceUnavailableException("No instance hosting " + storeName + " answered in time", 1L);
+      }
+
+      final List<KeyValueBean> results = new ArrayList<>(values.size());
+      for (final String key : new LinkedHashSet<>(keys)) {
+        final Long value = values.get(key);
+        if (value != null) {
+          results.add(new KeyValueBean(key, value));
+        }
+      }
+      final Response.ResponseBuilder response = Response.ok(new GenericEntity<List<KeyValueBean>>(results) { });
+      if (!missingInstances.isEmpty()) {
+        response.header(MISSING_INSTANCES_HEADER, String.join(",", missingInstances));
+      }
+      return response.build();
+    }), timeoutMs);
+  }
+
+  /**
+   * A future that completes once all of the given calls have completed, whether they succeeded or
+   * not.
+   */
+  private static CompletableFuture<Void> allSettled(final Collection<? extends CompletableFuture<?>> calls) {
+    return CompletableFuture.allOf(calls.stream()
+                                       .map(call -> call.handle((value, exception) -> null))
+                                       .toArray(CompletableFuture<?>[]::new));
+  }
+
+  /**
+   * Look up the given keys in the local partitions of a store, in a single pass.
+   * @return the values of the keys that were found, in the order of the keys
+   */
+  private Map<String, Long> localValues(final String storeName, final Collection<String> keys) {
+    final ReadOnlyKeyValueStore<String, Long> store =
+        streams.store(storeName, QueryableStoreTypes.<String, Long>keyValueStore());
+    final Map<String, Long> values = new LinkedHashMap<>();
+    for (final String key : keys) {
+      final Long value = store.get(key);
+      if (value != null) {
+        values.put(key, value);
+      }
+    }
+    return values;
+  }
+
+  private List<KeyValueBean> fetchValues(final HostStoreInfo host,
+                                         final String storeName,
+                                         final List<String> keys,
+                                         final long timeoutMs) {
+    return client.target("http://" + host.getHost() + ":" + host.getPort())
+        .path("state/keyvalues").path(storeName).path("get")
+        .request(SmileProvider.SMILE_TYPE)
+        .header(AdmissionController.TIMEOUT_HEADER, timeoutMs)
+        .post(Entity.entity(new GenericEntity<List<String>>(keys) { }, SmileProvider.SMILE_TYPE),
+              new GenericType<List<KeyValueBean>>() {
+              });
+  }
+
+  /**
+   * Get all of the key-value pairs available in a store, ordered by key
    * @param storeName   store to query
+   * @param after       the key to continue after, i.e., the last key of the previous page (optional)
+   * @param limit       the maximum number of key-value pairs to return (optional)
    * @return A List of {@link KeyValueBean}s representing all of the key-values in the provided
-   * store
+   * store, which is written while the store is read
    */
   @GET()
   @Path("/keyvalues/{storeName}/all")
-  @Produces(MediaType.APPLICATION_JSON)
-  public List<KeyValueBean> allForStore(@PathParam("storeName") final String storeName) {
-    return rangeForKeyValueStore(storeName, ReadOnlyKeyValueStore::all);
+  @Produces({MediaType.APPLICATION_JSON, AvroProvider.AVRO_BINARY, SmileProvider.SMILE})
+  public Response allForStore(@PathParam("storeName") final String storeName,
+                              @QueryParam("after") final String after,
+                              @QueryParam("limit") final Integer limit,
+                              @Context final Request request) {
+    return rangeForKeyValueStore(storeName, null, null, after, limit, request);
   }
 
 
   /**
-   * Get all of the key-value pairs that have keys within the range from...to
+   * Get all of the key-value pairs that have keys within the range from...to, ordered by key
    * @param storeName   store to query
    * @param from        start of the range (inclusive)
    * @param to          end of the range (inclusive)
+   * @param after       the key to continue after, i.e., the last key of the previous page (optional)
+   * @param limit       the maximum number of key-value pairs to return (optional)
    * @return A List of {@link KeyValueBean}s representing all of the key-values in the provided
-   * store that fall withing the given range.
+   * store that fall withing the given range, which is written while the store is read
    */
   @GET()
   @Path("/keyvalues/{storeName}/range/{from}/{to}")
-  @Produces(MediaType.APPLICATION_JSON)
-  public List<KeyValueBean> keyRangeForStore(@PathParam("storeName") final String storeName,
-                                             @PathParam("from") final String from,
-                                             @PathParam("to") final String to) {
-    return rangeForKeyValueStore(storeName, store -> store.range(from, to));
+  @Produces({MediaType.APPLICATION_JSON, AvroProvider.AVRO_BINARY, SmileProvider.SMILE})
+  public Response keyRangeForStore(@PathParam("storeName") final String storeName,
+                                   @PathParam("from") final String from,
+                                   @PathParam("to") final String to,
+                                   @QueryParam("after") final String after,
+                                   @QueryParam("limit") final Integer limit,
+                                   @Context final Request request) {
+    return rangeForKeyValueStore(storeName, from, to, after, limit, request);
+  }
+
+  /**
+   * Get all of the key-value pairs available in a store across all instances, ordered by key
+   * @param storeName   store to query
+   * @param after       the key to continue after, i.e., the last key of the previous page (optional)
+   * @param limit       the maximum number of key-value pairs to return (optional)
+   * @return A List of {@link KeyValueBean}s representing all of the key-values in the provided
+   * store, with the instances that did not answer in time listed in the
+   * {@value #MISSING_INSTANCES_HEADER} header
+   */
+  @GET()
+  @Path("/cluster/keyvalues/{storeName}/all")
+  @Produces({MediaType.APPLICATION_JSON, AvroProvider.AVRO_BINARY, SmileProvider.SMILE})
+  public void clusterAllForStore(@PathParam("storeName") final String storeName,
+                                 @QueryParam("after") final String after,
+                                 @QueryParam("limit") final Integer limit,
+                                 @HeaderParam(AdmissionController.TIMEOUT_HEADER) final String timeout,
+                                 @Context final Request request,
+                                 @Suspended final AsyncResponse asyncResponse) {
+    clusterRangeForKeyValueStore(storeName, null, null, after, limit, timeout, request, asyncResponse);
+  }
+
+  /**
+   * Get all of the key-value pairs that have keys within the range from...to across all
+   * instances, ordered by key
+   * @param storeName   store to query
+   * @param from        start of the range (inclusive)
+   * @param to          end of the range (inclusive)
+   * @param after       the key to continue after, i.e., the last key of the previous page (optional)
+   * @param limit       the maximum number of key-value pairs to return (optional)
+   * @return A List of {@link KeyValueBean}s representing all of the key-values in the provided
+   * store that fall withing the given range, with the instances that did not answer in time listed
+   * in the {@value #MISSING_INSTANCES_HEADER} header
+   */
+  @GET()
+  @Path("/cluster/keyvalues/{storeName}/range/{from}/{to}")
+  @Produces({MediaType.APPLICATION_JSON, AvroProvider.AVRO_BINARY, SmileProvider.SMILE})
+  public void clusterKeyRangeForStore(@PathParam("storeName") final String storeName,
+                                      @PathParam("from") final String from,
+                                      @PathParam("to") final String to,
+                                      @QueryParam("after") final String after,
+                                      @QueryParam("limit") final Integer limit,
+                                      @HeaderParam(AdmissionController.TIMEOUT_HEADER) final String timeout,
+                                      @Context final Request request,
+                                      @Suspended final AsyncResponse asyncResponse) {
+    clusterRangeForKeyValueStore(storeName, from, to, after, limit, timeout, request, asyncResponse);
+  }
+
+  /**
+   * Get the key-value pairs with the highest values of a KeyValue Store that are hosted by this
+   * instance, e.g., the most frequent words, see {@link TopKeysProcessor}
+   * @param storeName   store to query
+   * @param n           the number of key-value pairs to return (optional, 10 by default)
+   * @return A List of {@link KeyValueBean}s ordered by value in descending order
+   */
+  @GET()
+  @Path("/keyvalues/{storeName}/top")
+  @Produces({MediaType.APPLICATION_JSON, AvroProvider.AVRO_BINARY, SmileProvider.SMILE})
+  public List<KeyValueBean> topForStore(@PathParam("storeName") final String storeName,
+                                        @QueryParam("n") final Integer n) {
+    return localTop(storeName, topSize(n));
+  }
+
+  /**
+   * Get the key-value pairs with the highest values of a KeyValue Store across all instances
+   * @param storeName   store to query
+   * @param n           the number of key-value pairs to return (optional, 10 by default)
+   * @return A List of {@link KeyValueBean}s ordered by value in descending order, with the
+   * instances that did not answer in time listed in the {@value #MISSING_INSTANCES_HEADER} header
+   */
+  @GET()
+  @Path("/cluster/keyvalues/{storeName}/top")
+  @Produces({MediaType.APPLICATION_JSON, AvroProvider.AVRO_BINARY, SmileProvider.SMILE})
+  public void clusterTopForStore(@PathParam("storeName") final String storeName,
+                                 @QueryParam("n") final Integer n,
+                                 @HeaderParam(AdmissionController.TIMEOUT_HEADER) final String timeout,
+                                 @Suspended final AsyncResponse asyncResponse) {
+    final int size = topSize(n);
+    final long timeoutMs = AdmissionController.timeoutMs(timeout, REMOTE_QUERY_TIMEOUT_MS);
+    final List<HostStoreInfo> hosts = metadataService.streamsMetadataForStore(TopKeysProcessor.topStoreName(storeName));
+    if (hosts.isEmpty()) {
+      throw new NotFoundException();
+    }
+
+    // The keys are partitioned, so the top keys of the store are among the top keys of each
+    // instance. Kick off the queries of the other instances first, so that they run while we
+    // read the local top keys.
+    final Map<HostStoreInfo, CompletableFuture<List<KeyValueBean>>> remoteTops = new LinkedHashMap<>();
+    for (final HostStoreInfo host : hosts) {
+      if (!metadataService.isThisHost(host)) {
+        remoteTops.put(host, remoteQueries.submit(() -> fetchTop(host, storeName, size, timeoutMs), timeoutMs));
+      }
+    }
+    final List<KeyValueBean> candidates = new ArrayList<>();
+    for (final HostStoreInfo host : hosts) {
+      if (metadataService.isThisHost(host)) {
+        candidates.addAll(localTop(storeName, size));
+      }
+    }
+
+    RemoteQueryExecutor.resume(asyncResponse, allSettled(remoteTops.values()).thenApply(done -> {
+      final List<String> missingInstances = new ArrayList<>();
+      remoteTops.forEach((host, remoteTop) -> {
+        if (remoteTop.isCompletedExceptionally()) {
+          missingInstances.add(host.getHost() + ":" + host.getPort());
+        } else {
+          candidates.addAll(remoteTop.join());
+        }
+      });
+      if (missingInstances.size() == hosts.size()) {
+        throw new ServiceUnavailableException("No instance hosting " + storeName + " answered in time", 1L);
+      }
+
+      candidates.sort(HIGHEST_FIRST);
+      final List<KeyValueBean> top = new ArrayList<>(candidates.subList(0, Math.min(size, candidates.size())));
+      final Response.ResponseBuilder response = Response.ok(new GenericEntity<List<KeyValueBean>>(top) { });
+      if (!missingInstances.isEmpty()) {
+        response.header(MISSING_INSTANCES_HEADER, String.join(",", missingInstances));
+      }
+      return response.build();
+    }), timeoutMs);
+  }
+
+  private static int topSize(final Integer n) {
+    final int size = n != null ? n : DEFAULT_TOP_SIZE;
+    if (size <= 0 || size > WordCountInteractiveQueriesExample.TOP_WORDS_SIZE) {
+      throw new BadRequestException("n must be between 1 and " + WordCountInteractiveQueriesExample.TOP_WORDS_SIZE
+                                    + ", but was " + size);
+    }
+    return size;
+  }
+
+  /**
+   * Read the top keys of the local partitions of a store, which are at most
+   * {@link WordCountInteractiveQueriesExample#TOP_WORDS_SIZE} per partition rather than all keys.
+   */
+  private List<KeyValueBean> localTop(final String storeName, final int size) {
+    final ReadOnlyKeyValueStore<String, Long> topStore =
+        streams.store(TopKeysProcessor.topStoreName(storeName), QueryableStoreTypes.<String, Long>keyValueStore());
+    final List<KeyValueBean> candidates = new ArrayList<>();
+    try (final KeyValueIterator<String, Long> iterator = topStore.all()) {
+      while (iterator.hasNext()) {
+        final KeyValue<String, Long> next = iterator.next();
+        candidates.add(new KeyValueBean(next.key, next.value));
+      }
+    }
+    candidates.sort(HIGHEST_FIRST);
+    return new ArrayList<>(candidates.subList(0, Math.min(size, candidates.size())));
+  }
+
+  private List<KeyValueBean> fetchTop(final HostStoreInfo host,
+                                      final String storeName,
+                                      final int size,
+                                      final long timeoutMs) {
+    return client.target("http://" + host.getHost() + ":" + host.getPort())
+        .path("state/keyvalues").path(storeName).path("top")
+        .queryParam("n", size)
+        .request(SmileProvider.SMILE_TYPE)
+        .header(AdmissionController.TIMEOUT_HEADER, timeoutMs)
+        .get(new GenericType<List<KeyValueBean>>() {
+        });
   }
 
   /**
@@ -125,7 +533,7 @@ public class WordCountInteractiveQueriesRestService {
    */
   @GET()
   @Path("/windowed/{storeName}/{key}/{from}/{to}")
-  @Produces(MediaType.APPLICATION_JSON)
+  @Produces({MediaType.APPLICATION_JSON, AvroProvider.AVRO_BINARY, SmileProvider.SMILE})
   public List<KeyValueBean> windowedByKey(@PathParam("storeName") final String storeName,
                                           @PathParam("key") final String key,
                                           @PathParam("from") final Long from,
@@ -139,24 +547,119 @@ public class WordCountInteractiveQueriesRestService {
     }
 
     // fetch the window results for the given key and time range
-    final WindowStoreIterator<Long> results = store.fetch(key, from, to);
-
     final List<KeyValueBean> windowResults = new ArrayList<>();
-    while (results.hasNext()) {
-      final KeyValue<Long, Long> next = results.next();
-      // convert the result to have the window time and the key (for display purposes)
-      windowResults.add(new KeyValueBean(key + "@" + next.key, next.value));
+    try (final WindowStoreIterator<Long> results = store.fetch(key, from, to)) {
+      while (results.hasNext()) {
+        final KeyValue<Long, Long> next = results.next();
+        // convert the result to have the window time and the key (for display purposes)
+        windowResults.add(new KeyValueBean(key + "@" + next.key, next.value));
+      }
     }
     return windowResults;
   }
 
+  /**
+   * Query a window store for the sum, minimum, maximum and number of the values of a key within a
+   * range of windows, e.g., the total count of a word over the last day, rather than for the values
+   * of all the windows
+   * @param storeName   store to query
+   * @param key         key to look for
+   * @param from        time of earliest window to query
+   * @param to          time of latest window to query
+   * @param bucket      the size in ms of coarser buckets, aligned to the epoch, to roll the windows
+   *                    up into, e.g., 3600000 for hourly rollups (optional)
+   * @return A List of {@link WindowRollupBean}s, one for the whole window range or one per bucket,
+   * leaving out the buckets that have no windows
+   */
+  @GET()
+  @Path("/windowed/{storeName}/{key}/{from}/{to}/rollup")
+  @Produces({MediaType.APPLICATION_JSON, AvroProvider.AVRO_BINARY, SmileProvider.SMILE})
+  public List<WindowRollupBean> windowedRollup(@PathParam("storeName") final String storeName,
+                                               @PathParam("key") final String key,
+                                               @PathParam("from") final Long from,
+                                               @PathParam("to") final Long to,
+                                               @QueryParam("bucket") final Long bucket) {
+    if (from > to) {
+      throw new BadRequestException("Invalid time range " + from + " to " + to);
+    }
+    if (bucket != null && bucket <= 0) {
+      throw new BadRequestException("bucket must be positive, but was " + bucket);
+    }
+
+    final ReadOnlyWindowStore<String, Long> store = streams.store(storeName,
+                                                                  QueryableStoreTypes.<String, Long>windowStore());
+    try (final WindowStoreIterator<Long> windows = store.fetch(key, from, to)) {
+      return WindowRollup.rollUp(windows, from, to, bucket);
+    }
+  }
+
+  /**
+   * Query the time index of a window store, see {@link WindowIndexProcessor}, for all keys that
+   * are active in a range of windows, along with their values summed up over these windows. Only
+   * the part of the index that covers the range is read.
+   * @param storeName   window store to query
+   * @param from        start time of the earliest window to query
+   * @param to          start time of the latest window to query
+   * @param top         the number of keys with the highest values to return (optional)
+   * @return A List of {@link KeyValueBean}s ordered by key, or, if {@code top} is given, by value
+   * in descending order
+   */
+  @GET()
+  @Path("/windowedkeys/{storeName}/{from}/{to}")
+  @Produces({MediaType.APPLICATION_JSON, AvroProvider.AVRO_BINARY, SmileProvider.SMILE})
+  public List<KeyValueBean> windowedKeys(@PathParam("storeName") final String storeName,
+                                         @PathParam("from") final Long from,
+                                         @PathParam("to") final Long to,
+                                         @QueryParam("top") final Integer top) {
+    if (from < 0 || from > to) {
+      throw new BadRequestException("Invalid time range " + from + " to " + to);
+    }
+    if (top != null && top <= 0) {
+      throw new BadRequestException("top must be positive, but was " + top);
+    }
+
+    final ReadOnlyKeyValueStore<String, Long> index =
+        streams.store(WindowIndexProcessor.indexStoreName(storeName), QueryableStoreTypes.<String, Long>keyValueStore());
+    final Map<String, Long> totals = new HashMap<>();
+    try (final KeyValueIterator<String, Long> windows =
+             index.range(WindowIndexProcessor.firstIndexKey(from), WindowIndexProcessor.lastIndexKey(to))) {
+      while (windows.hasNext()) {
+        final KeyValue<String, Long> window = windows.next();
+        totals.merge(WindowIndexProcessor.key(window.key), window.value, Long::sum);
+      }
+    }
+
+    final List<KeyValueBean> results = new ArrayList<>();
+    if (top == null) {
+      totals.forEach((key, total) -> results.add(new KeyValueBean(key, total)));
+      results.sort((a, b) -> KeyValueRangeOutput.compare(a.getKey(), b.getKey()));
+      return results;
+    }
+
+    // keep the top keys seen so far in a heap whose head is the lowest of them
+    final Comparator<KeyValueBean> ascending = HIGHEST_FIRST.reversed();
+    final PriorityQueue<KeyValueBean> highest = new PriorityQueue<>(top, ascending);
+    totals.forEach((key, total) -> {
+      final KeyValueBean candidate = new KeyValueBean(key, total);
+      if (highest.size() < top) {
+        highest.add(candidate);
+      } else if (ascending.compare(candidate, highest.peek()) > 0) {
+        highest.poll();
+        highest.add(candidate);
+      }
+    });
+    results.addAll(highest);
+    results.sort(HIGHEST_FIRST);
+    return results;
+  }
+
   /**
    * Get the metadata for all of the instances of this Kafka Streams application
    * @return List of {@link HostStoreInfo}
    */
   @GET()
   @Path("/instances")
-  @Produces(MediaType.APPLICATION_JSON)
+  @Produces({MediaType.APPLICATION_JSON, AvroProvider.AVRO_BINARY, SmileProvider.SMILE})
   public List<HostStoreInfo> streamsMetadata() {
     return metadataService.streamsMetadata();
   }
@@ -169,7 +672,7 @@ public class WordCountInteractiveQueriesRestService {
    */
   @GET()
   @Path("/instances/{storeName}")
-  @Produces(MediaType.APPLICATION_JSON)
+  @Produces({MediaType.APPLICATION_JSON, AvroProvider.AVRO_BINARY, SmileProvider.SMILE})
   public List<HostStoreInfo> streamsMetadataForStore(@PathParam("storeName") String store) {
     return metadataService.streamsMetadataForStore(store);
   }
@@ -183,40 +686,154 @@ public class WordCountInteractiveQueriesRestService {
    */
   @GET()
   @Path("/instance/{storeName}/{key}")
-  @Produces(MediaType.APPLICATION_JSON)
+  @Produces({MediaType.APPLICATION_JSON, AvroProvider.AVRO_BINARY, SmileProvider.SMILE})
   public HostStoreInfo streamsMetadataForStoreAndKey(@PathParam("storeName") String store,
                                                      @PathParam("key") String key) {
     return metadataService.streamsMetadataForStoreAndKey(store, key, new StringSerializer());
   }
 
   /**
-   * Performs a range query on a KeyValue Store and converts the results into a List of
-   * {@link KeyValueBean}
-   * @param storeName       The store to query
-   * @param rangeFunction   The range query to run, i.e., all, from(start, end)
-   * @return  List of {@link KeyValueBean}
+   * Performs a range query on a KeyValue Store whose results are written as a List of
+   * {@link KeyValueBean} while they are read, see {@link KeyValueRangeOutput}
+   * @param storeName   The store to query
+   * @param from        The start of the range, or null for all keys
+   * @param to          The end of the range, or null for all keys
+   * @param after       The key to continue after, or null
+   * @param limit       The maximum number of results, or null for all of them
+   * @return  Response that writes the List of {@link KeyValueBean}
    */
-  private List<KeyValueBean> rangeForKeyValueStore(final String storeName,
-                                                   final Function<ReadOnlyKeyValueStore<String, Long>,
-                                                       KeyValueIterator<String, Long>> rangeFunction) {
+  private Response rangeForKeyValueStore(final String storeName,
+                                         final String from,
+                                         final String to,
+                                         final String after,
+                                         final Integer limit,
+                                         final Request request) {
+    if (limit != null && limit <= 0) {
+      throw new BadRequestException("limit must be positive, but was " + limit);
+    }
 
-    // Get the KeyValue Store
-    final ReadOnlyKeyValueStore<String, Long> store = streams.store(storeName, QueryableStoreTypes.keyValueStore());
-    if (store == null) {
+    // Get the partitions of the KeyValue Store, which are merged by key
+    final List<ReadOnlyKeyValueStore<String, Long>> partitions =
+        streams.store(storeName, KeyValueRangeOutput.PARTITIONS);
+    if (partitions.isEmpty()) {
       throw new NotFoundException();
     }
 
-    final List<KeyValueBean> results = new ArrayList<>();
-    // Apply the function, i.e., query the store
-    final KeyValueIterator<String, Long> range = rangeFunction.apply(store);
+    final KeyValueRangeOutput output =
+        new KeyValueRangeOutput(partitions, from, to, after, limit != null ? limit : Integer.MAX_VALUE,
+                                KeyValueRangeOutput.mediaType(request));
+    return Response.ok(output, output.mediaType()).build();
+  }
 
-    // Convert the results
-    while (range.hasNext()) {
-      final KeyValue<String, Long> next = range.next();
-      results.add(new KeyValueBean(next.key, next.value));
+  /**
+   * Performs a range query on all instances that host a KeyValue Store. The other instances are
+   * queried in parallel for (at most) a page of their entries, and their responses are merged
+   * with the entries of this instance while they are written, see {@link KeyValueRangeOutput}.
+   * Instances that have not started to answer by the deadline are left out. Should an instance
+   * fail after it has started to answer, the response is aborted rather than silently cut short.
+   */
+  private void clusterRangeForKeyValueStore(final String storeName,
+                                            final String from,
+                                            final String to,
+                                            final String after,
+                                            final Integer limit,
+                                            final String timeout,
+                                            final Request request,
+                                            final AsyncResponse asyncResponse) {
+    if (limit != null && limit <= 0) {
+      throw new BadRequestException("limit must be positive, but was " + limit);
     }
+    final long timeoutMs = AdmissionController.timeoutMs(timeout, REMOTE_QUERY_TIMEOUT_MS);
 
-    return results;
+    final List<HostStoreInfo> hosts = metadataService.streamsMetadataForStore(storeName);
+    if (hosts.isEmpty()) {
+      throw new NotFoundException();
+    }
+    List<ReadOnlyKeyValueStore<String, Long>> partitions = Collections.emptyList();
+    final Map<HostStoreInfo, CompletableFuture<RemoteKeyValueIterator>> remoteRanges = new LinkedHashMap<>();
+    for (final HostStoreInfo host : hosts) {
+      if (metadataService.isThisHost(host)) {
+        partitions = streams.store(storeName, KeyValueRangeOutput.PARTITIONS);
+      }
+    }
+    for (final HostStoreInfo host : hosts) {
+      if (!metadataService.isThisHost(host)) {
+        remoteRanges.put(host, fetchRange(host, storeName, from, to, after, limit, timeoutMs));
+      }
+    }
+
+    // Resume the request once the other instances have started to stream their entries. The
+    // remote calls time out at the deadline, so this does not take any longer.
+    final List<ReadOnlyKeyValueStore<String, Long>> localPartitions = partitions;
+    final MediaType type = KeyValueRangeOutput.mediaType(request);
+    RemoteQueryExecutor.resume(asyncResponse, allSettled(remoteRanges.values()).thenApplyAsync(done -> {
+      final List<RemoteKeyValueIterator> remoteEntries = new ArrayList<>();
+      final List<String> missingInstances = new ArrayList<>();
+      remoteRanges.forEach((host, remoteRange) -> {
+        if (remoteRange.isCompletedExceptionally()) {
+          missingInstances.add(host.getHost() + ":" + host.getPort());
+        } else {
+          remoteEntries.add(remoteRange.join());
+        }
+      });
+      if (localPartitions.isEmpty() && remoteEntries.isEmpty()) {
+        throw new ServiceUnavailableException("No instance hosting " + storeName + " answered in time", 1L);
+      }
+
+      final KeyValueRangeOutput output =
+          new KeyValueRangeOutput(localPartitions, remoteEntries, from, to, after,
+                                  limit != null ? limit : Integer.MAX_VALUE, type);
+      final Response.ResponseBuilder response = Response.ok(output, output.mediaType());
+      if (!missingInstances.isEmpty()) {
+        response.header(MISSING_INSTANCES_HEADER, String.join(",", missingInstances));
+      }
+      return response.build();
+    }, rangeWriters));
+  }
+
+  /**
+   * Ask another instance for a page of the entries of its partitions of a store, in Smile.
+   * @return a future that completes once the instance has started to answer
+   */
+  private CompletableFuture<RemoteKeyValueIterator> fetchRange(final HostStoreInfo host,
+                                                               final String storeName,
+                                                               final String from,
+                                                               final String to,
+                                                               final String after,
+                                                               final Integer limit,
+                                                               final long timeoutMs) {
+    WebTarget target = client.target("http://" + host.getHost() + ":" + host.getPort())
+        .path("state/keyvalues").path(storeName);
+    target = from != null ? target.path("range").path(from).path(to) : target.path("all");
+    if (after != null) {
+      target = target.queryParam("after", after);
+    }
+    if (limit != null) {
+      target = target.queryParam("limit", limit);
+    }
+    final WebTarget range = target;
+
+    // A response that arrives after the deadline is closed right away rather than leaked
+    final CompletableFuture<RemoteKeyValueIterator> entries = new CompletableFuture<>();
+    remoteQueries.submit(() -> {
+      final RemoteKeyValueIterator iterator;
+      try {
+        iterator = new RemoteKeyValueIterator(range.request(SmileProvider.SMILE_TYPE)
+                                                  .header(AdmissionController.TIMEOUT_HEADER, timeoutMs)
+                                                  .get());
+      } catch (final IOException e) {
+        throw new CompletionException(e);
+      }
+      if (!entries.complete(iterator)) {
+        iterator.close();
+      }
+      return iterator;
+    }, timeoutMs).whenComplete((iterator, exception) -> {
+      if (exception != null) {
+        entries.completeExceptionally(exception);
+      }
+    });
+    return entries;
   }
 
   /**
@@ -234,9 +851,15 @@ public class WordCountInteractiveQueriesRestService {
     ResourceConfig rc = new ResourceConfig();
     rc.register(this);
     rc.register(JacksonFeature.class);
+    rc.register(AvroProvider.class);
+    rc.register(SmileProvider.class);
+    rc.register(admissionController);
+    rc.register(StoreUnavailableExceptionMapper.class);
 
     ServletContainer sc = new ServletContainer(rc);
     ServletHolder holder = new ServletHolder(sc);
+    // required by the asynchronous cluster-wide endpoints
+    holder.setAsyncSupported(true);
     context.addServlet(holder, "/*");
 
     jettyServer.start();
@@ -250,6 +873,10 @@ public class WordCountInteractiveQueriesRestService {
     if (jettyServer != null) {
       jettyServer.stop();
     }
+    remoteQueries.close();
+    rangeWriters.shutdown();
+    client.close();
+    metrics.close();
   }
 
 }
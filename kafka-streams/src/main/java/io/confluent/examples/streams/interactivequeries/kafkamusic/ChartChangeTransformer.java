@@ -0,0 +1,92 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries.kafkamusic;
+
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.kstream.Transformer;
+import org.apache.kafka.streams.processor.ProcessorContext;
+import org.apache.kafka.streams.state.KeyValueStore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import io.confluent.examples.streams.avro.ChartChange;
+
+/**
+ * Turns the updates of a chart table into the changes of the charts' rankings.
+ *
+ * A chart is updated with every play of one of its songs, but most plays only change the play
+ * counts rather than which songs are in the chart or in which order. The latest ranking of every
+ * chart is kept in a state store, and an update is only forwarded, along with the previous ranking,
+ * if its ranking differs.
+ *
+ * A chart that had to drop songs may become incomplete when songs are retracted from it, i.e.,
+ * hold fewer songs than the chart size although more songs have been played. The REST service
+ * refills such a chart when it is queried, but the chart table itself keeps the songs it holds.
+ * So the ranking of an incomplete chart is forwarded as it is, and marked as incomplete: it may be
+ * missing songs at its end. A change of completeness alone is forwarded, too.
+ */
+class ChartChangeTransformer implements Transformer<String, TopKSongs, KeyValue<String, ChartChange>> {
+
+  private final String chart;
+  private final String rankingStore;
+  private KeyValueStore<String, ChartChange> rankings;
+
+  /**
+   * @param chart          the name of the chart's store, which tells apart, e.g., the overall chart
+   *                       from the one of a genre of the same name
+   * @param rankingStore   the store that keeps the latest ranking of every chart
+   */
+  ChartChangeTransformer(final String chart, final String rankingStore) {
+    this.chart = chart;
+    this.rankingStore = rankingStore;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void init(final ProcessorContext context) {
+    rankings = (KeyValueStore<String, ChartChange>) context.getStateStore(rankingStore);
+  }
+
+  @Override
+  public KeyValue<String, ChartChange> transform(final String key, final TopKSongs songs) {
+    if (songs == null) {
+      return null;
+    }
+    final List<Long> ranking = new ArrayList<>(songs.k());
+    songs.forEach((songId, plays) -> ranking.add(songId));
+    final boolean complete = songs.isComplete();
+
+    final ChartChange latest = rankings.get(key);
+    final List<Long> previous = latest == null ? Collections.emptyList() : latest.getRanking();
+    final boolean previousComplete = latest == null || latest.getComplete();
+    if (ranking.equals(previous) && complete == previousComplete) {
+      return null;
+    }
+    final ChartChange change = new ChartChange(chart, key, ranking, previous, complete);
+    rankings.put(key, change);
+    return KeyValue.pair(key, change);
+  }
+
+  @Override
+  public KeyValue<String, ChartChange> punctuate(final long timestamp) {
+    return null;
+  }
+
+  @Override
+  public void close() {
+  }
+
+}
@@ -0,0 +1,310 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries.kafkamusic;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tuning options for the charts computed by the {@link KafkaMusicExample}.
+ *
+ * All instances of the application must use the same options. When started from the command line
+ * the options can be set via Java system properties, e.g., {@code -Dkafka.music.chart.size=10}.
+ */
+class ChartOptions {
+
+  static final String CHART_SIZE_PROPERTY = "kafka.music.chart.size";
+  static final String CHART_SLACK_PROPERTY = "kafka.music.chart.slack";
+  static final String TOP_FIVE_SHARDS_PROPERTY = "kafka.music.top.five.shards";
+  static final String GENRE_SHARDS_PROPERTY = "kafka.music.genre.shards";
+  static final String PLAY_COUNT_KEY_PROPERTY = "kafka.music.play.count.key";
+  static final String SONG_TABLE_PROPERTY = "kafka.music.song.table";
+  static final String CHART_WINDOWS_PROPERTY = "kafka.music.chart.windows";
+  static final String CHART_WINDOW_RETENTION_PROPERTY = "kafka.music.chart.window.retention";
+
+  /**
+   * What the song play counts are keyed by.
+   */
+  enum PlayCountKey {
+    /**
+     * The whole song. Its metadata is repartitioned and stored along with every play count.
+     */
+    SONG,
+    /**
+     * Only the id of the song. The genre is joined in when the charts are computed.
+     */
+    SONG_ID
+  }
+
+  /**
+   * How the songs table is distributed across the instances.
+   */
+  enum SongTable {
+    /**
+     * Partitioned by song id. The play events must be repartitioned by song id to be joined
+     * with their songs.
+     */
+    PARTITIONED,
+    /**
+     * Replicated to every instance, so that the play events can be joined with their songs
+     * without being repartitioned.
+     */
+    GLOBAL
+  }
+
+  /**
+   * The time windows that charts are computed for in addition to the all-time charts.
+   */
+  enum ChartWindow {
+    HOURLY(TimeUnit.HOURS.toMillis(1)),
+    DAILY(TimeUnit.DAYS.toMillis(1));
+
+    private final long sizeMs;
+
+    ChartWindow(final long sizeMs) {
+      this.sizeMs = sizeMs;
+    }
+
+    long sizeMs() {
+      return sizeMs;
+    }
+
+    /**
+     * The start of the window that contains the given time.
+     */
+    long windowStart(final long timestamp) {
+      return timestamp - Math.floorMod(timestamp, sizeMs);
+    }
+
+    /**
+     * The name of the given store for this window, e.g., "top-five-songs-hourly".
+     */
+    String storeName(final String store) {
+      return store + "-" + name().toLowerCase();
+    }
+  }
+
+  private int chartSize = 5;
+  private int chartSlack = 20;
+  private int topFiveShards = 4;
+  private int genreShards = 1;
+  private PlayCountKey playCountKey = PlayCountKey.SONG;
+  private SongTable songTable = SongTable.PARTITIONED;
+  private Set<ChartWindow> chartWindows = EnumSet.noneOf(ChartWindow.class);
+  private int chartWindowRetention = 48;
+
+  /**
+   * The number of songs in each chart.
+   */
+  int chartSize() {
+    return chartSize;
+  }
+
+  ChartOptions chartSize(final int chartSize) {
+    if (chartSize <= 0) {
+      throw new IllegalArgumentException("chart size must be positive, but was " + chartSize);
+    }
+    this.chartSize = chartSize;
+    return this;
+  }
+
+  /**
+   * The number of runner-up songs that each chart keeps track of beyond its top songs, so that
+   * the chart stays full when songs are retracted from it.
+   */
+  int chartSlack() {
+    return chartSlack;
+  }
+
+  ChartOptions chartSlack(final int chartSlack) {
+    if (chartSlack < 0) {
+      throw new IllegalArgumentException("chart slack must not be negative, but was " + chartSlack);
+    }
+    this.chartSlack = chartSlack;
+    return this;
+  }
+
+  /**
+   * The number of partial charts that the overall top five chart is merged from. Every partial
+   * chart covers a disjoint subset of the songs and can be computed by a different task.
+   */
+  int topFiveShards() {
+    return topFiveShards;
+  }
+
+  ChartOptions topFiveShards(final int topFiveShards) {
+    if (topFiveShards <= 0) {
+      throw new IllegalArgumentException("number of shards must be positive, but was " + topFiveShards);
+    }
+    this.topFiveShards = topFiveShards;
+    return this;
+  }
+
+  /**
+   * The number of partial charts that each genre chart is merged from. Every partial chart covers
+   * a disjoint subset of the genre's songs, so that the plays of a popular genre are spread across
+   * several tasks rather than all being aggregated by the one task that hosts the genre. With a
+   * single shard, the genre charts are aggregated directly. Changing this changes the topology, so
+   * the application must be reset when doing so.
+   */
+  int genreShards() {
+    return genreShards;
+  }
+
+  ChartOptions genreShards(final int genreShards) {
+    if (genreShards <= 0) {
+      throw new IllegalArgumentException("number of genre shards must be positive, but was " + genreShards);
+    }
+    this.genreShards = genreShards;
+    return this;
+  }
+
+  /**
+   * What the song play counts are keyed by. Changing this changes the topology, so the
+   * application must be reset when doing so.
+   */
+  PlayCountKey playCountKey() {
+    return playCountKey;
+  }
+
+  ChartOptions playCountKey(final PlayCountKey playCountKey) {
+    if (playCountKey == null) {
+      throw new IllegalArgumentException("play count key must not be null");
+    }
+    checkCompatible(playCountKey, songTable);
+    this.playCountKey = playCountKey;
+    return this;
+  }
+
+  /**
+   * How the songs table is distributed across the instances. Changing this changes the topology,
+   * so the application must be reset when doing so.
+   */
+  SongTable songTable() {
+    return songTable;
+  }
+
+  ChartOptions songTable(final SongTable songTable) {
+    if (songTable == null) {
+      throw new IllegalArgumentException("song table must not be null");
+    }
+    checkCompatible(playCountKey, songTable);
+    this.songTable = songTable;
+    return this;
+  }
+
+  /**
+   * The time windows that charts are computed for, none by default. Every window adds its own
+   * aggregations and internal topics to the topology. Changing this changes the topology, so the
+   * application must be reset when doing so.
+   */
+  Set<ChartWindow> chartWindows() {
+    return Collections.unmodifiableSet(chartWindows);
+  }
+
+  ChartOptions chartWindows(final Set<ChartWindow> chartWindows) {
+    if (chartWindows == null) {
+      throw new IllegalArgumentException("chart windows must not be null");
+    }
+    this.chartWindows = chartWindows.isEmpty() ? EnumSet.noneOf(ChartWindow.class) : EnumSet.copyOf(chartWindows);
+    return this;
+  }
+
+  /**
+   * The number of most recent windows that the windowed charts are kept for, which bounds the
+   * size of their state stores.
+   */
+  int chartWindowRetention() {
+    return chartWindowRetention;
+  }
+
+  ChartOptions chartWindowRetention(final int chartWindowRetention) {
+    if (chartWindowRetention <= 0) {
+      throw new IllegalArgumentException("chart window retention must be positive, but was " + chartWindowRetention);
+    }
+    this.chartWindowRetention = chartWindowRetention;
+    return this;
+  }
+
+  private static void checkCompatible(final PlayCountKey playCountKey, final SongTable songTable) {
+    // The play counts by song id are a KTable, which cannot be joined with a GlobalKTable
+    if (playCountKey == PlayCountKey.SONG_ID && songTable == SongTable.GLOBAL) {
+      throw new IllegalArgumentException("play counts by song id require a partitioned song table");
+    }
+  }
+
+  /**
+   * Create options with the defaults, overridden by the Java system properties that are set.
+   */
+  static ChartOptions fromSystemProperties() {
+    final ChartOptions options = new ChartOptions();
+    final Integer chartSize = Integer.getInteger(CHART_SIZE_PROPERTY);
+    if (chartSize != null) {
+      options.chartSize(chartSize);
+    }
+    final Integer chartSlack = Integer.getInteger(CHART_SLACK_PROPERTY);
+    if (chartSlack != null) {
+      options.chartSlack(chartSlack);
+    }
+    final Integer topFiveShards = Integer.getInteger(TOP_FIVE_SHARDS_PROPERTY);
+    if (topFiveShards != null) {
+      options.topFiveShards(topFiveShards);
+    }
+    final Integer genreShards = Integer.getInteger(GENRE_SHARDS_PROPERTY);
+    if (genreShards != null) {
+      options.genreShards(genreShards);
+    }
+    final String playCountKey = System.getProperty(PLAY_COUNT_KEY_PROPERTY);
+    if (playCountKey != null) {
+      options.playCountKey(PlayCountKey.valueOf(playCountKey.toUpperCase()));
+    }
+    final String songTable = System.getProperty(SONG_TABLE_PROPERTY);
+    if (songTable != null) {
+      options.songTable(SongTable.valueOf(songTable.toUpperCase()));
+    }
+    final String chartWindows = System.getProperty(CHART_WINDOWS_PROPERTY);
+    if (chartWindows != null) {
+      // a comma-separated list, e.g., "hourly,daily", or an empty one for no windowed charts
+      final Set<ChartWindow> windows = EnumSet.noneOf(ChartWindow.class);
+      for (final String window : chartWindows.split(",")) {
+        if (!window.trim().isEmpty()) {
+          windows.add(ChartWindow.valueOf(window.trim().toUpperCase()));
+        }
+      }
+      options.chartWindows(windows);
+    }
+    final Integer chartWindowRetention = Integer.getInteger(CHART_WINDOW_RETENTION_PROPERTY);
+    if (chartWindowRetention != null) {
+      options.chartWindowRetention(chartWindowRetention);
+    }
+    return options;
+  }
+
+  @Override
+  public String toString() {
+    return "ChartOptions{" +
+           "chartSize=" + chartSize +
+           ", chartSlack=" + chartSlack +
+           ", topFiveShards=" + topFiveShards +
+           ", genreShards=" + genreShards +
+           ", playCountKey=" + playCountKey +
+           ", songTable=" + songTable +
+           ", chartWindows=" + chartWindows +
+           ", chartWindowRetention=" + chartWindowRetention +
+           '}';
+  }
+
+}
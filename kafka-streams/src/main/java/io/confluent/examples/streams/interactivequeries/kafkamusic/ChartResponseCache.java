@@ -0,0 +1,189 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries.kafkamusic;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.ws.rs.InternalServerErrorException;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Variant;
+
+import io.confluent.examples.streams.interactivequeries.AvroProvider;
+import io.confluent.examples.streams.interactivequeries.SmileProvider;
+
+/**
+ * Keeps the rendered JSON of the latest version of every chart, so that a chart is rendered only
+ * once per change rather than once per request, and answers conditional requests.
+ *
+ * A version of a chart is identified by a fingerprint of the charted songs, their play counts and
+ * the versions of their metadata, which also serves as the chart's ETag. Clients that send the ETag of the
+ * version they already have in an If-None-Match header get a 304 (Not Modified) without the chart
+ * being resolved or rendered at all.
+ *
+ * Only the JSON is cached. Clients that ask for Avro binary or Smile instead get the chart
+ * written in that format on every request, with an ETag of its own.
+ */
+class ChartResponseCache {
+
+  // the formats a chart can be answered in, JSON being the default
+  private static final List<Variant> VARIANTS =
+      Variant.mediaTypes(MediaType.APPLICATION_JSON_TYPE, AvroProvider.AVRO_BINARY_TYPE, SmileProvider.SMILE_TYPE)
+          .build();
+
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final Map<String, RenderedChart> charts = new ConcurrentHashMap<>();
+
+  /**
+   * A rendered version of a chart.
+   */
+  static final class RenderedChart {
+    private final long fingerprint;
+    private final EntityTag etag;
+    private final List<SongPlayCountBean> chart;
+    private final byte[] json;
+
+    private RenderedChart(final long fingerprint, final List<SongPlayCountBean> chart, final byte[] json) {
+      this.fingerprint = fingerprint;
+      this.etag = ChartResponseCache.etag(fingerprint);
+      this.chart = chart;
+      this.json = json;
+    }
+
+    EntityTag etag() {
+      return etag;
+    }
+
+    byte[] json() {
+      return json;
+    }
+  }
+
+  /**
+   * Get the cached rendering of the given version of a chart.
+   * @param store         the store of the chart
+   * @param key           the key of the chart
+   * @param fingerprint   identifies the version of the chart
+   * @return the rendered chart or null if this version of the chart was not rendered yet
+   */
+  RenderedChart get(final String store, final String key, final long fingerprint) {
+    final RenderedChart chart = charts.get(cacheKey(store, key));
+    return chart != null && chart.fingerprint == fingerprint ? chart : null;
+  }
+
+  /**
+   * Render the given version of a chart and cache it, replacing the previous version.
+   */
+  RenderedChart put(final String store,
+                    final String key,
+                    final long fingerprint,
+                    final List<SongPlayCountBean> chart) {
+    final RenderedChart rendered = new RenderedChart(fingerprint, chart, toJson(chart));
+    charts.put(cacheKey(store, key), rendered);
+    return rendered;
+  }
+
+  /**
+   * Render a chart without caching it, e.g., a chart that was fetched from another instance. Its
+   * fingerprint is derived from the rendered JSON.
+   */
+  RenderedChart render(final List<SongPlayCountBean> chart) {
+    final byte[] json = toJson(chart);
+    return new RenderedChart(Arrays.hashCode(json) & 0xffffffffL | (long) json.length << 32, chart, json);
+  }
+
+  private byte[] toJson(final List<SongPlayCountBean> chart) {
+    try {
+      return mapper.writeValueAsBytes(chart);
+    } catch (final JsonProcessingException e) {
+      throw new InternalServerErrorException(e);
+    }
+  }
+
+  private static String cacheKey(final String store, final String key) {
+    return store + '/' + key;
+  }
+
+  static EntityTag etag(final long fingerprint) {
+    return new EntityTag(Long.toHexString(fingerprint));
+  }
+
+  /**
+   * Answer a request for the given chart, i.e., with 304 (Not Modified) if the client already
+   * has this version of the chart, and with the rendered chart otherwise.
+   * @param ifNoneMatch   the If-None-Match header of the request, or null
+   */
+  static Response respond(final RenderedChart chart, final String ifNoneMatch) {
+    if (matches(ifNoneMatch, chart.etag)) {
+      return Response.notModified(chart.etag).build();
+    }
+    return Response.ok(chart.json, MediaType.APPLICATION_JSON_TYPE).tag(chart.etag).build();
+  }
+
+  /**
+   * Answer a request for the given chart in the given format.
+   * @param ifNoneMatch   the If-None-Match header of the request, or null
+   * @param type          the format, see {@link #mediaType(Request)}
+   */
+  static Response respond(final RenderedChart chart, final String ifNoneMatch, final MediaType type) {
+    if (type.isCompatible(MediaType.APPLICATION_JSON_TYPE)) {
+      return respond(chart, ifNoneMatch);
+    }
+    // the representations of a chart differ, so they must not share an ETag
+    final EntityTag etag = new EntityTag(chart.etag.getValue() + '-' + type.getSubtype());
+    if (matches(ifNoneMatch, etag)) {
+      return Response.notModified(etag).build();
+    }
+    return Response.ok(new GenericEntity<List<SongPlayCountBean>>(chart.chart) { }, type).tag(etag).build();
+  }
+
+  /**
+   * The format a request for a chart is to be answered in, according to its Accept header.
+   */
+  static MediaType mediaType(final Request request) {
+    final Variant variant = request.selectVariant(VARIANTS);
+    return variant != null ? variant.getMediaType() : MediaType.APPLICATION_JSON_TYPE;
+  }
+
+  /**
+   * Whether an If-None-Match header matches the given ETag.
+   */
+  static boolean matches(final String ifNoneMatch, final EntityTag etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (final String tag : ifNoneMatch.split(",")) {
+      final String trimmed = tag.trim();
+      if (trimmed.equals("*")) {
+        return true;
+      }
+      // weak comparison, as required for If-None-Match
+      final String opaque = trimmed.startsWith("W/") ? trimmed.substring(2) : trimmed;
+      if (opaque.equals("\"" + etag.getValue() + "\"")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+}
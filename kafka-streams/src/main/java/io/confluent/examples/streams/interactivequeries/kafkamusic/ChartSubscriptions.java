@@ -0,0 +1,372 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries.kafkamusic;
+
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.OutboundEvent;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.ws.rs.ServiceUnavailableException;
+
+/**
+ * Pushes the changes of charts to the clients that subscribed to them.
+ *
+ * Once per interval, the latest version of every chart with at least one subscriber is obtained
+ * from a {@link ChartSource}. If it differs from what a subscriber was sent last, it is handed
+ * over to the subscriber. Each subscriber holds at most one pending event, which is replaced
+ * rather than queued up if the subscriber has not caught up yet. So every client gets at most one
+ * event per interval, and it is always the latest version of the chart.
+ *
+ * The events are written by a small, fixed pool of writer threads. A client that is slow to read
+ * only delays its own events, but neither the polling of the charts nor the other clients.
+ */
+class ChartSubscriptions implements AutoCloseable {
+
+  static final String CHART_EVENT = "chart";
+
+  /**
+   * Provides the latest versions of the subscribed charts.
+   */
+  interface ChartSource {
+
+    /**
+     * Get the latest version of a chart. Called once per interval for every chart with
+     * subscribers, but never again for the same chart before the previous call has completed.
+     * @return the latest version, or null if it is not known (yet)
+     */
+    CompletableFuture<ChartEvent> latest(String store, String key);
+
+    /**
+     * Called when the last subscriber of a chart has gone, e.g., to release the resources
+     * needed to keep track of it.
+     */
+    void release(String store, String key);
+  }
+
+  /**
+   * A version of a chart, as it is sent to the clients.
+   */
+  static final class ChartEvent {
+    private final String id;
+    private final String data;
+
+    ChartEvent(final String id, final String data) {
+      this.id = id;
+      this.data = data;
+    }
+
+    /**
+     * Identifies the version of the chart. This is the chart's ETag.
+     */
+    String id() {
+      return id;
+    }
+
+    /**
+     * The chart, rendered as JSON.
+     */
+    String data() {
+      return data;
+    }
+  }
+
+  /**
+   * Where the events for a subscriber are written to.
+   */
+  interface EventSink {
+
+    void send(ChartEvent event) throws IOException;
+
+    /**
+     * Send an event that carries no chart, to detect clients that have gone and to keep idle
+     * connections from timing out.
+     */
+    void keepAlive() throws IOException;
+
+    boolean isClosed();
+
+    void close();
+  }
+
+  private final ChartSource source;
+  private final long intervalMs;
+  private final long keepAliveMs;
+  private final int maxSubscribers;
+  private final AtomicInteger subscriberCount = new AtomicInteger();
+  private final Map<String, Chart> charts = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+    final Thread thread = new Thread(r, "chart-subscriptions");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final ExecutorService writers;
+
+  /**
+   * @param source          provides the latest versions of the charts
+   * @param intervalMs      how often to look for changes of the charts, i.e., the maximum rate of
+   *                        events per client
+   * @param keepAliveMs     how long a connection may stay idle
+   * @param maxSubscribers  the maximum number of subscribers across all charts
+   * @param writerThreads   the number of threads that write the events to the subscribers
+   */
+  ChartSubscriptions(final ChartSource source,
+                     final long intervalMs,
+                     final long keepAliveMs,
+                     final int maxSubscribers,
+                     final int writerThreads) {
+    this.source = source;
+    this.intervalMs = intervalMs;
+    this.keepAliveMs = keepAliveMs;
+    this.maxSubscribers = maxSubscribers;
+    final AtomicInteger threadCount = new AtomicInteger();
+    // Every subscriber has at most one write task queued, so the queue is bounded by maxSubscribers
+    this.writers = Executors.newFixedThreadPool(writerThreads, r -> {
+      final Thread thread = new Thread(r, "chart-subscriptions-writer-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  void start() {
+    scheduler.scheduleWithFixedDelay(this::poll, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Subscribe a client to the changes of a chart.
+   * @param lastEventId   the id of the version of the chart the client already has, e.g., when it
+   *                      reconnects, or null
+   * @throws ServiceUnavailableException if there are too many subscribers already
+   */
+  EventOutput subscribe(final String store, final String key, final String lastEventId) {
+    final EventOutput output = new EventOutput();
+    subscribe(store, key, lastEventId, sink(output));
+    return output;
+  }
+
+  void subscribe(final String store, final String key, final String lastEventId, final EventSink sink) {
+    if (subscriberCount.incrementAndGet() > maxSubscribers) {
+      subscriberCount.decrementAndGet();
+      throw new ServiceUnavailableException("Too many chart subscriptions, please try again later");
+    }
+    final Subscriber subscriber = new Subscriber(sink, lastEventId);
+    final String chartKey = store + '/' + key;
+    synchronized (charts) {
+      charts.computeIfAbsent(chartKey, k -> new Chart(store, key)).subscribers.add(subscriber);
+    }
+    // Send the current version right away rather than at the end of the interval. This is skipped
+    // if it is still being polled for, in which case the subscriber gets it once that is done.
+    final Chart chart = charts.get(chartKey);
+    final ChartEvent latest = chart != null ? chart.latest : null;
+    if (latest != null) {
+      subscriber.offer(latest);
+    }
+  }
+
+  /**
+   * The number of subscribers across all charts.
+   */
+  int subscribers() {
+    return subscriberCount.get();
+  }
+
+  // Runs once per interval on the scheduler thread
+  void poll() {
+    final long now = System.currentTimeMillis();
+    for (final Chart chart : charts.values()) {
+      removeClosedSubscribers(chart);
+      for (final Subscriber subscriber : chart.subscribers) {
+        subscriber.keepAliveIfIdle(now);
+      }
+      if (!chart.polling.compareAndSet(false, true)) {
+        // the previous version is still being obtained
+        continue;
+      }
+      final CompletableFuture<ChartEvent> latest;
+      try {
+        latest = source.latest(chart.store, chart.key);
+      } catch (final RuntimeException e) {
+        // e.g., the store is not available during a rebalance, so try again next time
+        chart.polling.set(false);
+        continue;
+      }
+      latest.whenComplete((event, exception) -> {
+        chart.polling.set(false);
+        if (event != null) {
+          chart.publish(event);
+        }
+      });
+    }
+  }
+
+  private void removeClosedSubscribers(final Chart chart) {
+    for (final Subscriber subscriber : chart.subscribers) {
+      if (subscriber.sink.isClosed() && chart.subscribers.remove(subscriber)) {
+        subscriberCount.decrementAndGet();
+      }
+    }
+    if (chart.subscribers.isEmpty()) {
+      synchronized (charts) {
+        if (!chart.subscribers.isEmpty() || !charts.remove(chart.store + '/' + chart.key, chart)) {
+          return;
+        }
+      }
+      source.release(chart.store, chart.key);
+    }
+  }
+
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+    writers.shutdownNow();
+    for (final Chart chart : charts.values()) {
+      for (final Subscriber subscriber : chart.subscribers) {
+        subscriber.sink.close();
+      }
+      source.release(chart.store, chart.key);
+    }
+    charts.clear();
+  }
+
+  private static final class Chart {
+    private final String store;
+    private final String key;
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean polling = new AtomicBoolean();
+    private volatile ChartEvent latest;
+
+    private Chart(final String store, final String key) {
+      this.store = store;
+      this.key = key;
+    }
+
+    private void publish(final ChartEvent event) {
+      latest = event;
+      for (final Subscriber subscriber : subscribers) {
+        subscriber.offer(event);
+      }
+    }
+  }
+
+  private final class Subscriber {
+    private final EventSink sink;
+    // the latest version that has not been written yet, if any
+    private final AtomicReference<ChartEvent> pending = new AtomicReference<>();
+    private final AtomicBoolean writing = new AtomicBoolean();
+    // the id of the latest version that was handed over to this subscriber
+    private volatile String offeredId;
+    private volatile long lastWriteMs = System.currentTimeMillis();
+
+    private Subscriber(final EventSink sink, final String lastEventId) {
+      this.sink = sink;
+      this.offeredId = lastEventId;
+    }
+
+    private void offer(final ChartEvent event) {
+      if (event.id().equals(offeredId)) {
+        return;
+      }
+      offeredId = event.id();
+      pending.set(event);
+      scheduleWrite();
+    }
+
+    private void keepAliveIfIdle(final long now) {
+      if (now - lastWriteMs >= keepAliveMs && !writing.get()) {
+        lastWriteMs = now;
+        scheduleWrite();
+      }
+    }
+
+    private void scheduleWrite() {
+      if (writing.compareAndSet(false, true)) {
+        try {
+          writers.execute(this::write);
+        } catch (final RuntimeException e) {
+          // the writers have been shut down
+          writing.set(false);
+        }
+      }
+    }
+
+    // Runs on a writer thread, for at most one subscriber at a time
+    private void write() {
+      try {
+        ChartEvent event = pending.getAndSet(null);
+        if (event == null) {
+          sink.keepAlive();
+        }
+        while (event != null) {
+          sink.send(event);
+          event = pending.getAndSet(null);
+        }
+        lastWriteMs = System.currentTimeMillis();
+      } catch (final IOException | RuntimeException e) {
+        // the client has gone. It is removed on the next poll.
+        sink.close();
+      } finally {
+        writing.set(false);
+      }
+      // an event that was offered after the last check but before writing was reset
+      if (pending.get() != null && !sink.isClosed()) {
+        scheduleWrite();
+      }
+    }
+  }
+
+  private static EventSink sink(final EventOutput output) {
+    return new EventSink() {
+      @Override
+      public void send(final ChartEvent event) throws IOException {
+        output.write(new OutboundEvent.Builder()
+                         .name(CHART_EVENT)
+                         .id(event.id())
+                         .data(String.class, event.data())
+                         .build());
+      }
+
+      @Override
+      public void keepAlive() throws IOException {
+        output.write(new OutboundEvent.Builder().comment("keep-alive").build());
+      }
+
+      @Override
+      public boolean isClosed() {
+        return output.isClosed();
+      }
+
+      @Override
+      public void close() {
+        try {
+          output.close();
+        } catch (final IOException e) {
+          // the connection is gone already
+        }
+      }
+    };
+  }
+
+}
@@ -17,35 +17,36 @@
 package io.confluent.examples.streams.interactivequeries.kafkamusic;
 
 import org.apache.kafka.clients.consumer.ConsumerConfig;
-import org.apache.kafka.common.serialization.Deserializer;
-import org.apache.kafka.common.serialization.Serde;
 import org.apache.kafka.common.serialization.Serdes;
-import org.apache.kafka.common.serialization.Serializer;
 import org.apache.kafka.streams.KafkaStreams;
 import org.apache.kafka.streams.KeyValue;
 import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.kstream.GlobalKTable;
+import org.apache.kafka.streams.kstream.KGroupedStream;
+import org.apache.kafka.streams.kstream.KGroupedTable;
 import org.apache.kafka.streams.kstream.KStream;
 import org.apache.kafka.streams.kstream.KStreamBuilder;
 import org.apache.kafka.streams.kstream.KTable;
+import org.apache.kafka.streams.kstream.KeyValueMapper;
+import org.apache.kafka.streams.kstream.TimeWindows;
+import org.apache.kafka.streams.kstream.ValueJoiner;
+import org.apache.kafka.streams.kstream.Windowed;
+import org.apache.kafka.streams.processor.StateStoreSupplier;
 import org.apache.kafka.streams.state.HostInfo;
 import org.apache.kafka.streams.state.RocksDBConfigSetter;
+import org.apache.kafka.streams.state.Stores;
 import org.rocksdb.Options;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Properties;
-import java.util.TreeSet;
 
+import io.confluent.examples.streams.avro.ChartChange;
 import io.confluent.examples.streams.avro.PlayEvent;
 import io.confluent.examples.streams.avro.Song;
 import io.confluent.examples.streams.avro.SongPlayCount;
+import io.confluent.examples.streams.interactivequeries.PartitionRoutingTable;
+import io.confluent.examples.streams.utils.SpecificAvroDeserializer;
 import io.confluent.examples.streams.utils.SpecificAvroSerde;
 import io.confluent.kafka.schemaregistry.client.CachedSchemaRegistryClient;
 
@@ -74,8 +75,30 @@ import io.confluent.kafka.schemaregistry.client.CachedSchemaRegistryClient;
  *
  * Next, we group the songPlayCounts KTable by genre and aggregate into another KTable with the
  * state store, top-five-songs-by-genre, to track the top five songs by genre. Subsequently, we
- * group the same songPlayCounts KTable such that all song plays end up in the same partition. We
- * use this to aggregate the overall top five songs played into the state store, top-five.
+ * group the same songPlayCounts KTable into a few shards of songs and compute a partial top five
+ * per shard. The partial charts are then merged into the overall top five songs played, which are
+ * kept in the state store, top-five-songs. Likewise, with `-Dkafka.music.genre.shards=4`, the songs
+ * of each genre are spread across four partial charts, which are then merged into the chart of the
+ * genre, so that the aggregation of a popular genre is not left to a single task.
+ *
+ * Alternatively, with `-Dkafka.music.play.count.key=song_id`, the play events are counted by song
+ * id only, so that the song metadata is neither repartitioned nor stored along with every play
+ * count. The genre of a song is then joined in from the songs table when the charts are computed.
+ *
+ * Or, with `-Dkafka.music.song.table=global`, the songs are loaded into a GlobalKTable that holds
+ * all of them on every instance. The play events are then joined with their song in place, rather
+ * than being repartitioned by song id first.
+ *
+ * In addition to the all-time charts, the same charts can be computed per hour and per day, e.g.,
+ * with `-Dkafka.music.chart.windows=hourly,daily`, in the state stores
+ * top-five-songs-by-genre-hourly and top-five-songs-daily. Only the most recent windows are kept
+ * (see {@link ChartOptions}).
+ *
+ * Finally, whenever the songs in the top five of a genre or across all genres, or their order,
+ * change, the new and the previous ranking are written to the output topic chart-changes. Plays that
+ * only change the play counts within a chart do not produce any output. A ranking that may be
+ * missing songs, because songs have been retracted from a chart that had dropped others before, is
+ * marked as incomplete.
  *
  * HOW TO RUN THIS EXAMPLE
  *
@@ -89,6 +112,8 @@ import io.confluent.kafka.schemaregistry.client.CachedSchemaRegistryClient;
  *                    --zookeeper localhost:2181 --partitions 4 --replication-factor 1
  * $ bin/kafka-topics --create --topic song-feed \
  *                    --zookeeper localhost:2181 --partitions 4 --replication-factor 1
+ * $ bin/kafka-topics --create --topic chart-changes \
+ *                    --zookeeper localhost:2181 --partitions 4 --replication-factor 1
  *
  * }
  * </pre>
@@ -112,6 +137,9 @@ import io.confluent.kafka.schemaregistry.client.CachedSchemaRegistryClient;
  * </pre>
  *
  * Here, `7070` sets the port for the REST endpoint that will be used by this application instance.
+ * The instances query each other via a binary channel on the REST port plus 10000, i.e., on port
+ * 17070 for this instance. The charts can be tuned via Java system properties, e.g.,
+ * `-Dkafka.music.top.five.shards=8` (see {@link ChartOptions}).
  *
  * Then, in a separate terminal, run the second instance of this application (on port 7071):
  *
@@ -147,6 +175,16 @@ import io.confluent.kafka.schemaregistry.client.CachedSchemaRegistryClient;
  *
  * # Get the latest top five across all genres
  * http://localhost:7070/kafka-music/charts/top-five
+ *
+ * # Get pushed the top five for the genre "punk" whenever it changes, as server-sent events
+ * curl -N http://localhost:7070/kafka-music/charts/genre/punk/stream
+ *
+ * # Get the top five for the genre "punk" of the current hour, if hourly charts are enabled
+ * http://localhost:7070/kafka-music/charts/genre/punk/hourly
+ *
+ * # Get the daily top five across all genres for every day in the given time range (epoch millis),
+ * # if daily charts are enabled
+ * http://localhost:7070/kafka-music/charts/top-five/daily?from=1500000000000&to=1500600000000
  * }
  * </pre>
  *
@@ -166,13 +204,20 @@ import io.confluent.kafka.schemaregistry.client.CachedSchemaRegistryClient;
 public class KafkaMusicExample {
 
   private static final Long MIN_CHARTABLE_DURATION = 30 * 1000L;
-  private static final String SONG_PLAY_COUNT_STORE = "song-play-count";
+  static final String SONG_PLAY_COUNT_STORE = "song-play-count";
   static final String PLAY_EVENTS = "play-events";
   static final String ALL_SONGS = "all-songs";
   static final String SONG_FEED = "song-feed";
+  static final String CHART_CHANGES = "chart-changes";
   static final String TOP_FIVE_SONGS_BY_GENRE_STORE = "top-five-songs-by-genre";
   static final String TOP_FIVE_SONGS_STORE = "top-five-songs";
+  static final String TOP_FIVE_SONGS_PARTIALS_STORE = "top-five-songs-partials";
+  static final String TOP_FIVE_SONGS_BY_GENRE_PARTIALS_STORE = "top-five-songs-by-genre-partials";
   static final String TOP_FIVE_KEY = "all";
+  // genres may contain dashes themselves, so the genre of a shard is everything before the last one
+  private static final String GENRE_SHARD_SEPARATOR = "-";
+  static final String CHART_RANKINGS_STORE_SUFFIX = "-rankings";
+  static final int SONG_CACHE_MAX_ENTRIES = 10000;
 
   private static final String DEFAULT_REST_ENDPOINT_HOSTNAME = "localhost";
   private static final String DEFAULT_BOOTSTRAP_SERVERS = "localhost:9092";
@@ -208,10 +253,14 @@ public class KafkaMusicExample {
     System.out.println("Connecting to Confluent schema registry at " + schemaRegistryUrl);
     System.out.println("REST endpoint at http://" + restEndpointHostname + ":" + restEndpointPort);
 
+    final ChartOptions chartOptions = ChartOptions.fromSystemProperties();
+    System.out.println("Computing charts with " + chartOptions);
+
     final KafkaStreams streams = createChartsStreams(bootstrapServers,
                                                      schemaRegistryUrl,
                                                      restEndpointPort,
-                                                     "/tmp/kafka-streams");
+                                                     "/tmp/kafka-streams",
+                                                     chartOptions);
 
     // Always (and unconditionally) clean local state prior to starting the processing topology.
     // We opt for this unconditional call here because this will make it easier for you to play around with the example
@@ -225,13 +274,24 @@ public class KafkaMusicExample {
     // See `ApplicationResetExample.java` for a production-like example.
     streams.cleanUp();
 
+    // Route the keys of interactive queries to the instances that host them. The routing table
+    // needs to be told about rebalances, so it must be registered before the streams are started.
+    final PartitionRoutingTable routingTable = new PartitionRoutingTable(streams);
+    streams.setStateListener(routingTable);
+
     // Now that we have finished the definition of the processing topology we can actually run
     // it via `start()`.  The Streams application as a whole can be launched just like any
     // normal Java application that has a `main()` method.
     streams.start();
 
     // Start the Restful proxy for servicing remote access to state stores
-    final MusicPlaysRestService restService = startRestProxy(streams, restEndpoint);
+    final MusicPlaysRestService restService = startRestProxy(streams,
+                                                             restEndpoint,
+                                                             routingTable,
+                                                             bootstrapServers,
+                                                             schemaRegistryUrl,
+                                                             true,
+                                                             chartOptions);
 
     // Add shutdown hook to respond to SIGTERM and gracefully close Kafka Streams
     Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -244,10 +304,38 @@ public class KafkaMusicExample {
     }));
   }
 
-  static MusicPlaysRestService startRestProxy(final KafkaStreams streams, final HostInfo hostInfo)
+  static MusicPlaysRestService startRestProxy(final KafkaStreams streams,
+                                              final HostInfo hostInfo,
+                                              final PartitionRoutingTable routingTable,
+                                              final String bootstrapServers,
+                                              final String schemaRegistryUrl)
       throws Exception {
+    return startRestProxy(streams, hostInfo, routingTable, bootstrapServers, schemaRegistryUrl, false,
+                          new ChartOptions());
+  }
+
+  static MusicPlaysRestService startRestProxy(final KafkaStreams streams,
+                                              final HostInfo hostInfo,
+                                              final PartitionRoutingTable routingTable,
+                                              final String bootstrapServers,
+                                              final String schemaRegistryUrl,
+                                              final boolean peerQueries,
+                                              final ChartOptions chartOptions)
+      throws Exception {
+    final Map<String, String>
+        serdeProps =
+        Collections.singletonMap("schema.registry.url", schemaRegistryUrl);
+    final SpecificAvroDeserializer<Song> songDeserializer =
+        new SpecificAvroDeserializer<>(new CachedSchemaRegistryClient(schemaRegistryUrl, 100), serdeProps);
+    songDeserializer.configure(serdeProps, false);
+
+    // The song cache keeps the metadata of the most recently charted songs in memory so that
+    // we don't need to query the all-songs store (possibly on another instance) for every chart.
+    final SongMetadataCache songCache =
+        new SongMetadataCache(SONG_CACHE_MAX_ENTRIES, bootstrapServers, songDeserializer);
     final MusicPlaysRestService
-        interactiveQueriesRestService = new MusicPlaysRestService(streams, hostInfo);
+        interactiveQueriesRestService =
+        new MusicPlaysRestService(streams, hostInfo, routingTable, songCache, peerQueries, chartOptions);
     interactiveQueriesRestService.start();
     return interactiveQueriesRestService;
   }
@@ -256,6 +344,15 @@ public class KafkaMusicExample {
                                           final String schemaRegistryUrl,
                                           final int applicationServerPort,
                                           final String stateDir) {
+    return createChartsStreams(bootstrapServers, schemaRegistryUrl, applicationServerPort, stateDir,
+                               new ChartOptions());
+  }
+
+  static KafkaStreams createChartsStreams(final String bootstrapServers,
+                                          final String schemaRegistryUrl,
+                                          final int applicationServerPort,
+                                          final String stateDir,
+                                          final ChartOptions options) {
     final Properties streamsConfiguration = new Properties();
     // Give the Streams application a unique name.  The name must be unique in the Kafka cluster
     // against which the application is run.
@@ -316,201 +413,344 @@ public class KafkaMusicExample {
                                                                  playEventSerde,
                                                                  PLAY_EVENTS);
 
+    final boolean globalSongTable = options.songTable() == ChartOptions.SongTable.GLOBAL;
+
     // get table and create a state store to hold all the songs in the store
     final KTable<Long, Song>
         songTable =
-        builder.table(Serdes.Long(), songSerde, SONG_FEED, ALL_SONGS);
+        globalSongTable ? null : builder.table(Serdes.Long(), songSerde, SONG_FEED, ALL_SONGS);
+    // or, alternatively, a global table that holds all the songs on every instance
+    final GlobalKTable<Long, Song>
+        globalSongs =
+        globalSongTable ? builder.globalTable(Serdes.Long(), songSerde, SONG_FEED, ALL_SONGS) : null;
 
     // Accept play events that have a duration >= the minimum
-    final KStream<Long, PlayEvent> playsBySongId =
-        playEvents.filter((region, event) -> event.getDuration() >= MIN_CHARTABLE_DURATION)
-            // repartition based on song id
-            .map((key, value) -> KeyValue.pair(value.getSongId(), value));
-
-
-    // join the plays with song as we will use it later for charting
-    final KStream<Long, Song> songPlays = playsBySongId.leftJoin(songTable,
-                                                                 (value1, song) -> song,
-                                                                 Serdes.Long(),
-                                                                 playEventSerde);
-
-    // create a state store to track song play counts
-    final KTable<Song, Long> songPlayCounts = songPlays.groupBy((songId, song) -> song, songSerde, songSerde)
-        .count(SONG_PLAY_COUNT_STORE);
+    final KStream<String, PlayEvent> chartablePlays =
+        playEvents.filter((region, event) -> event.getDuration() >= MIN_CHARTABLE_DURATION);
+
+    final int topFiveShards = options.topFiveShards();
+    final int genreShards = options.genreShards();
+    // The plays grouped by song id, from which the windowed charts are counted. If the grouping
+    // re-keys the plays, Kafka Streams repartitions them anew for every aggregation of the group,
+    // i.e., every window adds a repartition topic of the play events besides its changelog.
+    KGroupedStream<Long, ?> groupedPlays = null;
+    final KGroupedTable<String, SongPlayCount> playCountsByGenre;
+    final KGroupedTable<String, SongPlayCount> playCountsByShard;
+    if (options.playCountKey() == ChartOptions.PlayCountKey.SONG_ID) {
+      final KGroupedStream<Long, PlayEvent> playEventsBySongId =
+          chartablePlays.groupBy((region, event) -> event.getSongId(), Serdes.Long(), playEventSerde);
+      // the same grouping, but each windowed count still repartitions the play events on its own
+      groupedPlays = playEventsBySongId;
+
+      // create a state store to track song play counts by song id
+      final KTable<Long, Long> songPlayCounts = playEventsBySongId.count(SONG_PLAY_COUNT_STORE);
+
+      // The genre is only needed to group the play counts into charts, so we join it in from the
+      // songs table here. The play counts are partitioned by song id just like the songs table,
+      // so the join is local to each task.
+      playCountsByGenre = songPlayCounts.join(songTable,
+                                              (plays, song) -> KeyValue.pair(genreShard(song, genreShards),
+                                                                             new SongPlayCount(song.getId(), plays)))
+          .groupBy((songId, genreAndPlays) -> genreAndPlays, Serdes.String(), songPlayCountSerde);
+      playCountsByShard = songPlayCounts.groupBy((songId, plays) ->
+                                                     KeyValue.pair(topFiveShard(songId, topFiveShards),
+                                                                   new SongPlayCount(songId, plays)),
+                                                 Serdes.String(),
+                                                 songPlayCountSerde);
+    } else {
+      final KTable<Song, Long> songPlayCounts;
+      if (globalSongTable) {
+        // Every instance holds all the songs, so the play events can be joined with their song right
+        // where they are rather than being re-keyed and repartitioned by song id first.
+        final KStream<String, Song> songPlaysByRegion =
+            chartablePlays.leftJoin(globalSongs, (region, event) -> event.getSongId(), (event, song) -> song);
+
+        // create a state store to track song play counts
+        songPlayCounts = songPlaysByRegion.groupBy((region, song) -> song, songSerde, songSerde)
+            .count(SONG_PLAY_COUNT_STORE);
+      } else {
+        // repartition based on song id
+        final KStream<Long, PlayEvent> playsBySongId =
+            chartablePlays.map((key, value) -> KeyValue.pair(value.getSongId(), value));
+
+        // join the plays with song as we will use it later for charting
+        final KStream<Long, Song> songPlaysById = playsBySongId.leftJoin(songTable,
+                                                                         (value1, song) -> song,
+                                                                         Serdes.Long(),
+                                                                         playEventSerde);
+        // already partitioned by song id, so grouping them by it needs no further repartitioning
+        groupedPlays = songPlaysById.groupByKey(Serdes.Long(), songSerde);
+
+        // create a state store to track song play counts
+        songPlayCounts = songPlaysById.groupBy((songId, song) -> song, songSerde, songSerde)
+            .count(SONG_PLAY_COUNT_STORE);
+      }
 
-    final TopFiveSerde topFiveSerde = new TopFiveSerde();
+      playCountsByGenre = songPlayCounts.groupBy((song, plays) ->
+                                                     KeyValue.pair(genreShard(song, genreShards),
+                                                                   new SongPlayCount(song.getId(), plays)),
+                                                 Serdes.String(),
+                                                 songPlayCountSerde);
+      playCountsByShard = songPlayCounts.groupBy((song, plays) ->
+                                                     KeyValue.pair(topFiveShard(song.getId(), topFiveShards),
+                                                                   new SongPlayCount(song.getId(), plays)),
+                                                 Serdes.String(),
+                                                 songPlayCountSerde);
+    }
 
+    final TopKSongsSerde topKSongsSerde = new TopKSongsSerde(options.chartSize(), options.chartSlack());
 
     // Compute the top five charts for each genre. The results of this computation will continuously update the state
     // store "top-five-songs-by-genre", and this state store can then be queried interactively via a REST API (cf.
     // MusicPlaysRestService) for the latest charts per genre.
-    songPlayCounts.groupBy((song, plays) ->
-                               KeyValue.pair(song.getGenre().toLowerCase(),
-                                             new SongPlayCount(song.getId(), plays)),
-                           Serdes.String(),
-                           songPlayCountSerde)
-        // aggregate into a TopFiveSongs instance that will keep track
-        // of the current top five for each genre. The data will be available in the
-        // top-five-songs-genre store
-        .aggregate(TopFiveSongs::new,
-                   (aggKey, value, aggregate) -> {
-                     aggregate.add(value);
-                     return aggregate;
-                   },
-                   (aggKey, value, aggregate) -> {
-                     aggregate.remove(value);
-                     return aggregate;
-                   },
-                   topFiveSerde,
-                   TOP_FIVE_SONGS_BY_GENRE_STORE
-        );
+    //
+    // A few genres may account for most of the plays, and the task that hosts such a genre would
+    // have to aggregate all of them. If configured, the songs of each genre are therefore spread
+    // across shards, just like for the overall top five below.
+    final KTable<String, TopKSongs> genreCharts;
+    if (genreShards == 1) {
+      genreCharts = topKSongs(playCountsByGenre, options, topKSongsSerde, TOP_FIVE_SONGS_BY_GENRE_STORE);
+    } else {
+      final KTable<String, TopKSongs> genrePartials =
+          topKSongs(playCountsByGenre, options, topKSongsSerde, TOP_FIVE_SONGS_BY_GENRE_PARTIALS_STORE);
+      genreCharts = mergeCharts(genrePartials,
+                                (shard, partial) -> KeyValue.pair(genreOfShard(shard), partial),
+                                options,
+                                topKSongsSerde,
+                                TOP_FIVE_SONGS_BY_GENRE_STORE);
+    }
 
     // Compute the top five chart. The results of this computation will continuously update the state
     // store "top-five-songs", and this state store can then be queried interactively via a REST API (cf.
     // MusicPlaysRestService) for the latest charts per genre.
-    songPlayCounts.groupBy((song, plays) ->
-                               KeyValue.pair(TOP_FIVE_KEY,
-                                             new SongPlayCount(song.getId(), plays)),
-                           Serdes.String(),
-                           songPlayCountSerde)
-        .aggregate(TopFiveSongs::new,
-                   (aggKey, value, aggregate) -> {
-                     aggregate.add(value);
+    //
+    // Grouping all song play counts under a single key would funnel every update in the cluster
+    // through one partition, i.e., one task. Instead, we first compute partial charts for disjoint
+    // shards of the songs, which are spread across the partitions, and then merge the partial
+    // charts. The merge step only sees an update whenever a partial chart changes.
+    final KTable<String, TopKSongs> topFivePartials =
+        topKSongs(playCountsByShard, options, topKSongsSerde, TOP_FIVE_SONGS_PARTIALS_STORE);
+
+    final KTable<String, TopKSongs> topFive = mergeCharts(topFivePartials,
+                                                          (shard, partial) -> KeyValue.pair(TOP_FIVE_KEY, partial),
+                                                          options,
+                                                          topKSongsSerde,
+                                                          TOP_FIVE_SONGS_STORE);
+
+    // Compute the charts per time window, e.g., the top five songs of the current hour. The windowed
+    // charts are added after the charts above, so that the names of their processors, and thus of
+    // their internal topics, do not depend on them.
+    if (!options.chartWindows().isEmpty()) {
+      if (groupedPlays == null) {
+        // the play events have been joined with the global songs in place, so every windowed count
+        // repartitions them by song id
+        groupedPlays = chartablePlays.groupBy((region, event) -> event.getSongId(), Serdes.Long(), playEventSerde);
+      }
+      for (final ChartOptions.ChartWindow window : options.chartWindows()) {
+        windowedCharts(groupedPlays, songTable, globalSongs, window, options, songPlayCountSerde);
+      }
+    }
+
+    // Stream out the changes of the charts to the topic "chart-changes". The chart tables are
+    // updated with every play, but a change is only written when the songs in a chart or their
+    // order change, which is far less often.
+    final SpecificAvroSerde<ChartChange> chartChangeSerde = new SpecificAvroSerde<>(schemaRegistry, serdeProps);
+    chartChangeSerde.configure(serdeProps, false);
+    chartChanges(builder, genreCharts, TOP_FIVE_SONGS_BY_GENRE_STORE, chartChangeSerde);
+    chartChanges(builder, topFive, TOP_FIVE_SONGS_STORE, chartChangeSerde);
+
+    return new KafkaStreams(builder, streamsConfiguration);
+
+  }
+
+  /**
+   * Merge partial charts into the charts that the given mapper assigns them to. The shards hold
+   * disjoint sets of songs, so an updated partial chart can be merged by retracting the songs of
+   * its previous version and adding the songs of the new one.
+   */
+  private static KTable<String, TopKSongs> mergeCharts(
+      final KTable<String, TopKSongs> partials,
+      final KeyValueMapper<String, TopKSongs, KeyValue<String, TopKSongs>> chart,
+      final ChartOptions options,
+      final TopKSongsSerde topKSongsSerde,
+      final String storeName) {
+    return partials.groupBy(chart, Serdes.String(), topKSongsSerde)
+        .aggregate(() -> new TopKSongs(options.chartSize(), options.chartSlack()),
+                   (aggKey, partial, aggregate) -> {
+                     aggregate.addAll(partial);
                      return aggregate;
                    },
-                   (aggKey, value, aggregate) -> {
-                     aggregate.remove(value);
+                   (aggKey, partial, aggregate) -> {
+                     aggregate.removeAll(partial);
                      return aggregate;
                    },
-                   topFiveSerde,
-                   TOP_FIVE_SONGS_STORE
+                   topKSongsSerde,
+                   storeName
         );
-
-    return new KafkaStreams(builder, streamsConfiguration);
-
   }
 
   /**
-   * Serde for TopFiveSongs
+   * Write the ranking changes of the given charts to the topic "chart-changes". The latest ranking
+   * of each chart is kept in a state store of its own, e.g., "top-five-songs-rankings", which is
+   * partitioned like the chart table.
    */
-  private static class TopFiveSerde implements Serde<TopFiveSongs> {
-
-    @Override
-    public void configure(final Map<String, ?> map, final boolean b) {
-
-    }
-
-    @Override
-    public void close() {
-
-    }
+  private static void chartChanges(final KStreamBuilder builder,
+                                   final KTable<String, TopKSongs> charts,
+                                   final String chartStore,
+                                   final SpecificAvroSerde<ChartChange> chartChangeSerde) {
+    final StateStoreSupplier rankings = Stores.create(chartStore + CHART_RANKINGS_STORE_SUFFIX)
+        .withKeys(Serdes.String())
+        .withValues(chartChangeSerde)
+        .persistent()
+        .build();
+    builder.addStateStore(rankings);
+
+    charts.toStream()
+        .transform(() -> new ChartChangeTransformer(chartStore, rankings.name()), rankings.name())
+        .to(Serdes.String(), chartChangeSerde, CHART_CHANGES);
+  }
 
-    @Override
-    public Serializer<TopFiveSongs> serializer() {
-      return new Serializer<TopFiveSongs>() {
-        @Override
-        public void configure(final Map<String, ?> map, final boolean b) {
-        }
-
-        @Override
-        public byte[] serialize(final String s, final TopFiveSongs topFiveSongs) {
-          final ByteArrayOutputStream out = new ByteArrayOutputStream();
-          final DataOutputStream
-              dataOutputStream =
-              new DataOutputStream(out);
-          try {
-            for (SongPlayCount songPlayCount : topFiveSongs) {
-                dataOutputStream.writeLong(songPlayCount.getSongId());
-                dataOutputStream.writeLong(songPlayCount.getPlays());
-            }
-            dataOutputStream.flush();
-          } catch (IOException e) {
-            throw new RuntimeException(e);
-          }
-            return out.toByteArray();
-        }
-
-        @Override
-        public void close() {
-
-        }
-      };
-    }
+  /**
+   * Aggregate song play counts into a TopKSongs instance per key that keeps track of the current
+   * top songs. It also keeps track of a few runner-up songs that move up when songs are retracted
+   * from the chart; should there be too few of them, MusicPlaysRestService refills the chart from
+   * the song-play-count store.
+   */
+  private static KTable<String, TopKSongs> topKSongs(final KGroupedTable<String, SongPlayCount> playCounts,
+                                                     final ChartOptions options,
+                                                     final TopKSongsSerde topKSongsSerde,
+                                                     final String storeName) {
+    return playCounts.aggregate(() -> new TopKSongs(options.chartSize(), options.chartSlack()),
+                                (aggKey, value, aggregate) -> {
+                                  aggregate.add(value.getSongId(), value.getPlays());
+                                  return aggregate;
+                                },
+                                (aggKey, value, aggregate) -> {
+                                  aggregate.remove(value.getSongId(), value.getPlays());
+                                  return aggregate;
+                                },
+                                topKSongsSerde,
+                                storeName);
+  }
 
-    @Override
-    public Deserializer<TopFiveSongs> deserializer() {
-      return new Deserializer<TopFiveSongs>() {
-        @Override
-        public void configure(final Map<String, ?> map, final boolean b) {
-
-        }
-
-        @Override
-        public TopFiveSongs deserialize(final String s, final byte[] bytes) {
-          if (bytes == null || bytes.length == 0) {
-            return null;
-          }
-          final TopFiveSongs result = new TopFiveSongs();
-
-          final DataInputStream
-              dataInputStream =
-              new DataInputStream(new ByteArrayInputStream(bytes));
-
-          try {
-            while(dataInputStream.available() > 0) {
-              result.add(new SongPlayCount(dataInputStream.readLong(),
-                                           dataInputStream.readLong()));
-            }
-          } catch (IOException e) {
-            throw new RuntimeException(e);
-          }
-          return result;
-        }
-
-        @Override
-        public void close() {
-
-        }
-      };
+  /**
+   * Compute the charts of the given time window: the plays of every song are counted by song id per
+   * window into the state store "song-play-count-hourly" (for hourly windows), which are aggregated
+   * into the top songs per genre and window in "top-five-songs-by-genre-hourly". Like for the
+   * all-time charts, the top songs across all genres per window in "top-five-songs-hourly" are
+   * merged from partial charts of disjoint shards of the songs, so that the play counts are not all
+   * funnelled through a single key.
+   *
+   * Within a window, play counts only ever increase. A song that drops out of a chart could only
+   * return with a higher play count, which is an update of its own. So, unlike the all-time charts,
+   * the windowed charts need neither retractions nor runner-up songs, and the partial charts, which
+   * hold disjoint sets of songs, are merged by simply adding the songs of every new version. Every
+   * chart is bounded to the chart size, and only the most recent windows are retained.
+   */
+  private static void windowedCharts(final KGroupedStream<Long, ?> groupedPlays,
+                                     final KTable<Long, Song> songTable,
+                                     final GlobalKTable<Long, Song> globalSongs,
+                                     final ChartOptions.ChartWindow window,
+                                     final ChartOptions options,
+                                     final SpecificAvroSerde<SongPlayCount> songPlayCountSerde) {
+    final TimeWindows windows =
+        TimeWindows.of(window.sizeMs()).until(window.sizeMs() * options.chartWindowRetention());
+    final TopKSongsSerde topKSongsSerde = new TopKSongsSerde(options.chartSize());
+
+    final KTable<Windowed<Long>, Long> songPlayCounts =
+        groupedPlays.count(windows, window.storeName(SONG_PLAY_COUNT_STORE));
+
+    // The updated play counts keep the timestamps of the play events, and thus their windows. Like
+    // for the all-time play counts by song id, the genre is joined in from the songs. Only the
+    // updates of the play counts are joined, which the record cache of the count store reduces to
+    // far fewer than the play events.
+    final ValueJoiner<Long, Song, KeyValue<String, SongPlayCount>> withGenre =
+        (plays, song) -> KeyValue.pair(song.getGenre().toLowerCase(), new SongPlayCount(song.getId(), plays));
+    final KStream<String, SongPlayCount> playCountsByGenre;
+    if (globalSongs != null) {
+      playCountsByGenre = songPlayCounts.toStream()
+          .join(globalSongs, (windowedSongId, plays) -> windowedSongId.key(), withGenre)
+          .map((windowedSongId, genreAndPlays) -> genreAndPlays);
+    } else {
+      playCountsByGenre = songPlayCounts.toStream()
+          .map((windowedSongId, plays) -> KeyValue.pair(windowedSongId.key(), plays))
+          .join(songTable, withGenre, Serdes.Long(), Serdes.Long())
+          .map((songId, genreAndPlays) -> genreAndPlays);
     }
+    windowedTopKSongs(playCountsByGenre.groupByKey(Serdes.String(), songPlayCountSerde),
+                      windows,
+                      options,
+                      topKSongsSerde,
+                      window.storeName(TOP_FIVE_SONGS_BY_GENRE_STORE));
+
+    final KStream<String, SongPlayCount> playCountsByShard = songPlayCounts.toStream()
+        .map((windowedSongId, plays) ->
+                 KeyValue.pair(topFiveShard(windowedSongId.key(), options.topFiveShards()),
+                               new SongPlayCount(windowedSongId.key(), plays)));
+    final KTable<Windowed<String>, TopKSongs> topFivePartials =
+        windowedTopKSongs(playCountsByShard.groupByKey(Serdes.String(), songPlayCountSerde),
+                          windows,
+                          options,
+                          topKSongsSerde,
+                          window.storeName(TOP_FIVE_SONGS_PARTIALS_STORE));
+
+    topFivePartials.toStream()
+        .map((windowedShard, partial) -> KeyValue.pair(TOP_FIVE_KEY, partial))
+        .groupByKey(Serdes.String(), topKSongsSerde)
+        .aggregate(() -> new TopKSongs(options.chartSize()),
+                   (key, partial, merged) -> {
+                     merged.addAll(partial);
+                     return merged;
+                   },
+                   windows,
+                   topKSongsSerde,
+                   window.storeName(TOP_FIVE_SONGS_STORE));
   }
 
   /**
-   * Used in aggregations to keep track of the Top five songs
+   * Aggregate song play counts into a TopKSongs instance per key and window. The play counts only
+   * increase within a window, so the songs are simply added.
    */
-  static class TopFiveSongs implements Iterable<SongPlayCount> {
-    private final Map<Long, SongPlayCount> currentSongs = new HashMap<>();
-    private final TreeSet<SongPlayCount> topFive = new TreeSet<>((o1, o2) -> {
-      final int result = o2.getPlays().compareTo(o1.getPlays());
-      if (result != 0) {
-        return result;
-      }
-      return o1.getSongId().compareTo(o2.getSongId());
-    });
+  private static KTable<Windowed<String>, TopKSongs> windowedTopKSongs(
+      final KGroupedStream<String, SongPlayCount> playCounts,
+      final TimeWindows windows,
+      final ChartOptions options,
+      final TopKSongsSerde topKSongsSerde,
+      final String storeName) {
+    return playCounts.aggregate(() -> new TopKSongs(options.chartSize()),
+                                (aggKey, value, chart) -> {
+                                  chart.add(value.getSongId(), value.getPlays());
+                                  return chart;
+                                },
+                                windows,
+                                topKSongsSerde,
+                                storeName);
+  }
 
-    public void add(final SongPlayCount songPlayCount) {
-      if(currentSongs.containsKey(songPlayCount.getSongId())) {
-        topFive.remove(currentSongs.remove(songPlayCount.getSongId()));
-      }
-      topFive.add(songPlayCount);
-      currentSongs.put(songPlayCount.getSongId(), songPlayCount);
-      if (topFive.size() > 5) {
-        final SongPlayCount last = topFive.last();
-        currentSongs.remove(last.getSongId());
-        topFive.remove(last);
-      }
-    }
+  /**
+   * The key of the partial top five chart that the given song belongs to.
+   */
+  static String topFiveShard(final long songId, final int shards) {
+    return TOP_FIVE_KEY + "-" + Math.floorMod(Long.hashCode(songId), shards);
+  }
 
-    void remove(final SongPlayCount value) {
-      topFive.remove(value);
-      currentSongs.remove(value.getSongId());
+  /**
+   * The key of the partial genre chart that the given song belongs to, e.g., "punk-3", or just the
+   * genre if the genre charts are not sharded.
+   */
+  static String genreShard(final Song song, final int shards) {
+    final String genre = song.getGenre().toLowerCase();
+    if (shards == 1) {
+      return genre;
     }
+    return genre + GENRE_SHARD_SEPARATOR + Math.floorMod(Long.hashCode(song.getId()), shards);
+  }
 
-
-    @Override
-    public Iterator<SongPlayCount> iterator() {
-      return topFive.iterator();
-    }
+  /**
+   * The genre of the given partial genre chart.
+   */
+  static String genreOfShard(final String shard) {
+    return shard.substring(0, shard.lastIndexOf(GENRE_SHARD_SEPARATOR));
   }
 
 
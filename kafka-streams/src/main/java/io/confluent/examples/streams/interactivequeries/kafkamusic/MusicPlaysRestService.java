@@ -13,35 +13,77 @@
  */
 package io.confluent.examples.streams.interactivequeries.kafkamusic;
 
+import org.apache.kafka.common.metrics.JmxReporter;
+import org.apache.kafka.common.metrics.MetricConfig;
+import org.apache.kafka.common.metrics.Metrics;
 import org.apache.kafka.common.serialization.LongSerializer;
 import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.common.utils.Time;
 import org.apache.kafka.streams.KafkaStreams;
+import org.apache.kafka.streams.KeyValue;
 import org.apache.kafka.streams.state.HostInfo;
+import org.apache.kafka.streams.state.KeyValueIterator;
 import org.apache.kafka.streams.state.QueryableStoreTypes;
 import org.apache.kafka.streams.state.ReadOnlyKeyValueStore;
+import org.apache.kafka.streams.state.ReadOnlyWindowStore;
+import org.apache.kafka.streams.state.WindowStoreIterator;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.glassfish.jersey.client.ClientProperties;
 import org.glassfish.jersey.jackson.JacksonFeature;
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.SseFeature;
 import org.glassfish.jersey.server.ResourceConfig;
 import org.glassfish.jersey.servlet.ServletContainer;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.NotFoundException;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.GenericEntity;
 import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 
+import io.confluent.examples.streams.avro.ChartQuery;
 import io.confluent.examples.streams.avro.Song;
+import io.confluent.examples.streams.avro.SongsQuery;
+import io.confluent.examples.streams.interactivequeries.AdmissionController;
+import io.confluent.examples.streams.interactivequeries.AvroProvider;
 import io.confluent.examples.streams.interactivequeries.HostStoreInfo;
 import io.confluent.examples.streams.interactivequeries.MetadataService;
+import io.confluent.examples.streams.interactivequeries.PartitionRoutingTable;
+import io.confluent.examples.streams.interactivequeries.RemoteQueryExecutor;
+import io.confluent.examples.streams.interactivequeries.SingleFlight;
+import io.confluent.examples.streams.interactivequeries.SmileProvider;
+import io.confluent.examples.streams.interactivequeries.StoreUnavailableExceptionMapper;
 
 /**
  *  A simple REST proxy that runs embedded in the {@link KafkaMusicExample}. This is used to
@@ -51,122 +93,677 @@ import io.confluent.examples.streams.interactivequeries.MetadataService;
 @Path("kafka-music")
 public class MusicPlaysRestService {
 
+  private static final int REMOTE_QUERY_THREADS = 16;
+  private static final int REMOTE_QUERY_QUEUE_SIZE = 256;
+  private static final long REMOTE_QUERY_TIMEOUT_MS = 5000L;
+  private static final StringSerializer STRING_SERIALIZER = new StringSerializer();
+  // The peer query server of an instance listens on the port of its REST endpoint plus this offset
+  static final int PEER_PORT_OFFSET = 10000;
+  private static final int PEER_CONNECTIONS_PER_INSTANCE = 2;
+  private static final int PEER_CONNECT_TIMEOUT_MS = 1000;
+  private static final long CHART_PUSH_INTERVAL_MS = 1000L;
+  private static final long CHART_PUSH_KEEP_ALIVE_MS = 10000L;
+  private static final int CHART_SUBSCRIBERS_MAX = 1024;
+  private static final int CHART_PUSH_THREADS = 4;
+  // how long a chart is handed to identical queries after it has been computed
+  private static final long CHART_QUERY_HOLD_MS = 100L;
+  // how long a refilled chart is reused as long as the incomplete chart has not changed
+  private static final long REFILLED_CHART_MAX_AGE_MS = 10000L;
+  // the maximum number of songs the top plays endpoint answers with
+  private static final int TOP_PLAYS_MAX_LIMIT = 100;
+  // The number of requests each endpoint works on concurrently, and how many requests may wait
+  // for how long before they are rejected. The chart endpoints hold on to their slot until all of
+  // their remote calls have completed, so they get more of them.
+  private static final int ENDPOINT_MAX_CONCURRENT = 32;
+  private static final int CHART_ENDPOINT_MAX_CONCURRENT = 256;
+  private static final int ENDPOINT_MAX_QUEUED = 64;
+  private static final long ENDPOINT_MAX_QUEUE_MS = 100L;
+
   private final KafkaStreams streams;
   private final MetadataService metadataService;
   private final HostInfo hostInfo;
-  private final Client client = ClientBuilder.newBuilder().register(JacksonFeature.class).build();
+  private final SongMetadataCache songCache;
+  private final ChartOptions.PlayCountKey playCountKey;
+  // whether every instance holds all the songs
+  private final boolean globalSongs;
+  private final Set<ChartOptions.ChartWindow> chartWindows;
+  private final Client client = ClientBuilder.newBuilder()
+      .register(JacksonFeature.class)
+      .property(ClientProperties.CONNECT_TIMEOUT, (int) REMOTE_QUERY_TIMEOUT_MS)
+      .property(ClientProperties.READ_TIMEOUT, (int) REMOTE_QUERY_TIMEOUT_MS)
+      .build();
+  private final Metrics metrics =
+      new Metrics(new MetricConfig(), Collections.singletonList(new JmxReporter("kafka.music")), Time.SYSTEM);
+  private final RemoteQueryExecutor remoteQueries;
+  private final AdmissionController admissionController;
+  private final ChartResponseCache chartCache = new ChartResponseCache();
+  private final RefilledChartCache refilledCharts = new RefilledChartCache(REFILLED_CHART_MAX_AGE_MS);
+  // Concurrent queries for the same chart, routed to the same instance, share one computation
+  private final SingleFlight<String, ChartResponseCache.RenderedChart> chartQueries =
+      new SingleFlight<>(CHART_QUERY_HOLD_MS);
+  private final SingleFlight<String, List<SongPlayCountBean>> peerChartQueries =
+      new SingleFlight<>(CHART_QUERY_HOLD_MS);
+  // Used to follow the chart streams of other instances. The read timeout must be longer than the
+  // interval of the keep-alive events.
+  private final Client sseClient = ClientBuilder.newBuilder()
+      .register(SseFeature.class)
+      .property(ClientProperties.CONNECT_TIMEOUT, (int) REMOTE_QUERY_TIMEOUT_MS)
+      .property(ClientProperties.READ_TIMEOUT, (int) (3 * CHART_PUSH_KEEP_ALIVE_MS))
+      .build();
+  private final Map<String, ProxiedChartStream> proxiedCharts = new ConcurrentHashMap<>();
+  private final ExecutorService proxiedChartOpeners = Executors.newCachedThreadPool(r -> {
+    final Thread thread = new Thread(r, "kafka-music-chart-stream-opener");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final ChartSubscriptions chartSubscriptions;
+  // null unless other instances are queried via the peer query channel
+  private final PeerQueryClient peerQueries;
+  private PeerQueryServer peerQueryServer;
   private Server jettyServer;
   private LongSerializer serializer = new LongSerializer();
 
 
-  MusicPlaysRestService(final KafkaStreams streams, final HostInfo hostInfo) {
+  MusicPlaysRestService(final KafkaStreams streams,
+                        final HostInfo hostInfo,
+                        final PartitionRoutingTable routingTable,
+                        final SongMetadataCache songCache) {
+    this(streams, hostInfo, routingTable, songCache, false);
+  }
+
+  /**
+   * @param peerQueries   whether to query other instances via the binary peer query channel
+   *                      rather than their JSON REST API. All instances of the application must
+   *                      agree on this setting.
+   */
+  MusicPlaysRestService(final KafkaStreams streams,
+                        final HostInfo hostInfo,
+                        final PartitionRoutingTable routingTable,
+                        final SongMetadataCache songCache,
+                        final boolean peerQueries) {
+    this(streams, hostInfo, routingTable, songCache, peerQueries, new ChartOptions());
+  }
+
+  /**
+   * @param chartOptions  the options the charts are computed with
+   */
+  MusicPlaysRestService(final KafkaStreams streams,
+                        final HostInfo hostInfo,
+                        final PartitionRoutingTable routingTable,
+                        final SongMetadataCache songCache,
+                        final boolean peerQueries,
+                        final ChartOptions chartOptions) {
     this.streams = streams;
-    this.metadataService = new MetadataService(streams);
+    this.metadataService = new MetadataService(streams, hostInfo, routingTable);
     this.hostInfo = hostInfo;
+    this.songCache = songCache;
+    this.playCountKey = chartOptions.playCountKey();
+    this.globalSongs = chartOptions.songTable() == ChartOptions.SongTable.GLOBAL;
+    this.chartWindows = chartOptions.chartWindows();
+    this.remoteQueries = new RemoteQueryExecutor("kafka-music",
+                                                 REMOTE_QUERY_THREADS,
+                                                 REMOTE_QUERY_QUEUE_SIZE,
+                                                 REMOTE_QUERY_TIMEOUT_MS,
+                                                 metrics);
+    this.admissionController = new AdmissionController("kafka-music",
+                                                       ENDPOINT_MAX_CONCURRENT,
+                                                       ENDPOINT_MAX_QUEUED,
+                                                       ENDPOINT_MAX_QUEUE_MS,
+                                                       metrics)
+        .limit("genreCharts", CHART_ENDPOINT_MAX_CONCURRENT)
+        .limit("topFive", CHART_ENDPOINT_MAX_CONCURRENT)
+        .limit("windowedGenreCharts", CHART_ENDPOINT_MAX_CONCURRENT)
+        .limit("windowedTopFive", CHART_ENDPOINT_MAX_CONCURRENT);
+    this.peerQueries = peerQueries
+                       ? new PeerQueryClient(PEER_CONNECTIONS_PER_INSTANCE, PEER_CONNECT_TIMEOUT_MS)
+                       : null;
+    this.chartSubscriptions = new ChartSubscriptions(new ChartSubscriptions.ChartSource() {
+      @Override
+      public CompletableFuture<ChartSubscriptions.ChartEvent> latest(final String store, final String key) {
+        return latestChart(store, key);
+      }
+
+      @Override
+      public void release(final String store, final String key) {
+        final ProxiedChartStream proxied = proxiedCharts.remove(store + '/' + key);
+        if (proxied != null) {
+          proxied.close();
+        }
+      }
+    }, CHART_PUSH_INTERVAL_MS, CHART_PUSH_KEEP_ALIVE_MS, CHART_SUBSCRIBERS_MAX, CHART_PUSH_THREADS);
   }
 
+  // The chart endpoints are asynchronous: everything that can be answered from the local state
+  // stores is done right away on the calling Jetty thread, whereas calls to other instances are
+  // handed over to the bounded remoteQueries executor. The Jetty thread is released as soon as the
+  // request is suspended and the response is resumed once all remote calls have completed.
+  //
+  // The chart endpoints answer within the time the caller passes in the X-Request-Timeout-Ms
+  // header, if any, and pass the remaining time on to the instances they call.
+  //
+  // The responses carry an ETag. Clients that poll the charts should send it back in an
+  // If-None-Match header to get a 304 (Not Modified) as long as the chart has not changed.
+  //
+  // Like all other endpoints, except those answering with maps keyed by song id, which Avro cannot
+  // represent, the chart endpoints answer with Avro binary or Smile rather than JSON if the client
+  // asks for it in the Accept header.
 
   @GET
   @Path("/charts/genre/{genre}")
-  @Produces(MediaType.APPLICATION_JSON)
-  public List<SongPlayCountBean> genreCharts(@PathParam("genre") final String genre) {
+  @Produces({MediaType.APPLICATION_JSON, AvroProvider.AVRO_BINARY, SmileProvider.SMILE})
+  public void genreCharts(@PathParam("genre") final String genre,
+                          @HeaderParam(HttpHeaders.IF_NONE_MATCH) final String ifNoneMatch,
+                          @HeaderParam(AdmissionController.TIMEOUT_HEADER) final String timeout,
+                          @Context final Request request,
+                          @Suspended final AsyncResponse asyncResponse) {
+    final long timeoutMs = AdmissionController.timeoutMs(timeout, REMOTE_QUERY_TIMEOUT_MS);
+    final long deadline = System.currentTimeMillis() + timeoutMs;
+    final MediaType type = ChartResponseCache.mediaType(request);
+
+    // The charts are keyed by the lower-cased genre, so we need to route by it, too.
+    final String genreKey = genre.toLowerCase();
 
     // The genre might be hosted on another instance. We need to find which instance it is on
     // and then perform a remote lookup if necessary.
     final HostStoreInfo
         host =
-        metadataService.streamsMetadataForStoreAndKey(KafkaMusicExample.TOP_FIVE_SONGS_BY_GENRE_STORE, genre, new
-            StringSerializer());
+        metadataService.streamsMetadataForStoreAndKey(KafkaMusicExample.TOP_FIVE_SONGS_BY_GENRE_STORE, genreKey,
+                                                      STRING_SERIALIZER);
 
-    // genre is on another instance. call the other instance to fetch the data.
-    if (!thisHost(host)) {
-      return fetchSongPlayCount(host, "kafka-music/charts/genre/" + genre);
-    }
-
-    // genre is on this instance
-    return topFiveSongs(genre.toLowerCase(), KafkaMusicExample.TOP_FIVE_SONGS_BY_GENRE_STORE);
+    // If the genre is on another instance, call the other instance to fetch the data.
+    RemoteQueryExecutor.resume(asyncResponse,
+                               chart(host, KafkaMusicExample.TOP_FIVE_SONGS_BY_GENRE_STORE, genreKey,
+                                     "kafka-music/charts/genre/" + genreKey, deadline)
+                                   .thenApply(chart -> ChartResponseCache.respond(chart, ifNoneMatch, type)),
+                               timeoutMs);
 
   }
 
   @GET
   @Path("/charts/top-five")
-  @Produces(MediaType.APPLICATION_JSON)
-  public List<SongPlayCountBean> topFive() {
+  @Produces({MediaType.APPLICATION_JSON, AvroProvider.AVRO_BINARY, SmileProvider.SMILE})
+  public void topFive(@HeaderParam(HttpHeaders.IF_NONE_MATCH) final String ifNoneMatch,
+                      @HeaderParam(AdmissionController.TIMEOUT_HEADER) final String timeout,
+                      @Context final Request request,
+                      @Suspended final AsyncResponse asyncResponse) {
+    final long timeoutMs = AdmissionController.timeoutMs(timeout, REMOTE_QUERY_TIMEOUT_MS);
+    final long deadline = System.currentTimeMillis() + timeoutMs;
+    final MediaType type = ChartResponseCache.mediaType(request);
     // The top-five might be hosted elsewhere. There is only one 1 partition with data
     // so we need to first find where it is and then we can do a local or remote lookup.
     final HostStoreInfo
         host =
         metadataService.streamsMetadataForStoreAndKey(KafkaMusicExample.TOP_FIVE_SONGS_STORE, KafkaMusicExample
-            .TOP_FIVE_KEY, new StringSerializer());
+            .TOP_FIVE_KEY, STRING_SERIALIZER);
+
+    // top-five is either hosted on another instance, or locally, in which case we lookup in the
+    // local store
+    RemoteQueryExecutor.resume(asyncResponse,
+                               chart(host, KafkaMusicExample.TOP_FIVE_SONGS_STORE, KafkaMusicExample.TOP_FIVE_KEY,
+                                     "kafka-music/charts/top-five/", deadline)
+                                   .thenApply(chart -> ChartResponseCache.respond(chart, ifNoneMatch, type)),
+                               timeoutMs);
+  }
+
+  // The windowed chart endpoints answer with the charts of all windows, e.g., hours, that overlap
+  // the time range from...to, given in milliseconds since the epoch, in chronological order.
+  // Without a time range, they answer with the chart of the current window. Windows without any
+  // plays, or that are not retained anymore, are left out.
+
+  @GET
+  @Path("/charts/genre/{genre}/{window}")
+  @Produces({MediaType.APPLICATION_JSON, AvroProvider.AVRO_BINARY, SmileProvider.SMILE})
+  public void windowedGenreCharts(@PathParam("genre") final String genre,
+                                  @PathParam("window") final String window,
+                                  @QueryParam("from") final Long from,
+                                  @QueryParam("to") final Long to,
+                                  @HeaderParam(AdmissionController.TIMEOUT_HEADER) final String timeout,
+                                  @Suspended final AsyncResponse asyncResponse) {
+    final String genreKey = genre.toLowerCase();
+    windowedCharts(KafkaMusicExample.TOP_FIVE_SONGS_BY_GENRE_STORE, genreKey, "kafka-music/charts/genre/" + genreKey,
+                   window, from, to, timeout, asyncResponse);
+  }
+
+  @GET
+  @Path("/charts/top-five/{window}")
+  @Produces({MediaType.APPLICATION_JSON, AvroProvider.AVRO_BINARY, SmileProvider.SMILE})
+  public void windowedTopFive(@PathParam("window") final String window,
+                              @QueryParam("from") final Long from,
+                              @QueryParam("to") final Long to,
+                              @HeaderParam(AdmissionController.TIMEOUT_HEADER) final String timeout,
+                              @Suspended final AsyncResponse asyncResponse) {
+    windowedCharts(KafkaMusicExample.TOP_FIVE_SONGS_STORE, KafkaMusicExample.TOP_FIVE_KEY, "kafka-music/charts/top-five",
+                   window, from, to, timeout, asyncResponse);
+  }
+
+  private void windowedCharts(final String store,
+                              final String key,
+                              final String path,
+                              final String windowName,
+                              final Long from,
+                              final Long to,
+                              final String timeout,
+                              final AsyncResponse asyncResponse) {
+    final ChartOptions.ChartWindow window = chartWindow(windowName);
+    final long timeoutMs = AdmissionController.timeoutMs(timeout, REMOTE_QUERY_TIMEOUT_MS);
+    final long deadline = System.currentTimeMillis() + timeoutMs;
+    final long rangeTo = to != null ? to : System.currentTimeMillis();
+    final long rangeFrom = from != null ? from : rangeTo;
+    if (rangeFrom > rangeTo) {
+      throw new BadRequestException(String.format("Invalid time range from %d to %d", rangeFrom, rangeTo));
+    }
+
+    final String storeName = window.storeName(store);
+    final HostStoreInfo host = metadataService.streamsMetadataForStoreAndKey(storeName, key, STRING_SERIALIZER);
+    final CompletableFuture<List<WindowedChartBean>> charts;
+    if (metadataService.isThisHost(host)) {
+      charts = resolveWindowedCharts(window, readWindowedCharts(storeName, key, window.windowStart(rangeFrom), rangeTo),
+                                     deadline);
+    } else {
+      // pass on the time range rather than leaving it to the other instance, whose clock may differ
+      charts = remoteQueries.submit(() -> fetchWindowedCharts(host, path + '/' + windowName.toLowerCase(),
+                                                              rangeFrom, rangeTo, remainingMs(deadline)),
+                                    timeoutMs);
+    }
+    RemoteQueryExecutor.resume(asyncResponse,
+                               charts.thenApply(list -> new GenericEntity<List<WindowedChartBean>>(list) { }),
+                               timeoutMs);
+  }
+
+  private ChartOptions.ChartWindow chartWindow(final String windowName) {
+    for (final ChartOptions.ChartWindow window : chartWindows) {
+      if (window.name().equalsIgnoreCase(windowName)) {
+        return window;
+      }
+    }
+    throw new NotFoundException(String.format("There are no %s charts", windowName));
+  }
+
+  private List<KeyValue<Long, TopKSongs>> readWindowedCharts(final String storeName,
+                                                            final String key,
+                                                            final long from,
+                                                            final long to) {
+    final ReadOnlyWindowStore<String, TopKSongs> store =
+        streams.store(storeName, QueryableStoreTypes.<String, TopKSongs>windowStore());
+    final List<KeyValue<Long, TopKSongs>> charts = new ArrayList<>();
+    try (final WindowStoreIterator<TopKSongs> iterator = store.fetch(key, from, to)) {
+      while (iterator.hasNext()) {
+        charts.add(iterator.next());
+      }
+    }
+    return charts;
+  }
+
+  private CompletableFuture<List<WindowedChartBean>> resolveWindowedCharts(final ChartOptions.ChartWindow window,
+                                                                         final List<KeyValue<Long, TopKSongs>> charts,
+                                                                         final long deadline) {
+    // resolve the songs of all the charts in one go, as songs tend to chart in several windows
+    final Set<Long> songIds = new LinkedHashSet<>();
+    for (final KeyValue<Long, TopKSongs> chart : charts) {
+      chart.value.forEach((songId, plays) -> songIds.add(songId));
+    }
+    return songsById(new ArrayList<>(songIds), deadline).thenApply(songs -> {
+      final List<WindowedChartBean> results = new ArrayList<>(charts.size());
+      for (final KeyValue<Long, TopKSongs> chart : charts) {
+        results.add(new WindowedChartBean(chart.key, chart.key + window.sizeMs(), chartSongs(chart.value, songs)));
+      }
+      return results;
+    });
+  }
+
+  private List<WindowedChartBean> fetchWindowedCharts(final HostStoreInfo host,
+                                                      final String path,
+                                                      final long from,
+                                                      final long to,
+                                                      final long timeoutMs) {
+    return client.target(String.format("http://%s:%d/%s", host.getHost(), host.getPort(), path))
+        .queryParam("from", from)
+        .queryParam("to", to)
+        .request(MediaType.APPLICATION_JSON_TYPE)
+        .header(AdmissionController.TIMEOUT_HEADER, timeoutMs)
+        .get(new GenericType<List<WindowedChartBean>>() {
+        });
+  }
 
-    // top-five is hosted on another instance
-    if (!thisHost(host)) {
-      return fetchSongPlayCount(host, "kafka-music/charts/top-five/");
+  // Get a chart from the given instance, i.e., from the local store if it is this instance.
+  // Concurrent queries for the same chart that are routed to the same instance share a single
+  // computation, and its result is handed to the queries that follow within a short while, too.
+  // A shared computation, including its calls to other instances, is subject to the deadline of
+  // the query that started it.
+  private CompletableFuture<ChartResponseCache.RenderedChart> chart(final HostStoreInfo host,
+                                                                    final String storeName,
+                                                                    final String key,
+                                                                    final String path,
+                                                                    final long deadline) {
+    if (!metadataService.isThisHost(host)) {
+      return chartQueries.execute(storeName + '/' + key + '@' + host.getHost() + ':' + host.getPort(),
+                                  () -> remoteChart(host, storeName, key, path, deadline)
+                                      .thenApply(chartCache::render));
     }
+    return chartQueries.execute(storeName + '/' + key, () -> renderChart(key, storeName, deadline));
+  }
 
-    // top-five is hosted locally. so lookup in local store
-    return topFiveSongs(KafkaMusicExample.TOP_FIVE_KEY, KafkaMusicExample.TOP_FIVE_SONGS_STORE);
+  private CompletableFuture<ChartResponseCache.RenderedChart> renderChart(final String key,
+                                                                          final String storeName,
+                                                                          final long deadline) {
+    // As long as a complete chart does not change, it is answered from the cached rendering,
+    // e.g., with a 304 (Not Modified) for clients that have it already, without being resolved.
+    final TopKSongs value = readChart(key, storeName);
+    if (!value.isComplete()) {
+      return refilledChart(key, storeName, value, deadline)
+          .thenCompose(refilled -> renderChart(key, storeName, refilled, deadline));
+    }
+    return renderChart(key, storeName, value, deadline);
   }
 
-  private boolean thisHost(final HostStoreInfo host) {
-    return host.getHost().equals(hostInfo.host()) &&
-           host.getPort() == hostInfo.port();
+  private CompletableFuture<ChartResponseCache.RenderedChart> renderChart(final String key,
+                                                                          final String storeName,
+                                                                          final TopKSongs value,
+                                                                          final long deadline) {
+    final long fingerprint = chartFingerprint(value);
+    final ChartResponseCache.RenderedChart rendered = chartCache.get(storeName, key, fingerprint);
+    if (rendered != null) {
+      return CompletableFuture.completedFuture(rendered);
+    }
+    return resolveChart(value, deadline).thenApply(chart -> chartCache.put(storeName, key, fingerprint, chart));
   }
 
+  // The version of a chart is determined by its songs and their play counts, as well as by the
+  // versions of the metadata of these songs, so that updates of other songs leave it as it is.
+  private long chartFingerprint(final TopKSongs value) {
+    final long[] fingerprint = {value.fingerprint()};
+    value.forEach((songId, plays) -> fingerprint[0] = 31 * fingerprint[0] + songCache.version(songId));
+    return fingerprint[0];
+  }
+
+  // The chart subscription endpoints stream the chart as server-sent events: an event named
+  // "chart" with the chart as JSON whenever it has changed, at most once per second. The id of
+  // each event is the ETag of the chart. A client that reconnects with a Last-Event-ID header is
+  // only sent the chart once it has changed.
 
-  private List<SongPlayCountBean> fetchSongPlayCount(final HostStoreInfo host, final String path) {
+  @GET
+  @Path("/charts/genre/{genre}/stream")
+  @Produces(SseFeature.SERVER_SENT_EVENTS)
+  public EventOutput subscribeGenreCharts(@PathParam("genre") final String genre,
+                                          @HeaderParam(SseFeature.LAST_EVENT_ID_HEADER) final String lastEventId) {
+    return chartSubscriptions.subscribe(KafkaMusicExample.TOP_FIVE_SONGS_BY_GENRE_STORE, genre.toLowerCase(),
+                                        lastEventId);
+  }
+
+  @GET
+  @Path("/charts/top-five/stream")
+  @Produces(SseFeature.SERVER_SENT_EVENTS)
+  public EventOutput subscribeTopFive(@HeaderParam(SseFeature.LAST_EVENT_ID_HEADER) final String lastEventId) {
+    return chartSubscriptions.subscribe(KafkaMusicExample.TOP_FIVE_SONGS_STORE, KafkaMusicExample.TOP_FIVE_KEY,
+                                        lastEventId);
+  }
+
+  // Polled once per interval for every chart that has subscribers
+  private CompletableFuture<ChartSubscriptions.ChartEvent> latestChart(final String store, final String key) {
+    final HostStoreInfo host = metadataService.streamsMetadataForStoreAndKey(store, key, STRING_SERIALIZER);
+    final String chartKey = store + '/' + key;
+    if (!metadataService.isThisHost(host)) {
+      // Follow the stream of the hosting instance rather than polling it. If the chart has moved
+      // since, switch over to the stream of its new host.
+      ProxiedChartStream proxied = proxiedCharts.get(chartKey);
+      if (proxied != null && !(proxied.host().getHost().equals(host.getHost())
+                               && proxied.host().getPort() == host.getPort())) {
+        proxiedCharts.remove(chartKey, proxied);
+        proxied.close();
+        proxied = null;
+      }
+      if (proxied == null) {
+        proxied = new ProxiedChartStream(sseClient, host, chartStreamPath(store, key), proxiedChartOpeners);
+        proxiedCharts.put(chartKey, proxied);
+      }
+      return CompletableFuture.completedFuture(proxied.latest());
+    }
+
+    final ProxiedChartStream proxied = proxiedCharts.remove(chartKey);
+    if (proxied != null) {
+      proxied.close();
+    }
+    // fails if nothing has been played in this genre yet, which is skipped until the next poll
+    return chart(host, store, key, chartStreamPath(store, key), System.currentTimeMillis() + REMOTE_QUERY_TIMEOUT_MS)
+        .thenApply(
+        rendered -> new ChartSubscriptions.ChartEvent(rendered.etag().getValue(),
+                                                      new String(rendered.json(), StandardCharsets.UTF_8)));
+  }
+
+  private static String chartStreamPath(final String store, final String key) {
+    return store.equals(KafkaMusicExample.TOP_FIVE_SONGS_STORE)
+           ? "kafka-music/charts/top-five/stream"
+           : "kafka-music/charts/genre/" + key + "/stream";
+  }
+
+  private CompletableFuture<List<SongPlayCountBean>> remoteChart(final HostStoreInfo host,
+                                                                 final String store,
+                                                                 final String key,
+                                                                 final String path,
+                                                                 final long deadline) {
+    if (peerQueries != null) {
+      return remoteQueries.submitAsync(() -> peerQueries.chart(host.getHost(), peerPort(host), store, key),
+                                       remainingMs(deadline));
+    }
+    // the time the call waited for a thread is deducted from the time the other instance is given
+    return remoteQueries.submit(() -> fetchSongPlayCount(host, path, remainingMs(deadline)), remainingMs(deadline));
+  }
+
+  private List<SongPlayCountBean> fetchSongPlayCount(final HostStoreInfo host,
+                                                     final String path,
+                                                     final long timeoutMs) {
     return client.target(String.format("http://%s:%d/%s", host.getHost(), host.getPort(), path))
         .request(MediaType.APPLICATION_JSON_TYPE)
+        .header(AdmissionController.TIMEOUT_HEADER, timeoutMs)
         .get(new GenericType<List<SongPlayCountBean>>() {
         });
   }
 
-  private List<SongPlayCountBean> topFiveSongs(final String key,
-                                               final String storeName) {
+  private CompletableFuture<List<SongPlayCountBean>> topFiveSongs(final String key,
+                                                                  final String storeName,
+                                                                  final long deadline) {
+    return peerChartQueries.execute(storeName + '/' + key, () -> resolveTopFiveSongs(key, storeName, deadline));
+  }
 
-    final ReadOnlyKeyValueStore<String, KafkaMusicExample.TopFiveSongs> topFiveStore =
-        streams.store(storeName, QueryableStoreTypes.<String, KafkaMusicExample.TopFiveSongs>keyValueStore());
+  private CompletableFuture<List<SongPlayCountBean>> resolveTopFiveSongs(final String key,
+                                                                         final String storeName,
+                                                                         final long deadline) {
+    final TopKSongs value = readChart(key, storeName);
+    if (!value.isComplete()) {
+      return refilledChart(key, storeName, value, deadline).thenCompose(refilled -> resolveChart(refilled, deadline));
+    }
+    return resolveChart(value, deadline);
+  }
+
+  private TopKSongs readChart(final String key, final String storeName) {
+    final ReadOnlyKeyValueStore<String, TopKSongs> topFiveStore =
+        streams.store(storeName, QueryableStoreTypes.<String, TopKSongs>keyValueStore());
     // Get the value from the store
-    final KafkaMusicExample.TopFiveSongs value = topFiveStore.get(key);
+    final TopKSongs value = topFiveStore.get(key);
     if (value == null) {
       throw new NotFoundException(String.format("Unable to find value in %s for key %s", storeName, key));
     }
+    return value;
+  }
+
+  private CompletableFuture<TopKSongs> refilledChart(final String key,
+                                                     final String storeName,
+                                                     final TopKSongs value,
+                                                     final long deadline) {
+    // More songs were retracted from the chart than it had runner-ups for, so we need to
+    // recompute it from the play counts of all songs, unless we did so recently.
+    final long fingerprint = value.fingerprint();
+    final long now = System.currentTimeMillis();
+    final TopKSongs refilled = refilledCharts.get(storeName, key, fingerprint, now);
+    if (refilled != null) {
+      return CompletableFuture.completedFuture(refilled);
+    }
+    final String genre = storeName.equals(KafkaMusicExample.TOP_FIVE_SONGS_BY_GENRE_STORE) ? key : null;
+    return refillChart(genre, value.k(), deadline).thenApply(chart -> {
+      refilledCharts.put(storeName, key, fingerprint, now, chart);
+      return chart;
+    });
+  }
+
+  private CompletableFuture<List<SongPlayCountBean>> resolveChart(final TopKSongs value, final long deadline) {
+    final List<Long> songIds = new ArrayList<>(value.size());
+    value.forEach((songId, plays) -> songIds.add(songId));
+
+    // Resolve the song details for the whole chart in one go: all songs hosted by the same
+    // instance are fetched with a single request, and the requests to the different instances
+    // run in parallel.
+    return songsById(songIds, deadline).thenApply(songs -> chartSongs(value, songs));
+  }
+
+  private static List<SongPlayCountBean> chartSongs(final TopKSongs value, final Map<Long, SongBean> songs) {
     final List<SongPlayCountBean> results = new ArrayList<>();
-    value.forEach(songPlayCount -> {
-      final HostStoreInfo
-          host =
-          metadataService.streamsMetadataForStoreAndKey(KafkaMusicExample.ALL_SONGS, songPlayCount
-              .getSongId(), serializer);
-
-      // if the song is not hosted on this instance then we need to lookup it up
-      // on the instance it is on.
-      if (!thisHost(host)) {
-        final SongBean song =
-            client.target(String.format("http://%s:%d/kafka-music/song/%d",
-                                        host.getHost(),
-                                        host.getPort(),
-                                        songPlayCount.getSongId()))
-                .request(MediaType.APPLICATION_JSON_TYPE)
-                .get(SongBean.class);
-        results.add(new SongPlayCountBean(song.getArtist(),song.getAlbum(), song.getName(),
-                                          songPlayCount.getPlays()));
+    value.forEach((songId, plays) -> {
+      final SongBean song = songs.get(songId);
+      if (song == null) {
+        throw new NotFoundException(String.format("Song with id [%d] was not found", songId));
+      }
+      results.add(new SongPlayCountBean(song.getArtist(),song.getAlbum(), song.getName(), plays));
+    });
+    return results;
+  }
+
+  private CompletableFuture<TopKSongs> refillChart(final String genre, final int chartSize, final long deadline) {
+    // Every instance contributes the top songs among the play counts it hosts
+    final List<CompletableFuture<Map<Long, Long>>> remoteLookups = new ArrayList<>();
+    for (final HostStoreInfo host : metadataService.streamsMetadataForStore(KafkaMusicExample.SONG_PLAY_COUNT_STORE)) {
+      if (!metadataService.isThisHost(host)) {
+        remoteLookups.add(remoteQueries.submit(() -> fetchTopPlays(host, genre, chartSize, remainingMs(deadline)),
+                                               remainingMs(deadline)));
+      }
+    }
+    final Map<Long, Long> localPlays = topPlays(genre, chartSize);
+
+    return CompletableFuture.allOf(remoteLookups.toArray(new CompletableFuture<?>[remoteLookups.size()]))
+        .thenApply(done -> {
+          final TopKSongs chart = new TopKSongs(chartSize);
+          localPlays.forEach(chart::add);
+          for (final CompletableFuture<Map<Long, Long>> remoteLookup : remoteLookups) {
+            remoteLookup.join().forEach(chart::add);
+          }
+          return chart;
+        });
+  }
+
+  private Map<Long, Long> fetchTopPlays(final HostStoreInfo host,
+                                        final String genre,
+                                        final int limit,
+                                        final long timeoutMs) {
+    WebTarget target = client.target(String.format("http://%s:%d/kafka-music/plays/top", host.getHost(), host.getPort()))
+        .queryParam("limit", limit);
+    if (genre != null) {
+      target = target.queryParam("genre", genre);
+    }
+    return target.request(MediaType.APPLICATION_JSON_TYPE)
+        .header(AdmissionController.TIMEOUT_HEADER, timeoutMs)
+        .get(new GenericType<Map<Long, Long>>() {
+        });
+  }
+
+  private CompletableFuture<Map<Long, SongBean>> songsById(final List<Long> songIds, final long deadline) {
+    final Map<Long, SongBean> songs = new HashMap<>();
+    // Songs that are looked up are only cached if no song has changed meanwhile, see
+    // SongMetadataCache#putIfAbsent
+    final long cacheVersion = songCache.version();
+    // Most songs of a chart should be in the song cache. Only the ones that are not need to be
+    // looked up in the all-songs store.
+    final List<Long> uncachedSongIds = new ArrayList<>();
+    for (final Long songId : songIds) {
+      final SongBean song = songCache.get(songId);
+      if (song != null) {
+        songs.put(songId, song);
       } else {
-        // look in the local store
-        final ReadOnlyKeyValueStore<Long, Song> songStore = streams.store(KafkaMusicExample.ALL_SONGS,
-                                                                          QueryableStoreTypes.<Long, Song>keyValueStore());
-        final Song song = songStore.get(songPlayCount.getSongId());
-        results.add(new SongPlayCountBean(song.getArtist(),song.getAlbum(), song.getName(),
-                                          songPlayCount.getPlays()));
+        uncachedSongIds.add(songId);
       }
+    }
+    if (uncachedSongIds.isEmpty()) {
+      return CompletableFuture.completedFuture(songs);
+    }
+    if (globalSongs) {
+      // all songs are in the local all-songs store, so there is no need to route the lookups
+      final Map<Long, SongBean> localSongs = songs(uncachedSongIds);
+      localSongs.forEach((songId, song) -> songCache.putIfAbsent(songId, song, cacheVersion));
+      songs.putAll(localSongs);
+      return CompletableFuture.completedFuture(songs);
+    }
 
+    final Map<HostStoreInfo, List<Long>> songIdsByHost =
+        metadataService.streamsMetadataForStoreAndKeys(KafkaMusicExample.ALL_SONGS, uncachedSongIds, serializer);
+
+    // if the songs are not hosted on this instance then we need to look them up
+    // on the instance they are on. kick off these requests first so they run while we
+    // look in the local store.
+    final List<CompletableFuture<Map<Long, SongBean>>> remoteLookups = new ArrayList<>();
+    songIdsByHost.forEach((host, ids) -> {
+      if (!metadataService.isThisHost(host)) {
+        remoteLookups.add(peerQueries != null
+                          ? remoteQueries.submitAsync(() -> peerQueries.songs(host.getHost(), peerPort(host), ids),
+                                                      remainingMs(deadline))
+                          : remoteQueries.submit(() -> fetchSongs(host, ids, remainingMs(deadline)),
+                                                 remainingMs(deadline)));
+      }
+    });
 
+    songIdsByHost.forEach((host, ids) -> {
+      if (metadataService.isThisHost(host)) {
+        final Map<Long, SongBean> localSongs = songs(ids);
+        localSongs.forEach((songId, song) -> songCache.putIfAbsent(songId, song, cacheVersion));
+        songs.putAll(localSongs);
+      }
     });
-    return results;
+
+    return CompletableFuture.allOf(remoteLookups.toArray(new CompletableFuture<?>[remoteLookups.size()]))
+        .thenApply(done -> {
+          for (final CompletableFuture<Map<Long, SongBean>> remoteLookup : remoteLookups) {
+            final Map<Long, SongBean> remoteSongs = remoteLookup.join();
+            remoteSongs.forEach((songId, song) -> songCache.putIfAbsent(songId, song, cacheVersion));
+            songs.putAll(remoteSongs);
+          }
+          return songs;
+        });
+  }
+
+  private Map<Long, SongBean> fetchSongs(final HostStoreInfo host, final List<Long> songIds, final long timeoutMs) {
+    return client.target(String.format("http://%s:%d/kafka-music/songs", host.getHost(), host.getPort()))
+        .queryParam("id", songIds.toArray())
+        .request(MediaType.APPLICATION_JSON_TYPE)
+        .header(AdmissionController.TIMEOUT_HEADER, timeoutMs)
+        .get(new GenericType<Map<Long, SongBean>>() {
+        });
+  }
+
+  // The time left until the given deadline, in milliseconds since the epoch
+  private static long remainingMs(final long deadline) {
+    return Math.max(0L, deadline - System.currentTimeMillis());
+  }
+
+  private static int peerPort(final HostStoreInfo host) {
+    return host.getPort() + PEER_PORT_OFFSET;
+  }
+
+  // Answers the queries of other instances that arrive via the peer query channel
+  private CompletableFuture<?> answerPeerQuery(final Object query) {
+    if (query instanceof ChartQuery) {
+      final ChartQuery chartQuery = (ChartQuery) query;
+      // the peer query channel does not pass on the caller's timeout, so the default applies
+      return topFiveSongs(chartQuery.getKey(), chartQuery.getStore(),
+                          System.currentTimeMillis() + REMOTE_QUERY_TIMEOUT_MS)
+          .thenApply(PeerQueryServer::toChartResult);
+    }
+    if (query instanceof SongsQuery) {
+      return CompletableFuture.completedFuture(
+          PeerQueryServer.toSongsResult(songs(((SongsQuery) query).getSongIds())));
+    }
+    throw new BadRequestException("Unknown peer query " + query);
   }
 
   @GET()
   @Path("/song/{id}")
-  @Produces(MediaType.APPLICATION_JSON)
+  @Produces({MediaType.APPLICATION_JSON, AvroProvider.AVRO_BINARY, SmileProvider.SMILE})
   public SongBean song(@PathParam("id") Long songId) {
     final ReadOnlyKeyValueStore<Long, Song> songStore = streams.store(KafkaMusicExample.ALL_SONGS,
                                                                       QueryableStoreTypes.<Long, Song>keyValueStore());
@@ -178,13 +775,89 @@ public class MusicPlaysRestService {
     return new SongBean(song.getArtist(), song.getAlbum(), song.getName());
   }
 
+  /**
+   * Get the songs with the given ids that are hosted on this instance. Songs that cannot be found
+   * locally are left out of the result.
+   * @param songIds   The ids of the songs to look up, e.g., ?id=1&amp;id=2
+   * @return Map of song id to {@link SongBean}
+   */
+  @GET()
+  @Path("/songs")
+  @Produces({MediaType.APPLICATION_JSON, SmileProvider.SMILE})
+  public Map<Long, SongBean> songs(@QueryParam("id") final List<Long> songIds) {
+    final ReadOnlyKeyValueStore<Long, Song> songStore = streams.store(KafkaMusicExample.ALL_SONGS,
+                                                                      QueryableStoreTypes.<Long, Song>keyValueStore());
+    final Map<Long, SongBean> songs = new HashMap<>();
+    for (final Long songId : songIds) {
+      final Song song = songStore.get(songId);
+      if (song != null) {
+        songs.put(songId, new SongBean(song.getArtist(), song.getAlbum(), song.getName()));
+      }
+    }
+    return songs;
+  }
+
+  /**
+   * Get the songs with the most plays among the song play counts hosted on this instance.
+   * @param genre   Only consider songs of this genre, or all songs if not given
+   * @param limit   The maximum number of songs to return, at most {@value #TOP_PLAYS_MAX_LIMIT}
+   * @return Map of song id to play count, starting with the song with the most plays
+   */
+  @GET()
+  @Path("/plays/top")
+  @Produces({MediaType.APPLICATION_JSON, SmileProvider.SMILE})
+  public Map<Long, Long> topPlays(@QueryParam("genre") final String genre,
+                                  @QueryParam("limit") @DefaultValue("5") final int limit) {
+    if (limit <= 0 || limit > TOP_PLAYS_MAX_LIMIT) {
+      throw new BadRequestException(String.format("Invalid limit %d, must be between 1 and %d",
+                                                   limit, TOP_PLAYS_MAX_LIMIT));
+    }
+    final TopKSongs topSongs = new TopKSongs(limit);
+    if (playCountKey == ChartOptions.PlayCountKey.SONG_ID) {
+      final ReadOnlyKeyValueStore<Long, Long> playCountStore =
+          streams.store(KafkaMusicExample.SONG_PLAY_COUNT_STORE, QueryableStoreTypes.<Long, Long>keyValueStore());
+      // The play counts are partitioned by song id just like the songs, so the genre of every song
+      // whose plays are counted on this instance can be looked up locally.
+      final ReadOnlyKeyValueStore<Long, Song> songStore =
+          streams.store(KafkaMusicExample.ALL_SONGS, QueryableStoreTypes.<Long, Song>keyValueStore());
+      try (final KeyValueIterator<Long, Long> all = playCountStore.all()) {
+        while (all.hasNext()) {
+          final KeyValue<Long, Long> next = all.next();
+          if (genre == null) {
+            topSongs.add(next.key, next.value);
+          } else if (topSongs.size() < limit || next.value >= topSongs.plays(limit - 1)) {
+            // only songs that would make it into the top songs need their genre looked up
+            final Song song = songStore.get(next.key);
+            if (song != null && genre.equalsIgnoreCase(song.getGenre())) {
+              topSongs.add(next.key, next.value);
+            }
+          }
+        }
+      }
+    } else {
+      final ReadOnlyKeyValueStore<Song, Long> playCountStore =
+          streams.store(KafkaMusicExample.SONG_PLAY_COUNT_STORE, QueryableStoreTypes.<Song, Long>keyValueStore());
+      try (final KeyValueIterator<Song, Long> all = playCountStore.all()) {
+        while (all.hasNext()) {
+          final KeyValue<Song, Long> next = all.next();
+          if (genre == null || genre.equalsIgnoreCase(next.key.getGenre())) {
+            topSongs.add(next.key.getId(), next.value);
+          }
+        }
+      }
+    }
+    final Map<Long, Long> plays = new LinkedHashMap<>();
+    topSongs.forEach(plays::put);
+    return plays;
+  }
+
   /**
    * Get the metadata for all of the instances of this Kafka Streams application
    * @return List of {@link HostStoreInfo}
    */
   @GET()
   @Path("/instances")
-  @Produces(MediaType.APPLICATION_JSON)
+  @Produces({MediaType.APPLICATION_JSON, AvroProvider.AVRO_BINARY, SmileProvider.SMILE})
   public List<HostStoreInfo> streamsMetadata() {
     return metadataService.streamsMetadata();
   }
@@ -197,7 +870,7 @@ public class MusicPlaysRestService {
    */
   @GET()
   @Path("/instances/{storeName}")
-  @Produces(MediaType.APPLICATION_JSON)
+  @Produces({MediaType.APPLICATION_JSON, AvroProvider.AVRO_BINARY, SmileProvider.SMILE})
   public List<HostStoreInfo> streamsMetadataForStore(@PathParam("storeName") String store) {
     return metadataService.streamsMetadataForStore(store);
   }
@@ -207,6 +880,9 @@ public class MusicPlaysRestService {
    * @throws Exception
    */
   void start() throws Exception {
+    // fails if the song-feed topic does not exist, which is better noticed before serving requests
+    songCache.start();
+
     ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
     context.setContextPath("/");
 
@@ -216,12 +892,24 @@ public class MusicPlaysRestService {
     ResourceConfig rc = new ResourceConfig();
     rc.register(this);
     rc.register(JacksonFeature.class);
+    rc.register(AvroProvider.class);
+    rc.register(SmileProvider.class);
+    rc.register(SseFeature.class);
+    rc.register(admissionController);
+    rc.register(StoreUnavailableExceptionMapper.class);
 
     ServletContainer sc = new ServletContainer(rc);
     ServletHolder holder = new ServletHolder(sc);
+    // required by the asynchronous chart endpoints
+    holder.setAsyncSupported(true);
     context.addServlet(holder, "/*");
 
     jettyServer.start();
+    if (peerQueries != null) {
+      peerQueryServer = new PeerQueryServer(hostInfo.port() + PEER_PORT_OFFSET, this::answerPeerQuery);
+      peerQueryServer.start();
+    }
+    chartSubscriptions.start();
   }
 
   /**
@@ -229,9 +917,22 @@ public class MusicPlaysRestService {
    * @throws Exception
    */
   void stop() throws Exception {
+    chartSubscriptions.close();
     if (jettyServer != null) {
       jettyServer.stop();
     }
+    if (peerQueryServer != null) {
+      peerQueryServer.close();
+    }
+    if (peerQueries != null) {
+      peerQueries.close();
+    }
+    remoteQueries.close();
+    client.close();
+    proxiedChartOpeners.shutdown();
+    sseClient.close();
+    metrics.close();
+    songCache.close();
   }
 
 }
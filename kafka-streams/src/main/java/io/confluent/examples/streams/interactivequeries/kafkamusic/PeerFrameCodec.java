@@ -0,0 +1,90 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries.kafkamusic;
+
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.specific.SpecificDatumWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Writes and reads the frames exchanged by {@link PeerQueryClient} and {@link PeerQueryServer}:
+ * a 4 byte, big-endian length followed by the Avro binary encoding of a message. There is one
+ * codec per connection; it reuses its buffers, encoder and decoder across messages. Reading and
+ * writing may happen concurrently, but only one thread at a time may write and only one thread
+ * may read.
+ *
+ * @param <O> the type of the messages written to the connection
+ * @param <I> the type of the messages read from the connection
+ */
+class PeerFrameCodec<O, I> {
+
+  static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+  private final SpecificDatumWriter<O> writer;
+  private final SpecificDatumReader<I> reader;
+  private final ByteArrayOutputStream outBuffer = new ByteArrayOutputStream(1024);
+  private byte[] inBuffer = new byte[1024];
+  private BinaryEncoder encoder;
+  private BinaryDecoder decoder;
+
+  PeerFrameCodec(final Class<O> outType, final Class<I> inType) {
+    this.writer = new SpecificDatumWriter<>(outType);
+    this.reader = new SpecificDatumReader<>(inType);
+  }
+
+  /**
+   * Write the given message as a single frame. The frame is flushed right away.
+   */
+  void write(final DataOutputStream out, final O message) throws IOException {
+    outBuffer.reset();
+    encoder = EncoderFactory.get().directBinaryEncoder(outBuffer, encoder);
+    writer.write(message, encoder);
+    encoder.flush();
+    out.writeInt(outBuffer.size());
+    outBuffer.writeTo(out);
+    out.flush();
+  }
+
+  /**
+   * Read the next frame.
+   * @return the message or null if the connection was closed by the other side
+   */
+  I read(final DataInputStream in) throws IOException {
+    final int length;
+    try {
+      length = in.readInt();
+    } catch (final EOFException e) {
+      return null;
+    }
+    if (length < 0 || length > MAX_FRAME_SIZE) {
+      throw new IOException("Invalid frame size " + length);
+    }
+    if (inBuffer.length < length) {
+      inBuffer = new byte[Math.max(length, inBuffer.length * 2)];
+    }
+    in.readFully(inBuffer, 0, length);
+    decoder = DecoderFactory.get().binaryDecoder(inBuffer, 0, length, decoder);
+    return reader.read(null, decoder);
+  }
+
+}
@@ -0,0 +1,291 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries.kafkamusic;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import javax.ws.rs.WebApplicationException;
+
+import io.confluent.examples.streams.avro.ChartEntry;
+import io.confluent.examples.streams.avro.ChartQuery;
+import io.confluent.examples.streams.avro.ChartResult;
+import io.confluent.examples.streams.avro.PeerQueryRequest;
+import io.confluent.examples.streams.avro.PeerQueryResponse;
+import io.confluent.examples.streams.avro.QueryError;
+import io.confluent.examples.streams.avro.SongEntry;
+import io.confluent.examples.streams.avro.SongsQuery;
+import io.confluent.examples.streams.avro.SongsResult;
+
+/**
+ * Queries other instances of the {@link KafkaMusicExample} via their {@link PeerQueryServer}.
+ *
+ * Compared to the JSON REST API, which is meant for external clients, this channel keeps a small
+ * pool of persistent connections per instance, sends Avro-encoded, length-prefixed frames, and
+ * pipelines the requests: a request is written as soon as it is issued, without waiting for the
+ * responses to the previous requests on the same connection. Each connection has a reader thread
+ * that completes the pending requests as their responses arrive.
+ *
+ * Connections are established on threads of their own, so that issuing a query never blocks the
+ * caller, and queries to a connection that is still being established wait for it to complete.
+ */
+class PeerQueryClient {
+
+  private final int connectionsPerPeer;
+  private final int connectTimeoutMs;
+  private final Map<String, CompletableFuture<PeerConnection>[]> pools = new ConcurrentHashMap<>();
+  private final AtomicInteger nextConnection = new AtomicInteger();
+  private final AtomicInteger connectorCount = new AtomicInteger();
+  private final ExecutorService connectors = Executors.newCachedThreadPool(r -> {
+    final Thread thread = new Thread(r, "kafka-music-peer-query-connector-" + connectorCount.incrementAndGet());
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final AtomicLong nextCorrelationId = new AtomicLong();
+  private volatile boolean closed = false;
+
+  /**
+   * @param connectionsPerPeer  the number of connections to keep open to every other instance
+   * @param connectTimeoutMs    the time after which an attempt to connect is abandoned
+   */
+  PeerQueryClient(final int connectionsPerPeer, final int connectTimeoutMs) {
+    this.connectionsPerPeer = connectionsPerPeer;
+    this.connectTimeoutMs = connectTimeoutMs;
+  }
+
+  /**
+   * Get the chart with the given key from the given store of another instance.
+   */
+  CompletableFuture<List<SongPlayCountBean>> chart(final String host,
+                                                   final int port,
+                                                   final String store,
+                                                   final String key) {
+    return query(host, port, new ChartQuery(store, key), result -> {
+      final List<SongPlayCountBean> chart = new ArrayList<>();
+      for (final ChartEntry entry : ((ChartResult) result).getEntries()) {
+        chart.add(new SongPlayCountBean(entry.getArtist(), entry.getAlbum(), entry.getName(), entry.getPlays()));
+      }
+      return chart;
+    });
+  }
+
+  /**
+   * Get the songs with the given ids that are hosted by another instance.
+   */
+  CompletableFuture<Map<Long, SongBean>> songs(final String host, final int port, final List<Long> songIds) {
+    return query(host, port, new SongsQuery(songIds), result -> {
+      final Map<Long, SongBean> songs = new HashMap<>();
+      for (final SongEntry entry : ((SongsResult) result).getSongs()) {
+        songs.put(entry.getSongId(), new SongBean(entry.getArtist(), entry.getAlbum(), entry.getName()));
+      }
+      return songs;
+    });
+  }
+
+  private <T> CompletableFuture<T> query(final String host,
+                                         final int port,
+                                         final Object query,
+                                         final Function<Object, T> convert) {
+    final CompletableFuture<T> result = new CompletableFuture<>();
+    connection(host, port).whenComplete((connection, connectException) -> {
+      if (connectException != null) {
+        result.completeExceptionally(connectException);
+        return;
+      }
+      if (result.isDone()) {
+        // the caller gave up on the query while we were connecting
+        return;
+      }
+      final CompletableFuture<Object> response = connection.send(query);
+      // if the caller gives up on the query, e.g., because it timed out, we stop waiting for it, too
+      result.whenComplete((value, exception) -> response.cancel(false));
+      response.whenComplete((value, exception) -> {
+        if (exception != null) {
+          result.completeExceptionally(exception);
+          return;
+        }
+        try {
+          result.complete(convert.apply(value));
+        } catch (final RuntimeException e) {
+          result.completeExceptionally(e);
+        }
+      });
+    });
+    return result;
+  }
+
+  /**
+   * Get a connection of the pool of the given instance, which is established in the background if
+   * the connection of the pool's next slot is closed or has not been established yet.
+   */
+  @SuppressWarnings("unchecked")
+  private CompletableFuture<PeerConnection> connection(final String host, final int port) {
+    if (closed) {
+      return failed(new IOException("The peer query client is closed"));
+    }
+    final CompletableFuture<PeerConnection>[] pool =
+        pools.computeIfAbsent(host + ":" + port, peer -> new CompletableFuture[connectionsPerPeer]);
+    final int slot = Math.floorMod(nextConnection.getAndIncrement(), pool.length);
+    synchronized (pool) {
+      final CompletableFuture<PeerConnection> connection = pool[slot];
+      if (connection != null && !connection.isCompletedExceptionally()
+          && (!connection.isDone() || connection.join().isOpen())) {
+        return connection;
+      }
+      final CompletableFuture<PeerConnection> connecting = new CompletableFuture<>();
+      try {
+        connectors.execute(() -> {
+          try {
+            connecting.complete(new PeerConnection(host, port));
+          } catch (final IOException e) {
+            connecting.completeExceptionally(e);
+          }
+        });
+      } catch (final RejectedExecutionException e) {
+        return failed(new IOException("The peer query client is closed"));
+      }
+      pool[slot] = connecting;
+      return connecting;
+    }
+  }
+
+  private static <T> CompletableFuture<T> failed(final Throwable exception) {
+    final CompletableFuture<T> failed = new CompletableFuture<>();
+    failed.completeExceptionally(exception);
+    return failed;
+  }
+
+  /**
+   * Close all connections and fail all queries that are still waiting for a response.
+   */
+  void close() {
+    closed = true;
+    connectors.shutdown();
+    for (final CompletableFuture<PeerConnection>[] pool : pools.values()) {
+      synchronized (pool) {
+        for (final CompletableFuture<PeerConnection> connection : pool) {
+          if (connection != null) {
+            // connections that are still being established are closed as soon as they are
+            connection.thenAccept(open -> open.close(new IOException("The peer query client is closed")));
+          }
+        }
+      }
+    }
+  }
+
+  private class PeerConnection {
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final PeerFrameCodec<PeerQueryRequest, PeerQueryResponse> codec =
+        new PeerFrameCodec<>(PeerQueryRequest.class, PeerQueryResponse.class);
+    private final Map<Long, CompletableFuture<Object>> pending = new ConcurrentHashMap<>();
+    private volatile boolean open = true;
+
+    PeerConnection(final String host, final int port) throws IOException {
+      socket = new Socket();
+      try {
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port), connectTimeoutMs);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      } catch (final IOException e) {
+        socket.close();
+        throw e;
+      }
+      final Thread reader = new Thread(this::readResponses, "kafka-music-peer-query-reader-" + host + ":" + port);
+      reader.setDaemon(true);
+      reader.start();
+    }
+
+    boolean isOpen() {
+      return open;
+    }
+
+    CompletableFuture<Object> send(final Object query) {
+      final long correlationId = nextCorrelationId.incrementAndGet();
+      final CompletableFuture<Object> response = new CompletableFuture<>();
+      pending.put(correlationId, response);
+      response.whenComplete((value, exception) -> pending.remove(correlationId));
+      try {
+        synchronized (out) {
+          codec.write(out, new PeerQueryRequest(correlationId, query));
+        }
+      } catch (final IOException e) {
+        close(e);
+      }
+      // the connection might have been closed before the request was registered as pending
+      if (!open) {
+        response.completeExceptionally(new IOException("Connection to peer closed"));
+      }
+      return response;
+    }
+
+    private void readResponses() {
+      try {
+        PeerQueryResponse response;
+        while ((response = codec.read(in)) != null) {
+          final CompletableFuture<Object> pendingResponse = pending.remove(response.getCorrelationId());
+          if (pendingResponse == null) {
+            // the query was abandoned in the meantime
+            continue;
+          }
+          if (response.getResult() instanceof QueryError) {
+            final QueryError error = (QueryError) response.getResult();
+            pendingResponse.completeExceptionally(new WebApplicationException(error.getMessage(),
+                                                                              error.getStatus()));
+          } else {
+            pendingResponse.complete(response.getResult());
+          }
+        }
+        close(new EOFException("Connection closed by peer"));
+      } catch (final IOException e) {
+        close(e);
+      }
+    }
+
+    void close(final Throwable cause) {
+      open = false;
+      try {
+        socket.close();
+      } catch (final IOException e) {
+        // ignore
+      }
+      for (final CompletableFuture<Object> pendingResponse : pending.values()) {
+        pendingResponse.completeExceptionally(cause);
+      }
+    }
+
+  }
+
+}
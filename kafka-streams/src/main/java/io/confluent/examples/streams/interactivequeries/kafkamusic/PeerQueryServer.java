@@ -0,0 +1,189 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries.kafkamusic;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+
+import io.confluent.examples.streams.avro.ChartEntry;
+import io.confluent.examples.streams.avro.ChartResult;
+import io.confluent.examples.streams.avro.PeerQueryRequest;
+import io.confluent.examples.streams.avro.PeerQueryResponse;
+import io.confluent.examples.streams.avro.QueryError;
+import io.confluent.examples.streams.avro.SongEntry;
+import io.confluent.examples.streams.avro.SongsResult;
+
+/**
+ * Answers the queries that other instances of the {@link KafkaMusicExample} send via their
+ * {@link PeerQueryClient}.
+ *
+ * Every connection is served by its own thread, which reads the requests and hands them to the
+ * query handler without waiting for the previous response to be written. Responses are written
+ * as soon as they are ready, i.e., possibly out of order, and are matched to their requests by
+ * the client via the correlation id.
+ */
+class PeerQueryServer {
+
+  private final ServerSocket serverSocket;
+  private final Function<Object, CompletableFuture<?>> handler;
+  private final Thread acceptor;
+  private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+  private final AtomicInteger connectionCount = new AtomicInteger();
+
+  /**
+   * @param port      the port to listen on, or 0 to pick a free port
+   * @param handler   answers the query of a request, i.e., a ChartQuery or SongsQuery, with a
+   *                  ChartResult or SongsResult
+   */
+  PeerQueryServer(final int port, final Function<Object, CompletableFuture<?>> handler) throws IOException {
+    this.serverSocket = new ServerSocket(port);
+    this.handler = handler;
+    this.acceptor = new Thread(this::acceptConnections, "kafka-music-peer-query-acceptor");
+    this.acceptor.setDaemon(true);
+  }
+
+  int port() {
+    return serverSocket.getLocalPort();
+  }
+
+  void start() {
+    acceptor.start();
+  }
+
+  private void acceptConnections() {
+    while (!serverSocket.isClosed()) {
+      final Socket socket;
+      try {
+        socket = serverSocket.accept();
+        socket.setTcpNoDelay(true);
+      } catch (final IOException e) {
+        // the server socket was closed, or the connection broke before we got to serve it
+        continue;
+      }
+      connections.add(socket);
+      if (serverSocket.isClosed()) {
+        // the server was closed after it accepted the connection, but maybe before it was added
+        closeQuietly(socket);
+        continue;
+      }
+      final Thread connection = new Thread(() -> serve(socket),
+                                           "kafka-music-peer-query-connection-" + connectionCount.incrementAndGet());
+      connection.setDaemon(true);
+      connection.start();
+    }
+  }
+
+  private void serve(final Socket socket) {
+    final PeerFrameCodec<PeerQueryResponse, PeerQueryRequest> codec =
+        new PeerFrameCodec<>(PeerQueryResponse.class, PeerQueryRequest.class);
+    try {
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      PeerQueryRequest request;
+      while ((request = codec.read(in)) != null) {
+        final long correlationId = request.getCorrelationId();
+        CompletableFuture<?> result;
+        try {
+          result = handler.apply(request.getQuery());
+        } catch (final RuntimeException e) {
+          result = new CompletableFuture<>();
+          result.completeExceptionally(e);
+        }
+        result.whenComplete((value, exception) -> respond(socket, codec, out, new PeerQueryResponse(
+            correlationId, exception == null ? value : toQueryError(exception))));
+      }
+    } catch (final IOException e) {
+      // the connection broke, the client fails the queries that are still waiting for a response
+    } finally {
+      closeQuietly(socket);
+    }
+  }
+
+  private void respond(final Socket socket,
+                       final PeerFrameCodec<PeerQueryResponse, PeerQueryRequest> codec,
+                       final DataOutputStream out,
+                       final PeerQueryResponse response) {
+    try {
+      synchronized (out) {
+        codec.write(out, response);
+      }
+    } catch (final IOException e) {
+      closeQuietly(socket);
+    }
+  }
+
+  private static QueryError toQueryError(final Throwable exception) {
+    final Throwable cause = exception instanceof CompletionException && exception.getCause() != null
+                            ? exception.getCause() : exception;
+    final int status = cause instanceof WebApplicationException
+                       ? ((WebApplicationException) cause).getResponse().getStatus()
+                       : Response.Status.INTERNAL_SERVER_ERROR.getStatusCode();
+    return new QueryError(status, String.valueOf(cause.getMessage()));
+  }
+
+  private void closeQuietly(final Socket socket) {
+    connections.remove(socket);
+    try {
+      socket.close();
+    } catch (final IOException e) {
+      // ignore
+    }
+  }
+
+  static ChartResult toChartResult(final List<SongPlayCountBean> chart) {
+    final List<ChartEntry> entries = new ArrayList<>(chart.size());
+    for (final SongPlayCountBean song : chart) {
+      entries.add(new ChartEntry(song.getArtist(), song.getAlbum(), song.getName(), song.getPlays()));
+    }
+    return new ChartResult(entries);
+  }
+
+  static SongsResult toSongsResult(final Map<Long, SongBean> songs) {
+    final List<SongEntry> entries = new ArrayList<>(songs.size());
+    songs.forEach((songId, song) -> entries.add(new SongEntry(songId, song.getArtist(), song.getAlbum(),
+                                                              song.getName())));
+    return new SongsResult(entries);
+  }
+
+  /**
+   * Stop accepting connections and close all open connections.
+   */
+  void close() throws InterruptedException {
+    try {
+      serverSocket.close();
+    } catch (final IOException e) {
+      // ignore
+    }
+    connections.forEach(this::closeQuietly);
+    acceptor.join();
+  }
+
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries.kafkamusic;
+
+import org.glassfish.jersey.media.sse.EventSource;
+import org.glassfish.jersey.media.sse.InboundEvent;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.client.Client;
+
+import io.confluent.examples.streams.interactivequeries.HostStoreInfo;
+
+/**
+ * Follows the stream of chart events of another instance, i.e., the instance that hosts the
+ * chart. A single stream is opened per chart, no matter how many clients of this instance
+ * subscribed to it, and the latest event is handed on to them by the {@link ChartSubscriptions}.
+ *
+ * Opening the stream connects to the hosting instance, so it is done in the background rather
+ * than on the thread that polls the charts. Until the first event has arrived, there is no
+ * latest version of the chart and the poller skips it.
+ */
+class ProxiedChartStream implements AutoCloseable {
+
+  private static final long RECONNECT_DELAY_MS = 500L;
+
+  private final HostStoreInfo host;
+  private final EventSource eventSource;
+  private final CompletableFuture<Void> opened;
+  private volatile ChartSubscriptions.ChartEvent latest;
+
+  /**
+   * @param client  a client with the SSE feature registered
+   * @param host    the instance that hosts the chart
+   * @param path    the path of the subscription endpoint of the chart
+   * @param opener  the executor to open the stream on
+   */
+  ProxiedChartStream(final Client client, final HostStoreInfo host, final String path, final Executor opener) {
+    this.host = host;
+    // The event source reconnects if the stream breaks, resuming from the last event it got
+    this.eventSource = EventSource.target(
+        client.target(String.format("http://%s:%d/%s", host.getHost(), host.getPort(), path)))
+        .reconnectingEvery(RECONNECT_DELAY_MS, TimeUnit.MILLISECONDS)
+        .build();
+    eventSource.register(this::onEvent, ChartSubscriptions.CHART_EVENT);
+    this.opened = CompletableFuture.runAsync(eventSource::open, opener);
+  }
+
+  private void onEvent(final InboundEvent event) {
+    latest = new ChartSubscriptions.ChartEvent(event.getId(), event.readData());
+  }
+
+  HostStoreInfo host() {
+    return host;
+  }
+
+  /**
+   * The latest version of the chart received from the hosting instance, or null if none was
+   * received yet.
+   */
+  ChartSubscriptions.ChartEvent latest() {
+    return latest;
+  }
+
+  @Override
+  public void close() {
+    // a stream that is still being opened is closed once it is open
+    opened.whenComplete((ignored, exception) -> eventSource.close(0, TimeUnit.MILLISECONDS));
+  }
+
+}
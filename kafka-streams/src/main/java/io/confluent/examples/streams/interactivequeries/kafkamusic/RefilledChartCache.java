@@ -0,0 +1,83 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries.kafkamusic;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the latest refill of every chart that lost more songs than it had runner-ups for.
+ *
+ * Refilling a chart scans the play counts of all songs on every instance, so it is only done
+ * again once the incomplete chart, as identified by its fingerprint, has changed, or once the
+ * refill is older than a given age. The latter bounds how long songs that are not in the
+ * incomplete chart, and whose plays therefore do not change it, can take to enter the refilled
+ * chart.
+ */
+class RefilledChartCache {
+
+  private final long maxAgeMs;
+  private final Map<String, RefilledChart> charts = new ConcurrentHashMap<>();
+
+  private static final class RefilledChart {
+    private final long fingerprint;
+    private final long refilledMs;
+    private final TopKSongs chart;
+
+    private RefilledChart(final long fingerprint, final long refilledMs, final TopKSongs chart) {
+      this.fingerprint = fingerprint;
+      this.refilledMs = refilledMs;
+      this.chart = chart;
+    }
+  }
+
+  /**
+   * @param maxAgeMs  the time after which a chart is refilled again even if it has not changed
+   */
+  RefilledChartCache(final long maxAgeMs) {
+    this.maxAgeMs = maxAgeMs;
+  }
+
+  /**
+   * Get the refill of the given version of an incomplete chart.
+   * @param store         the store of the chart
+   * @param key           the key of the chart
+   * @param fingerprint   the fingerprint of the incomplete chart
+   * @param nowMs         the current time
+   * @return the refilled chart or null if this version of the chart was not refilled recently
+   */
+  TopKSongs get(final String store, final String key, final long fingerprint, final long nowMs) {
+    final RefilledChart refilled = charts.get(cacheKey(store, key));
+    return refilled != null && refilled.fingerprint == fingerprint && nowMs - refilled.refilledMs < maxAgeMs
+           ? refilled.chart
+           : null;
+  }
+
+  /**
+   * Cache the refill of the given version of an incomplete chart, replacing the previous one.
+   * @param refilledMs    the time the refill was started at
+   */
+  void put(final String store,
+           final String key,
+           final long fingerprint,
+           final long refilledMs,
+           final TopKSongs chart) {
+    charts.put(cacheKey(store, key), new RefilledChart(fingerprint, refilledMs, chart));
+  }
+
+  private static String cacheKey(final String store, final String key) {
+    return store + '/' + key;
+  }
+
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries.kafkamusic;
+
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.LongDeserializer;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Collectors;
+
+import io.confluent.examples.streams.avro.Song;
+
+/**
+ * A bounded, in-process cache of song metadata used by {@link MusicPlaysRestService} to resolve
+ * the songs of a chart without querying the all-songs store or a remote instance.
+ *
+ * Songs hardly ever change, so rather than expiring entries after some time the cache follows the
+ * song-feed topic, i.e., the changelog of the all-songs KTable: every song update replaces the
+ * cached entry and every tombstone replaces it with a removal marker. The least recently used
+ * entries are evicted once the cache holds more than the configured number of songs.
+ *
+ * Every changelog update is numbered, and every entry remembers the number of the update it stems
+ * from, which serves as the version of the song's metadata. Entries cached from lookups have
+ * version 0, as they stem from the catalog the changelog started with, or from updates whose
+ * entries have since been evicted.
+ *
+ * This has a cost: every instance reads the whole song-feed topic from the beginning when it
+ * starts, without a consumer group, and keeps reading all of its updates. So every instance
+ * fetches and deserializes the entire catalog, even though the cache holds only a bounded number
+ * of songs and evicts most of them again for a large catalog. Startup traffic thus grows with the
+ * size of the catalog times the number of instances.
+ */
+class SongMetadataCache {
+
+  /**
+   * The cached metadata of a song, or a removal marker, along with its version.
+   */
+  private static final class Entry {
+    private final SongBean song;
+    private final long version;
+
+    private Entry(final SongBean song, final long version) {
+      this.song = song;
+      this.version = version;
+    }
+  }
+
+  private final Map<Long, Entry> songs;
+  private final KafkaConsumer<Long, Song> consumer;
+  private final Thread changelogReader;
+  private volatile boolean running = true;
+  private volatile long version = 0;
+  // the highest version among the evicted entries
+  private long evictedVersion = 0;
+
+  /**
+   * @param maxEntries        the maximum number of songs to keep
+   * @param bootstrapServers  the Kafka cluster to read the song-feed from
+   * @param songDeserializer  deserializer for the values of the song-feed topic
+   */
+  SongMetadataCache(final int maxEntries,
+                    final String bootstrapServers,
+                    final Deserializer<Song> songDeserializer) {
+    this.songs = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<Long, Entry> eldest) {
+        if (size() > maxEntries) {
+          evictedVersion = Math.max(evictedVersion, eldest.getValue().version);
+          return true;
+        }
+        return false;
+      }
+    };
+
+    final Properties consumerConfig = new Properties();
+    consumerConfig.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+    consumerConfig.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+    this.consumer = new KafkaConsumer<>(consumerConfig, new LongDeserializer(), songDeserializer);
+    this.changelogReader = new Thread(this::readChangelog, "song-metadata-cache-changelog-reader");
+    this.changelogReader.setDaemon(true);
+  }
+
+  /**
+   * Get the cached metadata for the song with the given id.
+   * @return {@link SongBean} or null if the song is not cached
+   */
+  synchronized SongBean get(final long songId) {
+    final Entry entry = songs.get(songId);
+    return entry == null ? null : entry.song;
+  }
+
+  /**
+   * The version of the metadata of the song with the given id, which changes whenever the song is
+   * updated or removed, or 0 if the song is not cached.
+   */
+  synchronized long version(final long songId) {
+    final Entry entry = songs.get(songId);
+    return entry == null ? 0 : entry.version;
+  }
+
+  /**
+   * Cache song metadata that was loaded from a state store or another instance. An entry that is
+   * already present is kept as is because it may stem from a more recent changelog update than
+   * the state store has seen so far, or mark the song as removed. Likewise, the song is not cached
+   * at all if its entry may have been evicted since the lookup started, as the song may have been
+   * removed meanwhile and would otherwise stay cached for good.
+   * @param version   the {@link #version()} from before the song was looked up
+   */
+  synchronized void putIfAbsent(final long songId, final SongBean song, final long version) {
+    if (evictedVersion <= version) {
+      songs.putIfAbsent(songId, new Entry(song, 0));
+    }
+  }
+
+  /**
+   * The number of changelog updates applied so far.
+   */
+  long version() {
+    return version;
+  }
+
+  synchronized void onSongChanged(final long songId, final Song song) {
+    final long updated = version + 1;
+    songs.put(songId, new Entry(song == null ? null : new SongBean(song.getArtist(), song.getAlbum(), song.getName()),
+                                updated));
+    version = updated;
+  }
+
+  /**
+   * Start following the song-feed topic.
+   */
+  void start() {
+    final List<PartitionInfo> partitionInfos = consumer.partitionsFor(KafkaMusicExample.SONG_FEED);
+    if (partitionInfos == null || partitionInfos.isEmpty()) {
+      throw new IllegalStateException("Topic " + KafkaMusicExample.SONG_FEED + " does not exist, "
+                                      + "it must be created before the application is started");
+    }
+    final List<TopicPartition> partitions = partitionInfos
+        .stream()
+        .map(PartitionInfo::partition)
+        .map(partition -> new TopicPartition(KafkaMusicExample.SONG_FEED, partition))
+        .collect(Collectors.toList());
+    // We read all partitions from the beginning so that the cache is warmed up with the catalog
+    // and no update can slip through between the state store and the cache.
+    consumer.assign(partitions);
+    consumer.seekToBeginning(partitions);
+    changelogReader.start();
+  }
+
+  private void readChangelog() {
+    try {
+      while (running) {
+        final ConsumerRecords<Long, Song> records = consumer.poll(Long.MAX_VALUE);
+        for (final ConsumerRecord<Long, Song> record : records) {
+          if (record.key() != null) {
+            onSongChanged(record.key(), record.value());
+          }
+        }
+      }
+    } catch (final WakeupException e) {
+      // ignore, we are shutting down
+    } finally {
+      consumer.close();
+    }
+  }
+
+  /**
+   * Stop following the song-feed topic.
+   */
+  void close() throws InterruptedException {
+    running = false;
+    if (changelogReader.getState() == Thread.State.NEW) {
+      consumer.close();
+    } else {
+      consumer.wakeup();
+      changelogReader.join();
+    }
+  }
+
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries.kafkamusic;
+
+/**
+ * Used in aggregations to keep track of the top K songs, i.e., the K songs with the most plays.
+ *
+ * The songs are kept in two parallel arrays of song ids and play counts that are sorted by play
+ * count (descending) and song id (ascending), which is cheap for the small K of a chart. Adding,
+ * removing and iterating over the songs does not allocate.
+ *
+ * A song that is retracted from the chart, e.g., because its play count changed, leaves a gap
+ * that only the songs known to this instance can fill. To keep the chart full, this instance keeps
+ * a configurable number of candidates (the slack) beyond the top K. Once songs had to be dropped
+ * because there was no room left, this instance is marked as truncated: if it then holds fewer
+ * than K songs, the chart is incomplete and has to be refilled from the song play counts.
+ */
+class TopKSongs {
+
+  /**
+   * Receives the songs of a chart without boxing.
+   */
+  @FunctionalInterface
+  interface SongPlaysConsumer {
+    void accept(long songId, long plays);
+  }
+
+  private final int k;
+  private final long[] songIds;
+  private final long[] plays;
+  private int size = 0;
+  private boolean truncated = false;
+
+  /**
+   * @param k   the number of songs to keep track of
+   */
+  TopKSongs(final int k) {
+    this(k, 0);
+  }
+
+  /**
+   * @param k       the number of songs in the chart
+   * @param slack   the number of candidates to keep beyond the top K
+   */
+  TopKSongs(final int k, final int slack) {
+    if (k <= 0) {
+      throw new IllegalArgumentException("k must be positive, but was " + k);
+    }
+    if (slack < 0) {
+      throw new IllegalArgumentException("slack must not be negative, but was " + slack);
+    }
+    this.k = k;
+    this.songIds = new long[k + slack];
+    this.plays = new long[k + slack];
+  }
+
+  /**
+   * The number of songs in the chart, i.e., K.
+   */
+  int k() {
+    return k;
+  }
+
+  /**
+   * The maximum number of songs kept by this instance, i.e., K plus the slack.
+   */
+  int capacity() {
+    return songIds.length;
+  }
+
+  /**
+   * The number of songs currently kept by this instance, including the candidates beyond the
+   * top K.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Whether songs have been dropped because there was no room left for them.
+   */
+  boolean isTruncated() {
+    return truncated;
+  }
+
+  void setTruncated(final boolean truncated) {
+    this.truncated = truncated;
+  }
+
+  /**
+   * Whether the top K songs are known, i.e., whether this instance holds at least K songs or
+   * never dropped any.
+   */
+  boolean isComplete() {
+    return size >= k || !truncated;
+  }
+
+  /**
+   * The id of the song at the given rank, starting with 0 for the song with the most plays.
+   */
+  long songId(final int rank) {
+    checkRank(rank);
+    return songIds[rank];
+  }
+
+  /**
+   * The play count of the song at the given rank, starting with 0 for the song with the most plays.
+   */
+  long plays(final int rank) {
+    checkRank(rank);
+    return plays[rank];
+  }
+
+  private void checkRank(final int rank) {
+    if (rank < 0 || rank >= size) {
+      throw new IndexOutOfBoundsException("Rank " + rank + " out of " + size);
+    }
+  }
+
+  /**
+   * Add or update the play count of the given song. The song is dropped if it does not rank
+   * among the top K songs or their candidates.
+   */
+  void add(final long songId, final long songPlays) {
+    final int current = indexOf(songId);
+    if (current >= 0) {
+      removeAt(current);
+    }
+
+    // find the rank of the song, i.e., the number of songs that are ranked higher
+    int rank = size;
+    while (rank > 0 && ranksHigher(songId, songPlays, songIds[rank - 1], plays[rank - 1])) {
+      rank--;
+    }
+    if (rank >= songIds.length) {
+      truncated = true;
+      return;
+    }
+    if (size == songIds.length) {
+      // the song with the fewest plays drops out
+      truncated = true;
+    }
+
+    final int toMove = Math.min(size, songIds.length - 1) - rank;
+    System.arraycopy(songIds, rank, songIds, rank + 1, toMove);
+    System.arraycopy(plays, rank, plays, rank + 1, toMove);
+    songIds[rank] = songId;
+    plays[rank] = songPlays;
+    size = Math.min(size + 1, songIds.length);
+  }
+
+  /**
+   * Remove the given song, provided its play count is the given one. The play count is checked so
+   * that retracting an outdated play count of a song cannot remove the song's current entry.
+   */
+  void remove(final long songId, final long songPlays) {
+    final int index = indexOf(songId);
+    if (index >= 0 && plays[index] == songPlays) {
+      removeAt(index);
+    }
+  }
+
+  /**
+   * Add all songs, including the candidates beyond the top K, of the given instance, which must
+   * not share any songs with this one. This instance becomes truncated if the given one is.
+   */
+  void addAll(final TopKSongs other) {
+    for (int i = 0; i < other.size; i++) {
+      add(other.songIds[i], other.plays[i]);
+    }
+    if (!other.isComplete()) {
+      truncated = true;
+    }
+  }
+
+  /**
+   * Remove all songs of the given instance, provided their play counts match.
+   */
+  void removeAll(final TopKSongs other) {
+    for (int i = 0; i < other.size; i++) {
+      remove(other.songIds[i], other.plays[i]);
+    }
+  }
+
+  /**
+   * Pass the top K songs to the given consumer, starting with the song with the most plays.
+   */
+  void forEach(final SongPlaysConsumer consumer) {
+    final int charted = Math.min(size, k);
+    for (int i = 0; i < charted; i++) {
+      consumer.accept(songIds[i], plays[i]);
+    }
+  }
+
+  /**
+   * A hash of the top K songs and their play counts, which changes whenever the chart changes.
+   */
+  long fingerprint() {
+    long hash = 17;
+    final int charted = Math.min(size, k);
+    for (int i = 0; i < charted; i++) {
+      hash = 31 * hash + songIds[i];
+      hash = 31 * hash + plays[i];
+    }
+    return hash;
+  }
+
+  private int indexOf(final long songId) {
+    for (int i = 0; i < size; i++) {
+      if (songIds[i] == songId) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void removeAt(final int index) {
+    final int toMove = size - index - 1;
+    System.arraycopy(songIds, index + 1, songIds, index, toMove);
+    System.arraycopy(plays, index + 1, plays, index, toMove);
+    size--;
+  }
+
+  private static boolean ranksHigher(final long songId,
+                                     final long songPlays,
+                                     final long otherSongId,
+                                     final long otherPlays) {
+    return songPlays > otherPlays || (songPlays == otherPlays && songId < otherSongId);
+  }
+
+}
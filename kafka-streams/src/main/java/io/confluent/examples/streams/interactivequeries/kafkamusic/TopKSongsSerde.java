@@ -0,0 +1,208 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries.kafkamusic;
+
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serializer;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Serde for {@link TopKSongs}.
+ *
+ * The format is a version byte, a flags byte (whether the songs are truncated), the number of
+ * songs as a varint, followed by the id and play count of every song, including the candidates
+ * beyond the top K, as zigzag-encoded varints. Song ids and play counts are usually small, so most
+ * songs take just a few bytes instead of the 16 bytes of two plain longs. The serializer encodes
+ * into a buffer that is reused per thread.
+ *
+ * Values written in the previous formats, i.e., version 1 without the flags byte, and plain pairs
+ * of longs without any header, can still be read.
+ */
+class TopKSongsSerde implements Serde<TopKSongs> {
+
+  static final byte VERSION = 2;
+  private static final byte VERSION_WITHOUT_FLAGS = 1;
+  private static final byte TRUNCATED_FLAG = 1;
+
+  // version byte + flags byte + count + (id + plays) per song, with at most 10 bytes per varint
+  private static final int MAX_HEADER_SIZE = 1 + 1 + 5;
+  private static final int MAX_SONG_SIZE = 10 + 10;
+  private static final int LEGACY_SONG_SIZE = 16;
+
+  private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(256));
+
+  private final int k;
+  private final int slack;
+
+  /**
+   * @param k   the number of songs in the chart of the deserialized {@link TopKSongs}
+   */
+  TopKSongsSerde(final int k) {
+    this(k, 0);
+  }
+
+  /**
+   * @param k       the number of songs in the chart of the deserialized {@link TopKSongs}
+   * @param slack   the number of candidates kept beyond the top K
+   */
+  TopKSongsSerde(final int k, final int slack) {
+    this.k = k;
+    this.slack = slack;
+  }
+
+  @Override
+  public void configure(final Map<String, ?> configs, final boolean isKey) {
+  }
+
+  @Override
+  public void close() {
+  }
+
+  @Override
+  public Serializer<TopKSongs> serializer() {
+    return new Serializer<TopKSongs>() {
+      @Override
+      public void configure(final Map<String, ?> configs, final boolean isKey) {
+      }
+
+      @Override
+      public byte[] serialize(final String topic, final TopKSongs topKSongs) {
+        if (topKSongs == null) {
+          return null;
+        }
+        final ByteBuffer buffer = buffer(MAX_HEADER_SIZE + topKSongs.size() * MAX_SONG_SIZE);
+        buffer.put(VERSION);
+        buffer.put(topKSongs.isTruncated() ? TRUNCATED_FLAG : 0);
+        writeVarint(buffer, topKSongs.size());
+        for (int rank = 0; rank < topKSongs.size(); rank++) {
+          writeVarlong(buffer, zigzag(topKSongs.songId(rank)));
+          writeVarlong(buffer, zigzag(topKSongs.plays(rank)));
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+
+  @Override
+  public Deserializer<TopKSongs> deserializer() {
+    return new Deserializer<TopKSongs>() {
+      @Override
+      public void configure(final Map<String, ?> configs, final boolean isKey) {
+      }
+
+      @Override
+      public TopKSongs deserialize(final String topic, final byte[] bytes) {
+        if (bytes == null || bytes.length == 0) {
+          return null;
+        }
+        final TopKSongs result = new TopKSongs(k, slack);
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (isLegacyFormat(bytes)) {
+          while (buffer.remaining() >= LEGACY_SONG_SIZE) {
+            result.add(buffer.getLong(), buffer.getLong());
+          }
+          return result;
+        }
+        try {
+          final byte version = buffer.get();
+          if (version == VERSION) {
+            result.setTruncated((buffer.get() & TRUNCATED_FLAG) != 0);
+          } else if (version != VERSION_WITHOUT_FLAGS) {
+            throw new SerializationException("Unknown TopKSongs format version " + version);
+          }
+          final int count = readVarint(buffer);
+          for (int i = 0; i < count; i++) {
+            final long songId = unzigzag(readVarlong(buffer));
+            result.add(songId, unzigzag(readVarlong(buffer)));
+          }
+        } catch (final BufferUnderflowException e) {
+          throw new SerializationException("Truncated TopKSongs value", e);
+        }
+        return result;
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+
+  // The previous format had no version byte. Its first byte is the most significant byte of a
+  // song id, which is 0 for any realistic id, and its size is a multiple of 16.
+  private static boolean isLegacyFormat(final byte[] bytes) {
+    return bytes[0] == 0 && bytes.length % LEGACY_SONG_SIZE == 0;
+  }
+
+  private static ByteBuffer buffer(final int maxSize) {
+    ByteBuffer buffer = BUFFER.get();
+    if (buffer.capacity() < maxSize) {
+      buffer = ByteBuffer.allocate(Math.max(maxSize, buffer.capacity() * 2));
+      BUFFER.set(buffer);
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  static long zigzag(final long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  static long unzigzag(final long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  static void writeVarint(final ByteBuffer buffer, final int value) {
+    writeVarlong(buffer, value & 0xffffffffL);
+  }
+
+  static void writeVarlong(final ByteBuffer buffer, final long value) {
+    long remaining = value;
+    while ((remaining & ~0x7fL) != 0) {
+      buffer.put((byte) ((remaining & 0x7f) | 0x80));
+      remaining >>>= 7;
+    }
+    buffer.put((byte) remaining);
+  }
+
+  static int readVarint(final ByteBuffer buffer) {
+    final long value = readVarlong(buffer);
+    if (value < 0 || value > Integer.MAX_VALUE) {
+      throw new SerializationException("Invalid count " + value);
+    }
+    return (int) value;
+  }
+
+  static long readVarlong(final ByteBuffer buffer) {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      final byte b = buffer.get();
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new SerializationException("Varint is too long");
+  }
+
+}
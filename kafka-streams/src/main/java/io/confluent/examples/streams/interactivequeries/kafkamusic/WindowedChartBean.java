@@ -0,0 +1,91 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.confluent.examples.streams.interactivequeries.kafkamusic;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The chart of a time window, i.e., the top songs played from its start (inclusive) to its end
+ * (exclusive).
+ */
+public class WindowedChartBean {
+
+  private Long start;
+  private Long end;
+  private List<SongPlayCountBean> songs;
+
+  public WindowedChartBean() {}
+
+  public WindowedChartBean(final Long start, final Long end, final List<SongPlayCountBean> songs) {
+    this.start = start;
+    this.end = end;
+    this.songs = songs;
+  }
+
+  public Long getStart() {
+    return start;
+  }
+
+  public void setStart(final Long start) {
+    this.start = start;
+  }
+
+  public Long getEnd() {
+    return end;
+  }
+
+  public void setEnd(final Long end) {
+    this.end = end;
+  }
+
+  public List<SongPlayCountBean> getSongs() {
+    return songs;
+  }
+
+  public void setSongs(final List<SongPlayCountBean> songs) {
+    this.songs = songs;
+  }
+
+  @Override
+  public String toString() {
+    return "WindowedChartBean{" +
+           "start=" + start +
+           ", end=" + end +
+           ", songs=" + songs +
+           '}';
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    final WindowedChartBean that = (WindowedChartBean) o;
+    return Objects.equals(start, that.start) &&
+           Objects.equals(end, that.end) &&
+           Objects.equals(songs, that.songs);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(start, end, songs);
+  }
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries;
+
+import org.apache.kafka.common.metrics.KafkaMetric;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.streams.errors.InvalidStateStoreException;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.servlet.ServletContainer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import static io.confluent.examples.streams.interactivequeries.WordCountInteractiveQueriesExampleTest.randomFreeLocalPort;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class AdmissionControllerTest {
+
+  private final CountDownLatch entered = new CountDownLatch(1);
+  private final CountDownLatch release = new CountDownLatch(1);
+  private final Metrics metrics = new Metrics();
+  private final Client client = ClientBuilder.newClient();
+  private Server server;
+  private String baseUrl;
+
+  @Path("test")
+  public static class BlockingResource {
+
+    private final CountDownLatch entered;
+    private final CountDownLatch release;
+
+    public BlockingResource(final CountDownLatch entered, final CountDownLatch release) {
+      this.entered = entered;
+      this.release = release;
+    }
+
+    @GET
+    @Path("/slow")
+    public String slow() throws InterruptedException {
+      entered.countDown();
+      release.await(10, TimeUnit.SECONDS);
+      return "slow";
+    }
+
+    @GET
+    @Path("/fast")
+    public String fast() {
+      return "fast";
+    }
+
+    @GET
+    @Path("/streaming")
+    public StreamingOutput streaming() {
+      return out -> {
+        out.write("stream".getBytes("UTF-8"));
+        entered.countDown();
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        out.write("ed".getBytes("UTF-8"));
+      };
+    }
+
+    @GET
+    @Path("/failing")
+    public String failing() {
+      // no exception mapper handles this
+      throw new IllegalArgumentException("failing");
+    }
+
+    @GET
+    @Path("/rebalancing")
+    public String rebalancing() {
+      throw new InvalidStateStoreException("the state store, word-count, may have migrated to another instance.");
+    }
+  }
+
+  @Before
+  public void startServer() throws Exception {
+    final int port = randomFreeLocalPort();
+    baseUrl = "http://localhost:" + port + "/test/";
+    server = new Server(port);
+    final ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
+    context.setContextPath("/");
+    server.setHandler(context);
+
+    final ResourceConfig rc = new ResourceConfig();
+    rc.register(new BlockingResource(entered, release));
+    // one request at a time for the slow endpoint. A request may wait for a short while, as the
+    // slot of a request is only released after its response has been sent.
+    rc.register(new AdmissionController("test", 4, 1, 100L, metrics)
+                    .limit("slow", 1)
+                    .limit("streaming", 1)
+                    .limit("failing", 1));
+    rc.register(StoreUnavailableExceptionMapper.class);
+    context.addServlet(new ServletHolder(new ServletContainer(rc)), "/*");
+    server.start();
+  }
+
+  @After
+  public void stopServer() throws Exception {
+    release.countDown();
+    client.close();
+    server.stop();
+    metrics.close();
+  }
+
+  @Test
+  public void shouldShedRequestsBeyondLimitOfEndpoint() throws Exception {
+    final CompletableFuture<String> first =
+        CompletableFuture.supplyAsync(() -> client.target(baseUrl + "slow").request().get(String.class));
+    assertThat(entered.await(10, TimeUnit.SECONDS), equalTo(true));
+
+    final Response shed = client.target(baseUrl + "slow").request().get();
+    assertThat(shed.getStatus(), equalTo(503));
+    assertThat(shed.getHeaderString(HttpHeaders.RETRY_AFTER), equalTo("1"));
+    // other endpoints are not affected
+    assertThat(client.target(baseUrl + "fast").request().get(String.class), equalTo("fast"));
+
+    release.countDown();
+    assertThat(first.get(10, TimeUnit.SECONDS), equalTo("slow"));
+    // the slot is free again
+    assertThat(client.target(baseUrl + "slow").request().get(String.class), equalTo("slow"));
+    assertThat(metricValue("shed-total", "slow"), equalTo(1.0));
+  }
+
+  @Test
+  public void shouldHoldSlotWhileStreamingResponse() throws Exception {
+    final CompletableFuture<String> first =
+        CompletableFuture.supplyAsync(() -> client.target(baseUrl + "streaming").request().get(String.class));
+    assertThat(entered.await(10, TimeUnit.SECONDS), equalTo(true));
+
+    assertThat(client.target(baseUrl + "streaming").request().get().getStatus(), equalTo(503));
+
+    release.countDown();
+    assertThat(first.get(10, TimeUnit.SECONDS), equalTo("streamed"));
+    assertThat(client.target(baseUrl + "streaming").request().get(String.class), equalTo("streamed"));
+  }
+
+  @Test
+  public void shouldReleaseSlotOfFailedRequests() {
+    for (int i = 0; i < 3; i++) {
+      assertThat(client.target(baseUrl + "failing").request().get().getStatus(), equalTo(500));
+    }
+    assertThat(metricValue("shed-total", "failing"), equalTo(0.0));
+  }
+
+  @Test
+  public void shouldAnswerUnavailableStoreWithServiceUnavailable() {
+    final Response response = client.target(baseUrl + "rebalancing").request().get();
+    assertThat(response.getStatus(), equalTo(503));
+    assertThat(response.getHeaderString(HttpHeaders.RETRY_AFTER), equalTo("1"));
+  }
+
+  @Test
+  public void shouldDeriveTimeoutFromHeader() {
+    assertThat(AdmissionController.timeoutMs(null, 5000L), equalTo(5000L));
+    assertThat(AdmissionController.timeoutMs("250", 5000L), equalTo(250L));
+    assertThat(AdmissionController.timeoutMs("60000", 5000L), equalTo(5000L));
+    assertThat(AdmissionController.timeoutMs("-1", 5000L), equalTo(0L));
+    assertThat(AdmissionController.timeoutMs("soon", 5000L), equalTo(5000L));
+  }
+
+  private double metricValue(final String name, final String endpoint) {
+    for (final Map.Entry<?, KafkaMetric> metric : metrics.metrics().entrySet()) {
+      if (metric.getValue().metricName().name().equals(name)
+          && endpoint.equals(metric.getValue().metricName().tags().get("endpoint"))) {
+        return metric.getValue().value();
+      }
+    }
+    throw new AssertionError("No metric " + name + " for endpoint " + endpoint);
+  }
+
+}
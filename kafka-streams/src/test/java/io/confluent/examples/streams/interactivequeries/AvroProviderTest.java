@@ -0,0 +1,117 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class AvroProviderTest {
+
+  private static final GenericType<List<KeyValueBean>> KEY_VALUES = new GenericType<List<KeyValueBean>>() { };
+  private static final GenericType<List<HostStoreInfo>> HOSTS = new GenericType<List<HostStoreInfo>>() { };
+
+  private final AvroProvider avro = new AvroProvider();
+  private final SmileProvider smile = new SmileProvider();
+
+  @Test
+  public void shouldRoundTripBeans() throws IOException {
+    final List<KeyValueBean> keyValues = keyValues(3);
+    final List<HostStoreInfo> hosts = Arrays.asList(
+        new HostStoreInfo("localhost", 7070, new HashSet<>(Arrays.asList("word-count", "windowed-word-count"))),
+        new HostStoreInfo("localhost", 7071, new HashSet<>()));
+
+    assertThat(roundTrip(avro, keyValues, KEY_VALUES), equalTo(keyValues));
+    assertThat(roundTrip(avro, hosts, HOSTS), equalTo(hosts));
+    assertThat(roundTrip(smile, keyValues, KEY_VALUES), equalTo(keyValues));
+    assertThat(roundTrip(smile, hosts, HOSTS), equalTo(hosts));
+  }
+
+  @Test
+  public void shouldAllowNullFields() throws IOException {
+    final List<KeyValueBean> keyValues = new ArrayList<>();
+    keyValues.add(new KeyValueBean());
+
+    assertThat(roundTrip(avro, keyValues, KEY_VALUES), equalTo(keyValues));
+  }
+
+  @Test
+  public void shouldNotWriteTypesWithoutSchema() {
+    final GenericType<Map<Long, Long>> longKeys = new GenericType<Map<Long, Long>>() { };
+
+    assertThat(avro.isWriteable(Map.class, longKeys.getType(), null, AvroProvider.AVRO_BINARY_TYPE),
+               equalTo(false));
+    assertThat(avro.isWriteable(ArrayList.class, ArrayList.class, null, AvroProvider.AVRO_BINARY_TYPE),
+               equalTo(false));
+    assertThat(avro.isWriteable(List.class, KEY_VALUES.getType(), null, AvroProvider.AVRO_BINARY_TYPE),
+               equalTo(true));
+  }
+
+  // Not a benchmark, but documents what the binary formats save over JSON for a typical range query
+  @Test
+  public void shouldBeSmallerThanJson() throws IOException {
+    final List<KeyValueBean> keyValues = keyValues(1000);
+    final int json = new ObjectMapper().writeValueAsBytes(keyValues).length;
+    final int smileSize = write(smile, keyValues, KEY_VALUES).length;
+    final int avroSize = write(avro, keyValues, KEY_VALUES).length;
+
+    assertThat(smileSize < json, equalTo(true));
+    assertThat(avroSize < smileSize, equalTo(true));
+  }
+
+  private static List<KeyValueBean> keyValues(final int count) {
+    final List<KeyValueBean> keyValues = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      keyValues.add(new KeyValueBean("word-" + i, (long) i * 31));
+    }
+    return keyValues;
+  }
+
+  private static <T> byte[] write(final MessageBodyWriter<Object> writer,
+                                  final T entity,
+                                  final GenericType<T> type) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writer.writeTo(entity, type.getRawType(), type.getType(), null, MediaType.WILDCARD_TYPE, null, out);
+    return out.toByteArray();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T, P extends MessageBodyWriter<Object> & MessageBodyReader<Object>> T roundTrip(
+      final P provider,
+      final T entity,
+      final GenericType<T> type) throws IOException {
+    final Type genericType = type.getType();
+    return (T) provider.readFrom((Class<Object>) type.getRawType(), genericType, null, MediaType.WILDCARD_TYPE, null,
+                                 new ByteArrayInputStream(write(provider, entity, type)));
+  }
+
+}
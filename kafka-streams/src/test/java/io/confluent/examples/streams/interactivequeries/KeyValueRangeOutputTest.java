@@ -0,0 +1,212 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.ReadOnlyKeyValueStore;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.MediaType;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class KeyValueRangeOutputTest {
+
+  private final List<Partition> partitions = Arrays.asList(new Partition("hello", 2L, "streams", 3L),
+                                                           new Partition("all", 1L, "kafka", 2L, "to", 1L),
+                                                           new Partition("lead", 1L, "world", 3L));
+
+  @Test
+  public void shouldMergePartitionsByKey() throws IOException {
+    assertThat(keys(null, null, null, Integer.MAX_VALUE),
+               equalTo(Arrays.asList("all", "hello", "kafka", "lead", "streams", "to", "world")));
+    assertThat(keys("hello", "streams", null, Integer.MAX_VALUE),
+               equalTo(Arrays.asList("hello", "kafka", "lead", "streams")));
+    assertIteratorsClosed();
+  }
+
+  @Test
+  public void shouldPageThroughEntries() throws IOException {
+    assertThat(keys(null, null, null, 3), equalTo(Arrays.asList("all", "hello", "kafka")));
+    assertThat(keys(null, null, "kafka", 3), equalTo(Arrays.asList("lead", "streams", "to")));
+    assertThat(keys(null, null, "to", 3), equalTo(Arrays.asList("world")));
+    assertThat(keys(null, null, "world", 3), equalTo(new ArrayList<String>()));
+
+    // the key to continue after need not be in the store, and is ignored if it precedes the range
+    assertThat(keys("hello", "streams", "job", 2), equalTo(Arrays.asList("kafka", "lead")));
+    assertThat(keys("hello", "streams", "all", 2), equalTo(Arrays.asList("hello", "kafka")));
+    assertIteratorsClosed();
+  }
+
+  @Test
+  public void shouldWriteBinaryFormatsLikeProviders() throws IOException {
+    final GenericType<List<KeyValueBean>> type = new GenericType<List<KeyValueBean>>() { };
+    final List<KeyValueBean> expected = Arrays.asList(new KeyValueBean("all", 1L),
+                                                      new KeyValueBean("hello", 2L));
+
+    for (final MediaType mediaType : Arrays.asList(AvroProvider.AVRO_BINARY_TYPE, SmileProvider.SMILE_TYPE)) {
+      final byte[] written = write(null, null, null, 2, mediaType);
+      final Object read = mediaType.equals(AvroProvider.AVRO_BINARY_TYPE)
+          ? new AvroProvider().readFrom(Object.class, type.getType(), null, mediaType, null,
+                                        new ByteArrayInputStream(written))
+          : new SmileProvider().readFrom(Object.class, type.getType(), null, mediaType, null,
+                                         new ByteArrayInputStream(written));
+      assertThat(read, equalTo(expected));
+    }
+  }
+
+  @Test
+  public void shouldCloseIteratorsIfWritingFails() {
+    final KeyValueRangeOutput output =
+        new KeyValueRangeOutput(stores(), null, null, null, Integer.MAX_VALUE, MediaType.APPLICATION_JSON_TYPE);
+    try {
+      output.write(new OutputStream() {
+        @Override
+        public void write(final int b) throws IOException {
+          throw new IOException("client has gone");
+        }
+      });
+      fail("Should have failed to write");
+    } catch (final IOException expected) {
+      // expected
+    }
+    assertIteratorsClosed();
+  }
+
+  @Test
+  public void shouldCompareKeysInOrderOfStores() {
+    // U+1F600 is encoded as a surrogate pair, which sorts before U+FFFF in UTF-16 but not in UTF-8
+    assertThat(KeyValueRangeOutput.compare("\uD83D\uDE00", "\uFFFF") > 0, equalTo(true));
+    assertThat(KeyValueRangeOutput.compare("kafka", "kafka streams") < 0, equalTo(true));
+    assertThat(KeyValueRangeOutput.compare("kafka", "kafka"), equalTo(0));
+  }
+
+  private List<String> keys(final String from, final String to, final String after, final int limit)
+      throws IOException {
+    final List<KeyValueBean> beans = new ObjectMapper().readValue(
+        write(from, to, after, limit, MediaType.APPLICATION_JSON_TYPE),
+        new TypeReference<List<KeyValueBean>>() { });
+    final List<String> keys = new ArrayList<>();
+    for (final KeyValueBean bean : beans) {
+      keys.add(bean.getKey());
+    }
+    return keys;
+  }
+
+  private byte[] write(final String from,
+                       final String to,
+                       final String after,
+                       final int limit,
+                       final MediaType mediaType) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new KeyValueRangeOutput(stores(), from, to, after, limit, mediaType).write(out);
+    return out.toByteArray();
+  }
+
+  private List<ReadOnlyKeyValueStore<String, Long>> stores() {
+    return new ArrayList<>(partitions);
+  }
+
+  private void assertIteratorsClosed() {
+    for (final Partition partition : partitions) {
+      assertThat(partition.openIterators, equalTo(0));
+    }
+  }
+
+  /**
+   * A partition of a store, which keeps track of the iterators that have not been closed.
+   */
+  private static final class Partition implements ReadOnlyKeyValueStore<String, Long> {
+
+    private final TreeMap<String, Long> entries = new TreeMap<>();
+    private int openIterators = 0;
+
+    private Partition(final Object... keyValues) {
+      for (int i = 0; i < keyValues.length; i += 2) {
+        entries.put((String) keyValues[i], (Long) keyValues[i + 1]);
+      }
+    }
+
+    @Override
+    public Long get(final String key) {
+      return entries.get(key);
+    }
+
+    @Override
+    public KeyValueIterator<String, Long> range(final String from, final String to) {
+      return iterator(entries.subMap(from, true, to, true));
+    }
+
+    @Override
+    public KeyValueIterator<String, Long> all() {
+      return iterator(entries);
+    }
+
+    @Override
+    public long approximateNumEntries() {
+      return entries.size();
+    }
+
+    private KeyValueIterator<String, Long> iterator(final Map<String, Long> range) {
+      openIterators++;
+      final Iterator<Map.Entry<String, Long>> iterator = range.entrySet().iterator();
+      return new KeyValueIterator<String, Long>() {
+        @Override
+        public void close() {
+          openIterators--;
+        }
+
+        @Override
+        public String peekNextKey() {
+          throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean hasNext() {
+          return iterator.hasNext();
+        }
+
+        @Override
+        public KeyValue<String, Long> next() {
+          final Map.Entry<String, Long> next = iterator.next();
+          return KeyValue.pair(next.getKey(), next.getValue());
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+  }
+
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries;
+
+import org.apache.kafka.common.serialization.LongSerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.common.utils.Utils;
+import org.apache.kafka.streams.KafkaStreams;
+import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.kstream.KStreamBuilder;
+import org.apache.kafka.test.TestUtils;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class PartitionRoutingTableTest {
+
+  private static final int[] NUM_PARTITIONS = {1, 2, 3, 4, 7, 16, 100};
+
+  private final StringSerializer stringSerializer = new StringSerializer();
+  private final LongSerializer longSerializer = new LongSerializer();
+
+  @Test
+  public void shouldPartitionStringKeysLikeTheDefaultPartitioner() {
+    for (final String key : Arrays.asList("", "a", "ab", "abc", "abcd", "punk", "Hip Hop",
+                                          "a very long key that does not fit into the initial key buffer",
+                                          "\u00dcml\u00e4\u00fcte", "\u65e5\u672c\u8a9e", "\uD83C\uDFB8 guitar",
+                                          "broken \uD83C surrogate",
+                                          "\uDFB8 reversed \uD83C")) {
+      for (final int numPartitions : NUM_PARTITIONS) {
+        assertThat(key, PartitionRoutingTable.partitionForKey(key, numPartitions),
+                   equalTo(defaultPartition(stringSerializer.serialize("topic", key), numPartitions)));
+      }
+    }
+  }
+
+  @Test
+  public void shouldPartitionLongKeysLikeTheDefaultPartitioner() {
+    final Random random = new Random(42);
+    for (int i = 0; i < 1000; i++) {
+      final long key = i < 10 ? i : random.nextLong();
+      for (final int numPartitions : NUM_PARTITIONS) {
+        assertThat(PartitionRoutingTable.partitionForKey(key, numPartitions),
+                   equalTo(defaultPartition(longSerializer.serialize("topic", key), numPartitions)));
+      }
+    }
+    assertThat(PartitionRoutingTable.partitionForKey(Long.MIN_VALUE, 7),
+               equalTo(defaultPartition(longSerializer.serialize("topic", Long.MIN_VALUE), 7)));
+  }
+
+  @Test
+  public void shouldNotifyTheStateListenerOfTheApplication() {
+    final Properties config = new Properties();
+    config.put(StreamsConfig.APPLICATION_ID_CONFIG, "partition-routing-table-test");
+    config.put(StreamsConfig.BOOTSTRAP_SERVERS_CONFIG, "localhost:9092");
+    config.put(StreamsConfig.STATE_DIR_CONFIG, TestUtils.tempDirectory().getPath());
+    final KStreamBuilder builder = new KStreamBuilder();
+    builder.stream("input");
+    final KafkaStreams streams = new KafkaStreams(builder, config);
+    try {
+      final List<KafkaStreams.State> states = new ArrayList<>();
+      final PartitionRoutingTable routingTable =
+          new PartitionRoutingTable(streams, (newState, oldState) -> states.add(newState));
+      routingTable.onChange(KafkaStreams.State.REBALANCING, KafkaStreams.State.CREATED);
+      routingTable.onChange(KafkaStreams.State.PENDING_SHUTDOWN, KafkaStreams.State.REBALANCING);
+      assertThat(states, equalTo(Arrays.asList(KafkaStreams.State.REBALANCING,
+                                               KafkaStreams.State.PENDING_SHUTDOWN)));
+    } finally {
+      streams.close();
+    }
+  }
+
+  private static int defaultPartition(final byte[] key, final int numPartitions) {
+    return Utils.toPositive(Utils.murmur2(key)) % numPartitions;
+  }
+
+}
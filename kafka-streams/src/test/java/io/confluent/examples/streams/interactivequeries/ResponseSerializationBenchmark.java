@@ -0,0 +1,122 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.ext.MessageBodyWriter;
+
+import io.confluent.examples.streams.interactivequeries.kafkamusic.SongPlayCountBean;
+
+/**
+ * A plain timing harness that compares the size and the serialization cost of the responses of
+ * the interactive query endpoints in JSON, Avro binary and Smile. It is not a test, and is run by
+ * hand, e.g.:
+ *
+ * <pre>
+ * {@code
+ * $ mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=io.confluent.examples.streams.interactivequeries.ResponseSerializationBenchmark
+ * }
+ * </pre>
+ *
+ * The responses are large lists of the beans the endpoints return, e.g., a range query over the
+ * word counts, and are written to memory by the same {@link MessageBodyWriter}s Jersey uses. JSON
+ * is written by a plain Jackson {@link ObjectMapper}, as configured by the JacksonFeature.
+ *
+ * This does not measure the CPU of a service under load, which also spends time on HTTP and on
+ * the state stores, nor what clients spend to read the responses.
+ */
+public class ResponseSerializationBenchmark {
+
+  private static final int ELEMENTS = 10000;
+  private static final int WARMUP_ROUNDS = 200;
+  private static final int MEASURED_ROUNDS = 200;
+
+  private static final ObjectMapper JSON = new ObjectMapper();
+  private static final AvroProvider AVRO = new AvroProvider();
+  private static final SmileProvider SMILE = new SmileProvider();
+
+  private static final ByteArrayOutputStream BUFFER = new ByteArrayOutputStream();
+
+  /**
+   * Writes a response into the given stream.
+   */
+  private interface Format {
+    void write(Object entity, GenericType<?> type, ByteArrayOutputStream out) throws IOException;
+  }
+
+  public static void main(final String[] args) throws IOException {
+    final List<KeyValueBean> keyValues = new ArrayList<>();
+    final List<SongPlayCountBean> songPlayCounts = new ArrayList<>();
+    final List<HostStoreInfo> hosts = new ArrayList<>();
+    for (int i = 0; i < ELEMENTS; i++) {
+      keyValues.add(new KeyValueBean("word-" + i, (long) i * 31));
+      songPlayCounts.add(new SongPlayCountBean("Artist " + (i % 100), "Album " + (i % 1000), "Song " + i,
+                                               (long) (ELEMENTS - i)));
+      hosts.add(new HostStoreInfo("host-" + i, 7070 + i % 10,
+                                  new HashSet<>(Arrays.asList("word-count", "windowed-word-count"))));
+    }
+
+    System.out.printf("responses of %d elements, %d rounds%n", ELEMENTS, MEASURED_ROUNDS);
+    compare("List<KeyValueBean>", keyValues, new GenericType<List<KeyValueBean>>() { });
+    compare("List<SongPlayCountBean>", songPlayCounts, new GenericType<List<SongPlayCountBean>>() { });
+    compare("List<HostStoreInfo>", hosts, new GenericType<List<HostStoreInfo>>() { });
+  }
+
+  private static void compare(final String name, final Object entity, final GenericType<?> type)
+      throws IOException {
+    System.out.println(name);
+    measure("JSON", (e, t, out) -> JSON.writeValue(out, e), entity, type);
+    measure("Avro binary", provider(AVRO), entity, type);
+    measure("Smile", provider(SMILE), entity, type);
+  }
+
+  private static Format provider(final MessageBodyWriter<Object> writer) {
+    return (entity, type, out) ->
+        writer.writeTo(entity, type.getRawType(), type.getType(), null, MediaType.WILDCARD_TYPE, null, out);
+  }
+
+  private static void measure(final String name,
+                              final Format format,
+                              final Object entity,
+                              final GenericType<?> type) throws IOException {
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      BUFFER.reset();
+      format.write(entity, type, BUFFER);
+    }
+    final long start = System.nanoTime();
+    for (int i = 0; i < MEASURED_ROUNDS; i++) {
+      BUFFER.reset();
+      format.write(entity, type, BUFFER);
+    }
+    final long elapsed = System.nanoTime() - start;
+
+    System.out.printf("  %-12s %10d B/response %8.1f us/response %6.1f ns/element%n",
+                      name,
+                      BUFFER.size(),
+                      (double) elapsed / MEASURED_ROUNDS / 1000,
+                      (double) elapsed / MEASURED_ROUNDS / ELEMENTS);
+  }
+
+}
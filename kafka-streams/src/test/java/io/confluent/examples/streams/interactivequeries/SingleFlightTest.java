@@ -0,0 +1,83 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class SingleFlightTest {
+
+  private final AtomicInteger computations = new AtomicInteger();
+
+  @Test
+  public void shouldShareInFlightComputation() {
+    final SingleFlight<String, String> flights = new SingleFlight<>(0);
+    final CompletableFuture<String> computation = new CompletableFuture<>();
+
+    final CompletableFuture<String> first = flights.execute("punk", () -> count(computation));
+    final CompletableFuture<String> second = flights.execute("punk", () -> count(computation));
+    final CompletableFuture<String> other = flights.execute("rock", () -> count(new CompletableFuture<>()));
+    assertThat(computations.get(), equalTo(2));
+
+    // cancelling one query does not affect the other one sharing the computation
+    first.cancel(true);
+    computation.complete("chart");
+    assertThat(second.join(), equalTo("chart"));
+    assertThat(other.isDone(), equalTo(false));
+
+    // without a hold time, the next query computes the result again
+    flights.execute("punk", () -> count(CompletableFuture.completedFuture("chart")));
+    assertThat(computations.get(), equalTo(3));
+    assertThat(flights.size(), equalTo(1));
+  }
+
+  @Test
+  public void shouldHoldResultForHoldTime() throws Exception {
+    final SingleFlight<String, String> flights = new SingleFlight<>(200);
+    flights.execute("punk", () -> count(CompletableFuture.completedFuture("chart")));
+    assertThat(flights.execute("punk", () -> count(CompletableFuture.completedFuture("newer"))).join(),
+               equalTo("chart"));
+    assertThat(computations.get(), equalTo(1));
+
+    Thread.sleep(300);
+    assertThat(flights.execute("punk", () -> count(CompletableFuture.completedFuture("newer"))).join(),
+               equalTo("newer"));
+    assertThat(computations.get(), equalTo(2));
+  }
+
+  @Test
+  public void shouldNotHoldFailures() {
+    final SingleFlight<String, String> flights = new SingleFlight<>(60000);
+    final CompletableFuture<String> failed = flights.execute("punk", () -> {
+      computations.incrementAndGet();
+      throw new IllegalStateException("store not available");
+    });
+    assertThat(failed.isCompletedExceptionally(), equalTo(true));
+
+    assertThat(flights.execute("punk", () -> count(CompletableFuture.completedFuture("chart"))).join(),
+               equalTo("chart"));
+    assertThat(computations.get(), equalTo(2));
+  }
+
+  private CompletableFuture<String> count(final CompletableFuture<String> computation) {
+    computations.incrementAndGet();
+    return computation;
+  }
+
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries;
+
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.processor.internals.MockStreamsMetrics;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.KeyValueStore;
+import org.apache.kafka.streams.state.Stores;
+import org.apache.kafka.streams.state.internals.ThreadCache;
+import org.apache.kafka.test.MockProcessorContext;
+import org.apache.kafka.test.NoOpRecordCollector;
+import org.apache.kafka.test.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class TopKeysProcessorTest {
+
+  private MockProcessorContext context;
+  private KeyValueStore<String, Long> top;
+
+  @Before
+  @SuppressWarnings("unchecked")
+  public void createStore() {
+    final ThreadCache cache = new ThreadCache("test", 0, new MockStreamsMetrics(new Metrics()));
+    context = new MockProcessorContext(TestUtils.tempDirectory(), Serdes.String(), Serdes.Long(),
+                                       new NoOpRecordCollector(), cache);
+    top = (KeyValueStore<String, Long>) Stores.create("word-count-top")
+        .withStringKeys()
+        .withLongValues()
+        .persistent()
+        .disableLogging()
+        .build()
+        .get();
+    top.init(context, top);
+  }
+
+  @After
+  public void closeStore() {
+    top.close();
+  }
+
+  @Test
+  public void shouldKeepKeysWithHighestValues() {
+    final TopKeysProcessor processor = processor(3);
+    processor.process("hello", 1L);
+    processor.process("world", 1L);
+    processor.process("kafka", 1L);
+    processor.process("streams", 1L);
+    // of keys with the same value, the ones that come first are kept
+    assertThat(topKeys(), equalTo(Arrays.asList("hello", "kafka", "streams")));
+
+    processor.process("world", 2L);
+    processor.process("hello", 2L);
+    processor.process("world", 3L);
+    assertThat(topKeys(), equalTo(Arrays.asList("world", "hello", "kafka")));
+
+    processor.process("hello", null);
+    assertThat(topKeys(), equalTo(Arrays.asList("world", "kafka")));
+  }
+
+  @Test
+  public void shouldRestoreTopKeysFromStore() {
+    final TopKeysProcessor processor = processor(3);
+    processor.process("hello", 3L);
+    processor.process("world", 2L);
+    processor.process("kafka", 1L);
+
+    // a processor that keeps fewer keys, e.g., after a restart with a different configuration
+    final TopKeysProcessor restored = processor(2);
+    assertThat(topKeys(), equalTo(Arrays.asList("hello", "world")));
+    restored.process("streams", 4L);
+    assertThat(topKeys(), equalTo(Arrays.asList("streams", "hello")));
+  }
+
+  private TopKeysProcessor processor(final int size) {
+    final TopKeysProcessor processor = new TopKeysProcessor(top.name(), size);
+    processor.init(context);
+    return processor;
+  }
+
+  private List<String> topKeys() {
+    final List<KeyValue<String, Long>> entries = new ArrayList<>();
+    try (final KeyValueIterator<String, Long> iterator = top.all()) {
+      iterator.forEachRemaining(entries::add);
+    }
+    entries.sort(TopKeysProcessor.LOWEST_FIRST.reversed());
+    final List<String> keys = new ArrayList<>();
+    for (final KeyValue<String, Long> entry : entries) {
+      keys.add(entry.key);
+    }
+    return keys;
+  }
+
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries;
+
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.kstream.Windowed;
+import org.apache.kafka.streams.kstream.internals.TimeWindow;
+import org.apache.kafka.streams.processor.internals.MockStreamsMetrics;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.KeyValueStore;
+import org.apache.kafka.streams.state.Stores;
+import org.apache.kafka.streams.state.internals.ThreadCache;
+import org.apache.kafka.test.MockProcessorContext;
+import org.apache.kafka.test.NoOpRecordCollector;
+import org.apache.kafka.test.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class WindowIndexProcessorTest {
+
+  private static final long WINDOW_SIZE_MS = 60000L;
+  private static final long RETENTION_MS = 3 * WINDOW_SIZE_MS;
+
+  private KeyValueStore<String, Long> index;
+  private WindowIndexProcessor processor;
+
+  @Before
+  @SuppressWarnings("unchecked")
+  public void createIndex() {
+    final ThreadCache cache = new ThreadCache("test", 0, new MockStreamsMetrics(new Metrics()));
+    final MockProcessorContext context =
+        new MockProcessorContext(TestUtils.tempDirectory(), Serdes.String(), Serdes.Long(), new NoOpRecordCollector(),
+                                 cache) {
+          @Override
+          public void schedule(final long interval) {
+            // punctuate() is called by the tests
+          }
+        };
+    index = (KeyValueStore<String, Long>) Stores.create("windowed-word-count-index")
+        .withStringKeys()
+        .withLongValues()
+        .persistent()
+        .disableLogging()
+        .build()
+        .get();
+    index.init(context, index);
+    processor = new WindowIndexProcessor(index.name(), RETENTION_MS, WINDOW_SIZE_MS);
+    processor.init(context);
+  }
+
+  @After
+  public void closeIndex() {
+    index.close();
+  }
+
+  @Test
+  public void shouldReadOnlyTheWindowsOfTheRange() {
+    process(0, "streams", 1L);
+    process(WINDOW_SIZE_MS, "kafka", 2L);
+    process(WINDOW_SIZE_MS, "all", 1L);
+    // the window starts are zero-padded, so that they sort by their bytes
+    process(1L << 40, "hello", 1L);
+    process(WINDOW_SIZE_MS, "kafka", 3L);
+
+    assertThat(windows(WINDOW_SIZE_MS, WINDOW_SIZE_MS),
+               equalTo(Arrays.asList(KeyValue.pair(WINDOW_SIZE_MS + "@all", 1L),
+                                     KeyValue.pair(WINDOW_SIZE_MS + "@kafka", 3L))));
+    assertThat(windows(0, 1L << 40),
+               equalTo(Arrays.asList(KeyValue.pair("0@streams", 1L),
+                                     KeyValue.pair(WINDOW_SIZE_MS + "@all", 1L),
+                                     KeyValue.pair(WINDOW_SIZE_MS + "@kafka", 3L),
+                                     KeyValue.pair((1L << 40) + "@hello", 1L))));
+  }
+
+  @Test
+  public void shouldRemoveExpiredWindows() {
+    process(0, "streams", 1L);
+    process(WINDOW_SIZE_MS, "kafka", 2L);
+    process(2 * WINDOW_SIZE_MS, "world", 1L);
+
+    processor.punctuate(RETENTION_MS);
+    assertThat(windows(0, Long.MAX_VALUE).size(), equalTo(3));
+
+    processor.punctuate(RETENTION_MS + WINDOW_SIZE_MS);
+    assertThat(windows(0, Long.MAX_VALUE),
+               equalTo(Arrays.asList(KeyValue.pair(WINDOW_SIZE_MS + "@kafka", 2L),
+                                     KeyValue.pair(2 * WINDOW_SIZE_MS + "@world", 1L))));
+  }
+
+  private void process(final long windowStart, final String key, final Long value) {
+    processor.process(new Windowed<>(key, new TimeWindow(windowStart, windowStart + WINDOW_SIZE_MS)), value);
+  }
+
+  private List<KeyValue<String, Long>> windows(final long from, final long to) {
+    final List<KeyValue<String, Long>> windows = new ArrayList<>();
+    try (final KeyValueIterator<String, Long> iterator =
+             index.range(WindowIndexProcessor.firstIndexKey(from), WindowIndexProcessor.lastIndexKey(to))) {
+      while (iterator.hasNext()) {
+        final KeyValue<String, Long> next = iterator.next();
+        windows.add(KeyValue.pair(WindowIndexProcessor.windowStart(next.key) + "@"
+                                  + WindowIndexProcessor.key(next.key), next.value));
+      }
+    }
+    return windows;
+  }
+
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries;
+
+import org.apache.kafka.streams.KeyValue;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class WindowRollupTest {
+
+  private static final long MINUTE = 60000L;
+  private static final long HOUR = 60 * MINUTE;
+
+  private final List<KeyValue<Long, Long>> windows = Arrays.asList(KeyValue.pair(0L, 3L),
+                                                                   KeyValue.pair(MINUTE, 1L),
+                                                                   KeyValue.pair(59 * MINUTE, 5L),
+                                                                   KeyValue.pair(3 * HOUR, 2L),
+                                                                   KeyValue.pair(3 * HOUR + MINUTE, 4L));
+
+  @Test
+  public void shouldRollUpAllWindows() {
+    assertThat(WindowRollup.rollUp(windows.iterator(), 0L, 4 * HOUR, null),
+               equalTo(Collections.singletonList(new WindowRollupBean(0L, 4 * HOUR + 1, 15L, 1L, 5L, 5L))));
+  }
+
+  @Test
+  public void shouldRollUpWindowsPerBucket() {
+    // the hours without windows are left out
+    assertThat(WindowRollup.rollUp(windows.iterator(), 0L, 4 * HOUR, HOUR),
+               equalTo(Arrays.asList(new WindowRollupBean(0L, HOUR, 9L, 1L, 5L, 3L),
+                                     new WindowRollupBean(3 * HOUR, 4 * HOUR, 6L, 2L, 4L, 2L))));
+    // buckets are aligned to the epoch rather than to the start of the range
+    assertThat(WindowRollup.rollUp(windows.subList(2, 5).iterator(), 59 * MINUTE, 4 * HOUR, 2 * HOUR),
+               equalTo(Arrays.asList(new WindowRollupBean(0L, 2 * HOUR, 5L, 5L, 5L, 1L),
+                                     new WindowRollupBean(2 * HOUR, 4 * HOUR, 6L, 2L, 4L, 2L))));
+  }
+
+  @Test
+  public void shouldRollUpNoWindowsToNothing() {
+    assertThat(WindowRollup.rollUp(Collections.<KeyValue<Long, Long>>emptyIterator(), 0L, HOUR, null).isEmpty(),
+               equalTo(true));
+  }
+
+}
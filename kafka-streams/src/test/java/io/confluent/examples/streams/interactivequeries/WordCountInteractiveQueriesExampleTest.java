@@ -37,9 +37,11 @@ import java.util.Properties;
 import javax.ws.rs.NotFoundException;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.Invocation;
 import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
 
 import io.confluent.examples.streams.IntegrationTestUtils;
 import io.confluent.examples.streams.kafka.EmbeddedSingleNodeKafkaCluster;
@@ -48,6 +50,7 @@ import static junit.framework.TestCase.assertTrue;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.IsCollectionContaining.hasItem;
 import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsNull.nullValue;
 
 /**
  * End-to-end integration test for {@link WordCountInteractiveQueriesExample}. Demonstrates
@@ -124,8 +127,10 @@ public class WordCountInteractiveQueriesExampleTest {
 
     kafkaStreams = WordCountInteractiveQueriesExample.createStreams(
         createStreamConfig(CLUSTER.bootstrapServers(), port, "one"));
+    final PartitionRoutingTable routingTable = new PartitionRoutingTable(kafkaStreams);
+    kafkaStreams.setStateListener(routingTable);
     kafkaStreams.start();
-    proxy = WordCountInteractiveQueriesExample.startRestProxy(kafkaStreams, port);
+    proxy = WordCountInteractiveQueriesExample.startRestProxy(kafkaStreams, routingTable, port);
 
     final Client client = ClientBuilder.newClient();
 
@@ -135,7 +140,9 @@ public class WordCountInteractiveQueriesExampleTest {
     final List<HostStoreInfo> hostStoreInfo = fetchHostInfo(allInstancesRequest);
 
     assertThat(hostStoreInfo, hasItem(
-        new HostStoreInfo("localhost", port, Sets.newHashSet("word-count", "windowed-word-count"))
+        new HostStoreInfo("localhost", port,
+                          Sets.newHashSet("word-count", "word-count-top", "windowed-word-count",
+                                          "windowed-word-count-index"))
     ));
 
     // Create a request to fetch all instances with word-count
@@ -145,7 +152,9 @@ public class WordCountInteractiveQueriesExampleTest {
         wordCountInstances = fetchHostInfo(wordCountInstancesRequest);
 
     assertThat(wordCountInstances, hasItem(
-        new HostStoreInfo("localhost", port, Sets.newHashSet("word-count", "windowed-word-count"))
+        new HostStoreInfo("localhost", port,
+                          Sets.newHashSet("word-count", "word-count-top", "windowed-word-count",
+                                          "windowed-word-count-index"))
     ));
 
     // Fetch all key-value pairs from the word-count store
@@ -183,6 +192,38 @@ public class WordCountInteractiveQueriesExampleTest {
 
     assertThat(range, equalTo(expectedRange));
 
+    // Fetch a page of key-value pairs, which are ordered by key across all partitions
+    final List<KeyValueBean> page =
+        client.target(baseUrl + "/keyvalues/word-count/all")
+            .queryParam("after", "hello")
+            .queryParam("limit", 3)
+            .request(MediaType.APPLICATION_JSON_TYPE)
+            .get(new GenericType<List<KeyValueBean>>() {
+            });
+    assertThat(page, equalTo(allValues.subList(2, 5)));
+
+    // Fetch a page of a range across all instances that host the word-count store
+    final Response clusterRange =
+        client.target(baseUrl + "/cluster/keyvalues/word-count/range/hello/to")
+            .queryParam("limit", 3)
+            .request(MediaType.APPLICATION_JSON_TYPE)
+            .get();
+    assertThat(clusterRange.readEntity(new GenericType<List<KeyValueBean>>() {
+    }), equalTo(allValues.subList(1, 4)));
+    assertThat(clusterRange.getHeaderString(WordCountInteractiveQueriesRestService.MISSING_INSTANCES_HEADER),
+               nullValue());
+
+    // Fetch the most frequent words across all instances
+    final List<KeyValueBean> topWords =
+        client.target(baseUrl + "/cluster/keyvalues/word-count/top")
+            .queryParam("n", 3)
+            .request(MediaType.APPLICATION_JSON_TYPE)
+            .get(new GenericType<List<KeyValueBean>>() {
+            });
+    assertThat(topWords, equalTo(Arrays.asList(new KeyValueBean("streams", 3L),
+                                               new KeyValueBean("world", 3L),
+                                               new KeyValueBean("hello", 2L))));
+
     // Find the instance of the Kafka Streams application that would have the key hello
     final HostStoreInfo
         hostWithHelloKey =
@@ -197,6 +238,15 @@ public class WordCountInteractiveQueriesExampleTest {
 
     assertThat(result, equalTo(new KeyValueBean("hello", 2L)));
 
+    // Fetch the values of several keys at once from the instances that host them, leaving out
+    // the keys that are not found
+    final List<KeyValueBean> batch = client.target(baseUrl + "/cluster/keyvalues/word-count/get")
+        .request(MediaType.APPLICATION_JSON_TYPE)
+        .post(Entity.json(Arrays.asList("world", "missing", "hello")),
+              new GenericType<List<KeyValueBean>>() {
+              });
+    assertThat(batch, equalTo(Arrays.asList(new KeyValueBean("world", 3L), new KeyValueBean("hello", 2L))));
+
     // fetch windowed values for a key
     final List<KeyValueBean>
         windowedResult =
@@ -210,6 +260,26 @@ public class WordCountInteractiveQueriesExampleTest {
     final KeyValueBean keyValueBean = windowedResult.get(0);
     assertTrue(keyValueBean.getKey().startsWith("streams"));
     assertThat(keyValueBean.getValue(), equalTo(3L));
+
+    // roll the windowed values for a key up into their total
+    final List<WindowRollupBean> rollup =
+        client.target(baseUrl + "/windowed/windowed-word-count/streams/0/" + System.currentTimeMillis()
+                      + "/rollup")
+            .request(MediaType.APPLICATION_JSON_TYPE)
+            .get(new GenericType<List<WindowRollupBean>>() {
+            });
+    assertThat(rollup.size(), equalTo(1));
+    assertThat(rollup.get(0).getSum(), equalTo(3L));
+
+    // fetch the most frequent words of all windows via the time index of the windowed store
+    final List<KeyValueBean> topWindowedWords =
+        client.target(baseUrl + "/windowedkeys/windowed-word-count/0/" + System.currentTimeMillis())
+            .queryParam("top", 2)
+            .request(MediaType.APPLICATION_JSON_TYPE)
+            .get(new GenericType<List<KeyValueBean>>() {
+            });
+    assertThat(topWindowedWords, equalTo(Arrays.asList(new KeyValueBean("streams", 3L),
+                                                       new KeyValueBean("world", 3L))));
   }
 
   /**
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries.kafkamusic;
+
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.processor.internals.MockStreamsMetrics;
+import org.apache.kafka.streams.state.KeyValueStore;
+import org.apache.kafka.streams.state.Stores;
+import org.apache.kafka.streams.state.internals.ThreadCache;
+import org.apache.kafka.test.MockProcessorContext;
+import org.apache.kafka.test.NoOpRecordCollector;
+import org.apache.kafka.test.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import io.confluent.examples.streams.avro.ChartChange;
+import io.confluent.examples.streams.utils.SpecificAvroSerde;
+import io.confluent.kafka.schemaregistry.client.MockSchemaRegistryClient;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ChartChangeTransformerTest {
+
+  private static final String CHART = KafkaMusicExample.TOP_FIVE_SONGS_STORE;
+  private static final String KEY = KafkaMusicExample.TOP_FIVE_KEY;
+
+  private KeyValueStore<String, ChartChange> rankings;
+  private ChartChangeTransformer transformer;
+
+  @Before
+  @SuppressWarnings("unchecked")
+  public void createTransformer() {
+    final ThreadCache cache = new ThreadCache("test", 0, new MockStreamsMetrics(new Metrics()));
+    final MockProcessorContext context =
+        new MockProcessorContext(TestUtils.tempDirectory(), Serdes.String(), Serdes.Long(),
+                                 new NoOpRecordCollector(), cache);
+    rankings = (KeyValueStore<String, ChartChange>) Stores.create("top-five-songs-rankings")
+        .withStringKeys()
+        .withValues(new SpecificAvroSerde<ChartChange>(new MockSchemaRegistryClient()))
+        .inMemory()
+        .disableLogging()
+        .build()
+        .get();
+    rankings.init(context, rankings);
+
+    transformer = new ChartChangeTransformer(CHART, rankings.name());
+    transformer.init(context);
+  }
+
+  @After
+  public void closeStore() {
+    rankings.close();
+  }
+
+  @Test
+  public void shouldOnlyForwardChangedRankings() {
+    final TopKSongs chart = new TopKSongs(2);
+    chart.add(1L, 5L);
+    assertThat(transformer.transform(KEY, chart),
+               equalTo(change(Collections.singletonList(1L), Collections.emptyList(), true)));
+
+    chart.add(2L, 4L);
+    assertThat(transformer.transform(KEY, chart),
+               equalTo(change(Arrays.asList(1L, 2L), Collections.singletonList(1L), true)));
+
+    // only the play counts change
+    chart.add(1L, 6L);
+    assertThat(transformer.transform(KEY, chart), nullValue());
+
+    chart.add(2L, 7L);
+    assertThat(transformer.transform(KEY, chart),
+               equalTo(change(Arrays.asList(2L, 1L), Arrays.asList(1L, 2L), true)));
+  }
+
+  @Test
+  public void shouldForwardRankingsOfIncompleteCharts() {
+    final TopKSongs chart = new TopKSongs(2);
+    chart.add(1L, 5L);
+    chart.add(2L, 4L);
+    transformer.transform(KEY, chart);
+
+    // the third song does not fit into the chart and is dropped
+    chart.add(3L, 3L);
+    assertThat(transformer.transform(KEY, chart), nullValue());
+
+    // once the second song is retracted, the chart does not know that the third one follows
+    chart.remove(2L, 4L);
+    assertThat(transformer.transform(KEY, chart),
+               equalTo(change(Collections.singletonList(1L), Arrays.asList(1L, 2L), false)));
+
+    chart.remove(1L, 5L);
+    assertThat(transformer.transform(KEY, chart),
+               equalTo(change(Collections.emptyList(), Collections.singletonList(1L), false)));
+
+    chart.add(4L, 6L);
+    assertThat(transformer.transform(KEY, chart),
+               equalTo(change(Collections.singletonList(4L), Collections.emptyList(), false)));
+
+    chart.add(2L, 5L);
+    assertThat(transformer.transform(KEY, chart),
+               equalTo(change(Arrays.asList(4L, 2L), Collections.singletonList(4L), true)));
+  }
+
+  @Test
+  public void shouldForwardChangeOfCompletenessAlone() {
+    final TopKSongs chart = new TopKSongs(2);
+    chart.add(1L, 5L);
+    assertThat(transformer.transform(KEY, chart),
+               equalTo(change(Collections.singletonList(1L), Collections.emptyList(), true)));
+
+    // a merged chart becomes incomplete along with any of its partial charts
+    final TopKSongs incompletePartial = new TopKSongs(2);
+    incompletePartial.setTruncated(true);
+    chart.addAll(incompletePartial);
+    assertThat(transformer.transform(KEY, chart),
+               equalTo(change(Collections.singletonList(1L), Collections.singletonList(1L), false)));
+  }
+
+  private static KeyValue<String, ChartChange> change(final List<Long> ranking,
+                                                      final List<Long> previous,
+                                                      final boolean complete) {
+    return KeyValue.pair(KEY, new ChartChange(CHART, KEY, ranking, previous, complete));
+  }
+
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries.kafkamusic;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import io.confluent.examples.streams.interactivequeries.AvroProvider;
+import io.confluent.examples.streams.interactivequeries.SmileProvider;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ChartResponseCacheTest {
+
+  private final ChartResponseCache cache = new ChartResponseCache();
+  private final List<SongPlayCountBean> chart =
+      Collections.singletonList(new SongPlayCountBean("Dead Kennedys", "Fresh Fruit", "Holiday in Cambodia", 3L));
+
+  @Test
+  public void shouldServeCachedChartUntilFingerprintChanges() {
+    final ChartResponseCache.RenderedChart rendered = cache.put("store", "punk", 42L, chart);
+
+    assertThat(cache.get("store", "punk", 42L), sameInstance(rendered));
+    assertThat(cache.get("store", "punk", 43L), nullValue());
+    assertThat(cache.get("store", "rock", 42L), nullValue());
+    assertThat(rendered.etag(), equalTo(ChartResponseCache.etag(42L)));
+  }
+
+  @Test
+  public void shouldRenderJson() {
+    final Response response = ChartResponseCache.respond(cache.put("store", "punk", 42L, chart), null);
+
+    assertThat(response.getStatus(), equalTo(200));
+    assertThat(response.getEntityTag(), equalTo(ChartResponseCache.etag(42L)));
+    assertThat(new String((byte[]) response.getEntity(), StandardCharsets.UTF_8),
+               equalTo("[{\"artist\":\"Dead Kennedys\",\"album\":\"Fresh Fruit\","
+                       + "\"name\":\"Holiday in Cambodia\",\"plays\":3}]"));
+  }
+
+  @Test
+  public void shouldAnswerBinaryFormatsWithEtagOfTheirOwn() {
+    final ChartResponseCache.RenderedChart rendered = cache.put("store", "punk", 42L, chart);
+    final Response avro = ChartResponseCache.respond(rendered, null, AvroProvider.AVRO_BINARY_TYPE);
+    final Response smile = ChartResponseCache.respond(rendered, null, SmileProvider.SMILE_TYPE);
+
+    assertThat(avro.getStatus(), equalTo(200));
+    assertThat(avro.getMediaType(), equalTo(AvroProvider.AVRO_BINARY_TYPE));
+    assertThat(avro.getEntity(), equalTo(chart));
+    assertThat(avro.getEntityTag().equals(rendered.etag()), equalTo(false));
+    assertThat(avro.getEntityTag().equals(smile.getEntityTag()), equalTo(false));
+
+    final String etag = "\"" + avro.getEntityTag().getValue() + "\"";
+    assertThat(ChartResponseCache.respond(rendered, etag, AvroProvider.AVRO_BINARY_TYPE).getStatus(), equalTo(304));
+    assertThat(ChartResponseCache.respond(rendered, etag, SmileProvider.SMILE_TYPE).getStatus(), equalTo(200));
+    assertThat(ChartResponseCache.respond(rendered, etag, MediaType.APPLICATION_JSON_TYPE).getStatus(),
+               equalTo(200));
+  }
+
+  @Test
+  public void shouldAnswerMatchingIfNoneMatchWithNotModified() {
+    final ChartResponseCache.RenderedChart rendered = cache.put("store", "punk", 42L, chart);
+    final String etag = "\"" + rendered.etag().getValue() + "\"";
+
+    assertThat(ChartResponseCache.respond(rendered, etag).getStatus(), equalTo(304));
+    assertThat(ChartResponseCache.respond(rendered, "\"other\", " + etag).getStatus(), equalTo(304));
+    assertThat(ChartResponseCache.respond(rendered, "W/" + etag).getStatus(), equalTo(304));
+    assertThat(ChartResponseCache.respond(rendered, "*").getStatus(), equalTo(304));
+    assertThat(ChartResponseCache.respond(rendered, "\"other\"").getStatus(), equalTo(200));
+  }
+
+  @Test
+  public void shouldDeriveFingerprintOfUncachedChartFromContent() {
+    final EntityTag etag = cache.render(chart).etag();
+
+    assertThat(cache.render(chart).etag(), equalTo(etag));
+    assertThat(cache.render(Collections.singletonList(
+        new SongPlayCountBean("Dead Kennedys", "Fresh Fruit", "Holiday in Cambodia", 4L))).etag().equals(etag),
+               equalTo(false));
+  }
+
+}
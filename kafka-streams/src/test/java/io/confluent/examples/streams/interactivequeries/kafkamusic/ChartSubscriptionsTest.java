@@ -0,0 +1,193 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries.kafkamusic;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.ServiceUnavailableException;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ChartSubscriptionsTest {
+
+  private final Map<String, ChartSubscriptions.ChartEvent> latest = new ConcurrentHashMap<>();
+  private final List<String> released = Collections.synchronizedList(new ArrayList<>());
+  private final ChartSubscriptions subscriptions = new ChartSubscriptions(new ChartSubscriptions.ChartSource() {
+    @Override
+    public CompletableFuture<ChartSubscriptions.ChartEvent> latest(final String store, final String key) {
+      return CompletableFuture.completedFuture(latest.get(key));
+    }
+
+    @Override
+    public void release(final String store, final String key) {
+      released.add(key);
+    }
+  }, 1000L, 60000L, 3, 2);
+
+  @After
+  public void close() {
+    subscriptions.close();
+  }
+
+  @Test
+  public void shouldOnlySendLatestVersionPerPoll() throws Exception {
+    final RecordingSink sink = new RecordingSink();
+    subscriptions.subscribe("store", "punk", null, sink);
+
+    latest.put("punk", event("1"));
+    latest.put("punk", event("2"));
+    subscriptions.poll();
+    sink.awaitEvents(1);
+    // unchanged since the last poll
+    subscriptions.poll();
+
+    latest.put("punk", event("3"));
+    subscriptions.poll();
+    sink.awaitEvents(2);
+    assertThat(sink.ids(), equalTo(Arrays.asList("2", "3")));
+  }
+
+  @Test
+  public void shouldSkipVersionClientAlreadyHas() throws Exception {
+    latest.put("punk", event("1"));
+    final RecordingSink first = new RecordingSink();
+    subscriptions.subscribe("store", "punk", null, first);
+    subscriptions.poll();
+    first.awaitEvents(1);
+
+    // a late subscriber gets the current version right away, unless it has it already
+    final RecordingSink second = new RecordingSink();
+    subscriptions.subscribe("store", "punk", null, second);
+    second.awaitEvents(1);
+    final RecordingSink reconnected = new RecordingSink();
+    subscriptions.subscribe("store", "punk", "1", reconnected);
+
+    latest.put("punk", event("2"));
+    subscriptions.poll();
+    reconnected.awaitEvents(1);
+    assertThat(reconnected.ids(), equalTo(Collections.singletonList("2")));
+  }
+
+  @Test
+  public void shouldNotBeHeldUpBySlowSubscriber() throws Exception {
+    final CountDownLatch unblock = new CountDownLatch(1);
+    final RecordingSink slow = new RecordingSink() {
+      @Override
+      public void send(final ChartSubscriptions.ChartEvent event) throws IOException {
+        try {
+          unblock.await();
+        } catch (final InterruptedException e) {
+          throw new IOException(e);
+        }
+        super.send(event);
+      }
+    };
+    final RecordingSink fast = new RecordingSink();
+    subscriptions.subscribe("store", "punk", null, slow);
+    subscriptions.subscribe("store", "punk", null, fast);
+
+    for (int version = 1; version <= 5; version++) {
+      latest.put("punk", event(String.valueOf(version)));
+      subscriptions.poll();
+      fast.awaitEvents(version);
+    }
+
+    // the slow subscriber skips the versions that were replaced while it was busy
+    unblock.countDown();
+    slow.awaitEvents(2);
+    assertThat(slow.ids(), equalTo(Arrays.asList("1", "5")));
+  }
+
+  @Test
+  public void shouldReleaseChartWithoutSubscribers() throws Exception {
+    final RecordingSink sink = new RecordingSink();
+    subscriptions.subscribe("store", "punk", null, sink);
+    subscriptions.poll();
+    assertThat(released.isEmpty(), equalTo(true));
+
+    sink.close();
+    subscriptions.poll();
+    assertThat(released, equalTo(Collections.singletonList("punk")));
+    assertThat(subscriptions.subscribers(), equalTo(0));
+  }
+
+  @Test(expected = ServiceUnavailableException.class)
+  public void shouldRejectSubscribersBeyondLimit() {
+    subscriptions.subscribe("store", "punk", null, new RecordingSink());
+    subscriptions.subscribe("store", "rock", null, new RecordingSink());
+    subscriptions.subscribe("store", "pop", null, new RecordingSink());
+    subscriptions.subscribe("store", "jazz", null, new RecordingSink());
+  }
+
+  private static ChartSubscriptions.ChartEvent event(final String id) {
+    return new ChartSubscriptions.ChartEvent(id, "[]");
+  }
+
+  private static class RecordingSink implements ChartSubscriptions.EventSink {
+    private final List<String> ids = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean closed;
+
+    @Override
+    public void send(final ChartSubscriptions.ChartEvent event) throws IOException {
+      synchronized (ids) {
+        ids.add(event.id());
+        ids.notifyAll();
+      }
+    }
+
+    @Override
+    public void keepAlive() {
+    }
+
+    @Override
+    public boolean isClosed() {
+      return closed;
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+
+    List<String> ids() {
+      synchronized (ids) {
+        return new ArrayList<>(ids);
+      }
+    }
+
+    void awaitEvents(final int count) throws InterruptedException {
+      final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+      synchronized (ids) {
+        while (ids.size() < count && System.currentTimeMillis() < deadline) {
+          ids.wait(100);
+        }
+      }
+      assertThat(ids().size() >= count, equalTo(true));
+    }
+  }
+
+}
@@ -17,11 +17,15 @@
 
 package io.confluent.examples.streams.interactivequeries.kafkamusic;
 
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.common.serialization.LongSerializer;
 import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.common.serialization.StringDeserializer;
 import org.apache.kafka.streams.KafkaStreams;
 import org.apache.kafka.streams.state.HostInfo;
 import org.apache.kafka.streams.state.QueryableStoreTypes;
@@ -30,12 +34,13 @@ import org.apache.kafka.streams.state.StreamsMetadata;
 import org.apache.kafka.test.TestUtils;
 import org.junit.After;
 import org.junit.Before;
-import org.junit.BeforeClass;
-import org.junit.ClassRule;
+import org.junit.Rule;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -49,9 +54,12 @@ import javax.ws.rs.client.Invocation;
 import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.MediaType;
 
+import io.confluent.examples.streams.avro.ChartChange;
 import io.confluent.examples.streams.avro.PlayEvent;
 import io.confluent.examples.streams.avro.Song;
+import io.confluent.examples.streams.interactivequeries.PartitionRoutingTable;
 import io.confluent.examples.streams.kafka.EmbeddedSingleNodeKafkaCluster;
+import io.confluent.examples.streams.utils.SpecificAvroDeserializer;
 import io.confluent.examples.streams.utils.SpecificAvroSerializer;
 import io.confluent.kafka.schemaregistry.client.CachedSchemaRegistryClient;
 
@@ -65,57 +73,101 @@ import static org.hamcrest.MatcherAssert.assertThat;
  */
 public class KafkaMusicExampleTest {
 
-  @ClassRule
-  public static final EmbeddedSingleNodeKafkaCluster CLUSTER = new EmbeddedSingleNodeKafkaCluster();
+  // Every test runs the application with different options, which result in different topologies
+  // and state stores, so every test gets a cluster of its own.
+  @Rule
+  public final EmbeddedSingleNodeKafkaCluster cluster = new EmbeddedSingleNodeKafkaCluster();
   private static final int MAX_WAIT_MS = 30000;
   private KafkaStreams streams;
   private MusicPlaysRestService restProxy;
   private int appServerPort;
 
-  @BeforeClass
-  public static void createTopics() {
-    CLUSTER.createTopic(KafkaMusicExample.PLAY_EVENTS);
-    CLUSTER.createTopic(KafkaMusicExample.SONG_FEED);
+  @Before
+  public void createTopics() {
+    cluster.createTopic(KafkaMusicExample.PLAY_EVENTS);
+    cluster.createTopic(KafkaMusicExample.SONG_FEED);
+    cluster.createTopic(KafkaMusicExample.CHART_CHANGES);
     // these topics initialized just to avoid some rebalances.
     // they would normally be created by KafkaStreams.
-    CLUSTER.createTopic("kafka-music-charts-song-play-count-changelog");
-    CLUSTER.createTopic("kafka-music-charts-song-play-count-repartition");
-    CLUSTER.createTopic("kafka-music-charts-top-five-songs-by-genre-changelog");
-    CLUSTER.createTopic("kafka-music-charts-top-five-songs-by-genre-repartition");
-    CLUSTER.createTopic("kafka-music-charts-top-five-songs-changelog");
-    CLUSTER.createTopic("kafka-music-charts-top-five-songs-repartition");
-    CLUSTER.createTopic("kafka-music-charts-KSTREAM-MAP-0000000004-repartition");
+    cluster.createTopic("kafka-music-charts-song-play-count-changelog");
+    cluster.createTopic("kafka-music-charts-song-play-count-repartition");
+    cluster.createTopic("kafka-music-charts-top-five-songs-by-genre-changelog");
+    cluster.createTopic("kafka-music-charts-top-five-songs-by-genre-repartition");
+    cluster.createTopic("kafka-music-charts-top-five-songs-changelog");
+    cluster.createTopic("kafka-music-charts-top-five-songs-repartition");
+    cluster.createTopic("kafka-music-charts-KSTREAM-MAP-0000000004-repartition");
   }
 
-  @Before
-  public void createStreams() throws Exception {
+  private void createStreams(final ChartOptions chartOptions) throws Exception {
     appServerPort = randomFreeLocalPort();
     streams =
-        KafkaMusicExample.createChartsStreams(CLUSTER.bootstrapServers(),
-                                              CLUSTER.schemaRegistryUrl(),
+        KafkaMusicExample.createChartsStreams(cluster.bootstrapServers(),
+                                              cluster.schemaRegistryUrl(),
                                               appServerPort,
-                                              TestUtils.tempDirectory().getPath());
-    restProxy = KafkaMusicExample.startRestProxy(streams, new HostInfo("localhost", appServerPort));
+                                              TestUtils.tempDirectory().getPath(),
+                                              chartOptions);
+    final PartitionRoutingTable routingTable = new PartitionRoutingTable(streams);
+    streams.setStateListener(routingTable);
+    restProxy = KafkaMusicExample.startRestProxy(streams,
+                                                 new HostInfo("localhost", appServerPort),
+                                                 routingTable,
+                                                 cluster.bootstrapServers(),
+                                                 cluster.schemaRegistryUrl(),
+                                                 false,
+                                                 chartOptions);
   }
 
   @After
   public void shutdown() throws Exception {
-    restProxy.stop();
-    streams.close();
+    if (restProxy != null) {
+      restProxy.stop();
+    }
+    if (streams != null) {
+      streams.close();
+    }
   }
 
   @Test
   public void shouldCreateChartsAndAccessThemViaInteractiveQueries() throws Exception {
+    shouldCreateCharts(withDailyCharts(new ChartOptions()));
+  }
+
+  @Test
+  public void shouldCreateChartsFromPlayCountsBySongId() throws Exception {
+    shouldCreateCharts(withDailyCharts(new ChartOptions().playCountKey(ChartOptions.PlayCountKey.SONG_ID)));
+  }
+
+  @Test
+  public void shouldCreateChartsWithGlobalSongTable() throws Exception {
+    shouldCreateCharts(withDailyCharts(new ChartOptions().songTable(ChartOptions.SongTable.GLOBAL)));
+  }
+
+  @Test
+  public void shouldCreateChartsFromShardedGenreCharts() throws Exception {
+    shouldCreateCharts(withDailyCharts(new ChartOptions().genreShards(3)));
+  }
+
+  private static ChartOptions withDailyCharts(final ChartOptions chartOptions) {
+    // the windowed charts are opt-in
+    return chartOptions.chartWindows(EnumSet.of(ChartOptions.ChartWindow.DAILY));
+  }
+
+  /**
+   * Whatever the options, the charts must be the same.
+   */
+  private void shouldCreateCharts(final ChartOptions chartOptions) throws Exception {
+    createStreams(chartOptions);
+
     final Properties props = new Properties();
-    props.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, CLUSTER.bootstrapServers());
+    props.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, cluster.bootstrapServers());
 
     final CachedSchemaRegistryClient
         schemaRegistry =
-        new CachedSchemaRegistryClient(CLUSTER.schemaRegistryUrl(), 100);
+        new CachedSchemaRegistryClient(cluster.schemaRegistryUrl(), 100);
 
     final Map<String, String>
         serdeProps =
-        Collections.singletonMap("schema.registry.url", CLUSTER.schemaRegistryUrl());
+        Collections.singletonMap("schema.registry.url", cluster.schemaRegistryUrl());
 
     final SpecificAvroSerializer<PlayEvent>
         playEventSerialzier = new SpecificAvroSerializer<>(schemaRegistry, serdeProps);
@@ -205,20 +257,22 @@ public class KafkaMusicExampleTest {
     songProducer.flush();
     songProducer.close();
 
-    // create the play events we can use for charting
-    sendPlayEvents(6, songs.get(0), playEventProducer);
-    sendPlayEvents(5, songs.get(1), playEventProducer);
-    sendPlayEvents(4, songs.get(2), playEventProducer);
-    sendPlayEvents(3, songs.get(3), playEventProducer);
-    sendPlayEvents(2, songs.get(4), playEventProducer);
-    sendPlayEvents(1, songs.get(5), playEventProducer);
-
-    sendPlayEvents(6, songs.get(6), playEventProducer);
-    sendPlayEvents(5, songs.get(7), playEventProducer);
-    sendPlayEvents(4, songs.get(8), playEventProducer);
-    sendPlayEvents(3, songs.get(9), playEventProducer);
-    sendPlayEvents(2, songs.get(10), playEventProducer);
-    sendPlayEvents(1, songs.get(11), playEventProducer);
+    // create the play events we can use for charting, all played at the same time so that they
+    // fall into the same windows
+    final long playTime = System.currentTimeMillis();
+    sendPlayEvents(6, songs.get(0), playTime, playEventProducer);
+    sendPlayEvents(5, songs.get(1), playTime, playEventProducer);
+    sendPlayEvents(4, songs.get(2), playTime, playEventProducer);
+    sendPlayEvents(3, songs.get(3), playTime, playEventProducer);
+    sendPlayEvents(2, songs.get(4), playTime, playEventProducer);
+    sendPlayEvents(1, songs.get(5), playTime, playEventProducer);
+
+    sendPlayEvents(6, songs.get(6), playTime, playEventProducer);
+    sendPlayEvents(5, songs.get(7), playTime, playEventProducer);
+    sendPlayEvents(4, songs.get(8), playTime, playEventProducer);
+    sendPlayEvents(3, songs.get(9), playTime, playEventProducer);
+    sendPlayEvents(2, songs.get(10), playTime, playEventProducer);
+    sendPlayEvents(1, songs.get(11), playTime, playEventProducer);
 
     playEventProducer.close();
 
@@ -261,16 +315,30 @@ public class KafkaMusicExampleTest {
                 client,
                 IntStream.range(6, 11).mapToObj(intFunction).collect(Collectors.toList()));
 
+    final List<SongPlayCountBean> expectedTopFive = Arrays.asList(songCountPlayBean(songs.get(0), 6L),
+                                                                  songCountPlayBean(songs.get(6), 6L),
+                                                                  songCountPlayBean(songs.get(1), 5L),
+                                                                  songCountPlayBean(songs.get(7), 5L),
+                                                                  songCountPlayBean(songs.get(2), 4L));
     verifyChart(baseUrl + "/charts/top-five",
                 client,
-                Arrays.asList(songCountPlayBean(songs.get(0), 6L),
-                              songCountPlayBean(songs.get(6), 6L),
-                              songCountPlayBean(songs.get(1), 5L),
-                              songCountPlayBean(songs.get(7), 5L),
-                              songCountPlayBean(songs.get(2), 4L)
-                              )
+                expectedTopFive
                 );
 
+    // All songs were played on the day of the play time, which need not be today anymore
+    verifyWindowedChart(baseUrl + "/charts/top-five/daily", playTime, client, expectedTopFive);
+    verifyWindowedChart(baseUrl + "/charts/genre/punk/daily",
+                        playTime,
+                        client,
+                        IntStream.range(0, 5).mapToObj(intFunction).collect(Collectors.toList()));
+
+    // The last change of the top five is its final ranking
+    verifyChartChanges(KafkaMusicExample.TOP_FIVE_SONGS_STORE,
+                       KafkaMusicExample.TOP_FIVE_KEY,
+                       Arrays.asList(1L, 7L, 2L, 8L, 3L),
+                       schemaRegistry,
+                       serdeProps);
+
   }
 
   private SongPlayCountBean songCountPlayBean(final Song song, final long plays) {
@@ -310,11 +378,89 @@ public class KafkaMusicExampleTest {
     assertThat(chart, is(expectedChart));
   }
 
-  private void sendPlayEvents(final int count, final Song song,
+  private void verifyWindowedChart(final String url,
+                                   final long playTime,
+                                   final Client client,
+                                   final List<SongPlayCountBean> expectedChart)
+      throws InterruptedException {
+    // only the window that contains the play time
+    final Invocation.Builder windowedChartRequest = client.target(url)
+        .queryParam("from", playTime)
+        .queryParam("to", playTime)
+        .request(MediaType.APPLICATION_JSON_TYPE);
+
+    // Wait until we have 5 items available in the chart of the window
+    TestUtils.waitForCondition(() -> {
+      try {
+        final List<WindowedChartBean>
+            charts =
+            windowedChartRequest.get(new GenericType<List<WindowedChartBean>>() {
+            });
+        return charts.size() == 1 && charts.get(0).getSongs().size() == 5;
+      } catch (Exception e) {
+        return false;
+      }
+
+    }, MAX_WAIT_MS, "windowed chart should have 5 items");
+
+    final WindowedChartBean
+        chart =
+        windowedChartRequest.get(new GenericType<List<WindowedChartBean>>() {
+        }).get(0);
+
+    assertThat(chart.getStart(), is(ChartOptions.ChartWindow.DAILY.windowStart(playTime)));
+    assertThat(chart.getEnd() - chart.getStart(), is(ChartOptions.ChartWindow.DAILY.sizeMs()));
+    assertThat(chart.getSongs(), is(expectedChart));
+  }
+
+  private void verifyChartChanges(final String chart,
+                                  final String key,
+                                  final List<Long> expectedRanking,
+                                  final CachedSchemaRegistryClient schemaRegistry,
+                                  final Map<String, String> serdeProps)
+      throws InterruptedException {
+    final Properties consumerConfig = new Properties();
+    consumerConfig.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, cluster.bootstrapServers());
+    consumerConfig.put(ConsumerConfig.GROUP_ID_CONFIG, "kafka-music-example-test-chart-changes-consumer");
+    consumerConfig.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+
+    final SpecificAvroDeserializer<ChartChange>
+        chartChangeDeserializer = new SpecificAvroDeserializer<>(schemaRegistry, serdeProps);
+    chartChangeDeserializer.configure(serdeProps, false);
+
+    final List<ChartChange> changes = new ArrayList<>();
+    try (final KafkaConsumer<String, ChartChange> consumer =
+             new KafkaConsumer<>(consumerConfig, new StringDeserializer(), chartChangeDeserializer)) {
+      consumer.subscribe(Collections.singletonList(KafkaMusicExample.CHART_CHANGES));
+
+      // Wait until the ranking of the chart has settled
+      TestUtils.waitForCondition(() -> {
+        for (final ConsumerRecord<String, ChartChange> record : consumer.poll(100)) {
+          if (record.key().equals(key) && record.value().getChart().equals(chart)) {
+            changes.add(record.value());
+          }
+        }
+        return !changes.isEmpty() && changes.get(changes.size() - 1).getRanking().equals(expectedRanking);
+      }, MAX_WAIT_MS, "chart changes should end with the expected ranking");
+    }
+
+    // every change refers to the ranking before it, and differs from it in its songs or completeness
+    for (int i = 0; i < changes.size(); i++) {
+      final List<Long> previous = i == 0 ? Collections.emptyList() : changes.get(i - 1).getRanking();
+      final boolean previousComplete = i == 0 || changes.get(i - 1).getComplete();
+      assertThat(changes.get(i).getPreviousRanking(), is(previous));
+      assertThat(changes.get(i).getRanking().equals(previous)
+                 && changes.get(i).getComplete() == previousComplete, is(false));
+    }
+  }
+
+  private void sendPlayEvents(final int count, final Song song, final long playTime,
                               final KafkaProducer<String, PlayEvent> producer) {
     for (int i = 0; i < count; i++) {
       producer.send(new ProducerRecord<>(
           KafkaMusicExample.PLAY_EVENTS,
+          null,
+          playTime,
           "UK",
           new PlayEvent(song.getId(), 60000L)));
     }
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries.kafkamusic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.WebApplicationException;
+
+import io.confluent.examples.streams.avro.ChartQuery;
+import io.confluent.examples.streams.avro.SongsQuery;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class PeerQueryChannelTest {
+
+  private final CompletableFuture<List<SongPlayCountBean>> slowChart = new CompletableFuture<>();
+  private PeerQueryServer server;
+  private PeerQueryClient client;
+
+  @Before
+  public void startServer() throws IOException {
+    server = new PeerQueryServer(0, this::answer);
+    server.start();
+    client = new PeerQueryClient(1, 1000);
+  }
+
+  @After
+  public void stopServer() throws InterruptedException {
+    client.close();
+    server.close();
+  }
+
+  private CompletableFuture<?> answer(final Object query) {
+    if (query instanceof ChartQuery) {
+      final String key = ((ChartQuery) query).getKey();
+      if (key.equals("slow")) {
+        return slowChart.thenApply(PeerQueryServer::toChartResult);
+      }
+      if (key.equals("missing")) {
+        throw new NotFoundException("No chart for " + key);
+      }
+      return CompletableFuture.completedFuture(PeerQueryServer.toChartResult(Collections.singletonList(
+          new SongPlayCountBean("Jello Biafra", "Fresh Fruit", key, 42L))));
+    }
+    final Map<Long, SongBean> songs = new HashMap<>();
+    for (final Long songId : ((SongsQuery) query).getSongIds()) {
+      songs.put(songId, new SongBean("artist-" + songId, "album-" + songId, "song-" + songId));
+    }
+    return CompletableFuture.completedFuture(PeerQueryServer.toSongsResult(songs));
+  }
+
+  @Test
+  public void shouldQueryChartsAndSongs() throws Exception {
+    final List<SongPlayCountBean> chart =
+        client.chart("localhost", server.port(), "store", "punk").get(10, TimeUnit.SECONDS);
+    assertThat(chart.size(), equalTo(1));
+    assertThat(chart.get(0).getName(), equalTo("punk"));
+    assertThat(chart.get(0).getPlays(), equalTo(42L));
+
+    final Map<Long, SongBean> songs =
+        client.songs("localhost", server.port(), Arrays.asList(1L, 2L)).get(10, TimeUnit.SECONDS);
+    assertThat(songs.size(), equalTo(2));
+    assertThat(songs.get(2L), equalTo(new SongBean("artist-2", "album-2", "song-2")));
+  }
+
+  @Test
+  public void shouldPipelineQueriesOnOneConnection() throws Exception {
+    // the first query is answered last, but must not hold up the ones behind it
+    final CompletableFuture<List<SongPlayCountBean>> slow = client.chart("localhost", server.port(), "store", "slow");
+    final List<CompletableFuture<List<SongPlayCountBean>>> fast = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      fast.add(client.chart("localhost", server.port(), "store", "genre-" + i));
+    }
+    for (int i = 0; i < fast.size(); i++) {
+      assertThat(fast.get(i).get(10, TimeUnit.SECONDS).get(0).getName(), equalTo("genre-" + i));
+    }
+    assertThat(slow.isDone(), equalTo(false));
+
+    slowChart.complete(Collections.singletonList(new SongPlayCountBean("a", "b", "slow", 1L)));
+    assertThat(slow.get(10, TimeUnit.SECONDS).get(0).getName(), equalTo("slow"));
+  }
+
+  @Test
+  public void shouldPropagateErrorStatus() throws Exception {
+    try {
+      client.chart("localhost", server.port(), "store", "missing").get(10, TimeUnit.SECONDS);
+      fail("Should have failed");
+    } catch (final ExecutionException e) {
+      assertThat(e.getCause(), instanceOf(WebApplicationException.class));
+      assertThat(((WebApplicationException) e.getCause()).getResponse().getStatus(), equalTo(404));
+    }
+  }
+
+  @Test
+  public void shouldFailPendingQueriesWhenConnectionIsClosed() throws Exception {
+    final CompletableFuture<List<SongPlayCountBean>> slow = client.chart("localhost", server.port(), "store", "slow");
+    server.close();
+    try {
+      slow.get(10, TimeUnit.SECONDS);
+      fail("Should have failed");
+    } catch (final ExecutionException e) {
+      assertThat(e.getCause(), instanceOf(IOException.class));
+    }
+  }
+
+  @Test
+  public void shouldConnectWithoutBlockingTheCaller() throws Exception {
+    // connecting to an address that is not routable only fails once the connect timeout elapses
+    final long start = System.nanoTime();
+    final CompletableFuture<List<SongPlayCountBean>> unreachable = client.chart("10.255.255.1", 9, "store", "punk");
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 500, equalTo(true));
+    try {
+      unreachable.get(10, TimeUnit.SECONDS);
+      fail("Should have failed");
+    } catch (final ExecutionException e) {
+      assertThat(e.getCause(), instanceOf(IOException.class));
+    }
+  }
+
+}
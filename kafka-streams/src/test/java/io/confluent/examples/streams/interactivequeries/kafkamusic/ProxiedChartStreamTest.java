@@ -0,0 +1,71 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries.kafkamusic;
+
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.media.sse.SseFeature;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+
+import io.confluent.examples.streams.interactivequeries.HostStoreInfo;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ProxiedChartStreamTest {
+
+  @Test
+  public void shouldOpenTheStreamWithoutBlockingTheCaller() throws Exception {
+    final Client client = ClientBuilder.newBuilder()
+        .register(SseFeature.class)
+        .property(ClientProperties.CONNECT_TIMEOUT, 1000)
+        .build();
+    final CountDownLatch openerStarted = new CountDownLatch(1);
+    final CountDownLatch releaseOpener = new CountDownLatch(1);
+    final ExecutorService opener = Executors.newSingleThreadExecutor();
+    try {
+      // holds the stream in the process of being opened until the latch is released
+      final ProxiedChartStream stream = new ProxiedChartStream(
+          client, new HostStoreInfo("localhost", 9, Collections.emptySet()), "kafka-music/charts/top-five/stream",
+          task -> opener.execute(() -> {
+            openerStarted.countDown();
+            try {
+              releaseOpener.await();
+            } catch (final InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            task.run();
+          }));
+      assertThat(openerStarted.await(10, TimeUnit.SECONDS), equalTo(true));
+      assertThat(stream.latest(), nullValue());
+      // closing a stream that is not open yet must not block either
+      stream.close();
+      releaseOpener.countDown();
+    } finally {
+      opener.shutdown();
+      assertThat(opener.awaitTermination(10, TimeUnit.SECONDS), equalTo(true));
+      client.close();
+    }
+  }
+
+}
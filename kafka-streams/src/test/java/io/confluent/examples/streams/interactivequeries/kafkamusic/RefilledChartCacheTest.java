@@ -0,0 +1,43 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries.kafkamusic;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class RefilledChartCacheTest {
+
+  private final RefilledChartCache cache = new RefilledChartCache(1000L);
+
+  @Test
+  public void shouldServeRefilledChartUntilIncompleteChartChanges() {
+    final TopKSongs refilled = new TopKSongs(5);
+    cache.put("store", "punk", 42L, 0L, refilled);
+
+    assertThat(cache.get("store", "punk", 42L, 500L), sameInstance(refilled));
+    assertThat(cache.get("store", "punk", 43L, 500L), nullValue());
+    assertThat(cache.get("store", "rock", 42L, 500L), nullValue());
+  }
+
+  @Test
+  public void shouldRefillChartAgainOnceMaxAgeHasPassed() {
+    cache.put("store", "punk", 42L, 0L, new TopKSongs(5));
+
+    assertThat(cache.get("store", "punk", 42L, 1000L), nullValue());
+  }
+
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries.kafkamusic;
+
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.avro.specific.SpecificRecord;
+import org.apache.kafka.common.serialization.LongSerializer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.confluent.examples.streams.avro.PlayEvent;
+import io.confluent.examples.streams.avro.Song;
+
+/**
+ * A plain harness that compares what the play counts of the {@link KafkaMusicExample} cost per
+ * play event depending on what they are keyed by and on how the songs table is distributed. It is
+ * not a test, and is run by hand, e.g.:
+ *
+ * <pre>
+ * {@code
+ * $ mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=io.confluent.examples.streams.interactivequeries.kafkamusic.RepartitionBytesBenchmark
+ * }
+ * </pre>
+ *
+ * For every play event, it serializes the records that the all-time play count topology writes to
+ * its internal repartition topics, and the key of the song-play-count store, just like the Avro
+ * serdes of the example do, and reports their sizes as well as the time it takes to serialize
+ * them. The schema registry is not involved: its serializers prefix every Avro record with a magic
+ * byte and a schema id, which are added to the sizes. The play counts are repartitioned into the
+ * charts alike in all variants, so that is left out.
+ *
+ * This does not measure the end-to-end throughput of the topologies, which depends on the brokers
+ * and the record caches, and needs a cluster to be measured.
+ */
+public class RepartitionBytesBenchmark {
+
+  // the magic byte and the schema id that the schema registry serializers write before the record
+  private static final int SCHEMA_REGISTRY_HEADER = 5;
+  private static final int ROUNDS = 1000000;
+
+  private static final LongSerializer LONG_SERIALIZER = new LongSerializer();
+  private static final SpecificDatumWriter<Song> SONG_WRITER = new SpecificDatumWriter<>(Song.class);
+  private static final SpecificDatumWriter<PlayEvent> PLAY_EVENT_WRITER = new SpecificDatumWriter<>(PlayEvent.class);
+
+  private static final ByteArrayOutputStream BUFFER = new ByteArrayOutputStream();
+  private static BinaryEncoder encoder;
+
+  /**
+   * What a play count topology writes for every play event.
+   */
+  private interface Topology {
+    /**
+     * Serialize the records written to the internal repartition topics for the given play.
+     * @return the number of bytes of the keys and values
+     */
+    int repartitionBytes(Song song, PlayEvent play) throws IOException;
+
+    /**
+     * Serialize the key of the given song in the song-play-count store.
+     * @return the number of bytes of the key
+     */
+    int storeKeyBytes(Song song) throws IOException;
+  }
+
+  public static void main(final String[] args) throws IOException {
+    final List<Song> songs = Arrays.asList(
+        new Song(1L, "Fresh Fruit For Rotting Vegetables", "Dead Kennedys", "Chemical Warfare", "Punk"),
+        new Song(6L, "The Audacity Of Hype", "Jello Biafra And The Guantanamo School Of Medicine", "Three Strikes",
+                 "Punk"),
+        new Song(7L, "Licensed to Ill", "The Beastie Boys", "Fight For Your Right", "Hip Hop"),
+        new Song(11L, "Curtain Call - The Hits", "Eminem", "Fack", "Hip Hop"));
+    final List<PlayEvent> plays = new ArrayList<>();
+    for (final Song song : songs) {
+      plays.add(new PlayEvent(song.getId(), 60000L));
+    }
+
+    System.out.printf("%d sample songs, %d rounds%n", songs.size(), ROUNDS);
+    measure("keyed by song (default)", new Topology() {
+      @Override
+      public int repartitionBytes(final Song song, final PlayEvent play) throws IOException {
+        // the play events re-keyed by song id to be joined with the songs, then the songs
+        // repartitioned by themselves to be counted
+        return LONG_SERIALIZER.serialize(null, play.getSongId()).length + avro(PLAY_EVENT_WRITER, play)
+               + avro(SONG_WRITER, song) + avro(SONG_WRITER, song);
+      }
+
+      @Override
+      public int storeKeyBytes(final Song song) throws IOException {
+        return avro(SONG_WRITER, song);
+      }
+    }, songs, plays);
+    measure("keyed by song id", new Topology() {
+      @Override
+      public int repartitionBytes(final Song song, final PlayEvent play) throws IOException {
+        // the play events repartitioned by song id to be counted
+        return LONG_SERIALIZER.serialize(null, play.getSongId()).length + avro(PLAY_EVENT_WRITER, play);
+      }
+
+      @Override
+      public int storeKeyBytes(final Song song) {
+        return LONG_SERIALIZER.serialize(null, song.getId()).length;
+      }
+    }, songs, plays);
+    measure("global song table", new Topology() {
+      @Override
+      public int repartitionBytes(final Song song, final PlayEvent play) throws IOException {
+        // the play events are joined with their songs in place, and only the songs are
+        // repartitioned by themselves to be counted
+        return avro(SONG_WRITER, song) + avro(SONG_WRITER, song);
+      }
+
+      @Override
+      public int storeKeyBytes(final Song song) throws IOException {
+        return avro(SONG_WRITER, song);
+      }
+    }, songs, plays);
+  }
+
+  private static void measure(final String name,
+                              final Topology topology,
+                              final List<Song> songs,
+                              final List<PlayEvent> plays) throws IOException {
+    long repartitionBytes = 0;
+    long storeKeyBytes = 0;
+    for (int i = 0; i < songs.size(); i++) {
+      repartitionBytes += topology.repartitionBytes(songs.get(i), plays.get(i));
+      storeKeyBytes += topology.storeKeyBytes(songs.get(i));
+    }
+
+    // the first half of the rounds warms up
+    long start = 0;
+    for (int round = 0; round < 2 * ROUNDS; round++) {
+      if (round == ROUNDS) {
+        start = System.nanoTime();
+      }
+      final int i = round % songs.size();
+      topology.repartitionBytes(songs.get(i), plays.get(i));
+    }
+    final long elapsed = System.nanoTime() - start;
+
+    System.out.printf("%-24s %6.1f B/play repartitioned %6.1f B/store key %8.1f ns/play to serialize%n",
+                      name,
+                      (double) repartitionBytes / songs.size(),
+                      (double) storeKeyBytes / songs.size(),
+                      (double) elapsed / ROUNDS);
+  }
+
+  private static <T extends SpecificRecord> int avro(final SpecificDatumWriter<T> writer,
+                                                     final T record) throws IOException {
+    BUFFER.reset();
+    encoder = EncoderFactory.get().binaryEncoder(BUFFER, encoder);
+    writer.write(record, encoder);
+    encoder.flush();
+    return SCHEMA_REGISTRY_HEADER + BUFFER.size();
+  }
+
+}
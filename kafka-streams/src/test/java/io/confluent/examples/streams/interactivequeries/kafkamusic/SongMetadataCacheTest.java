@@ -0,0 +1,107 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries.kafkamusic;
+
+import org.apache.kafka.common.serialization.Deserializer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Map;
+
+import io.confluent.examples.streams.avro.Song;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class SongMetadataCacheTest {
+
+  // the cache is not started, so it does not connect to this cluster
+  private final SongMetadataCache cache = new SongMetadataCache(10, "localhost:9092", new Deserializer<Song>() {
+    @Override
+    public void configure(final Map<String, ?> configs, final boolean isKey) {
+    }
+
+    @Override
+    public Song deserialize(final String topic, final byte[] data) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+    }
+  });
+
+  @After
+  public void closeCache() throws InterruptedException {
+    cache.close();
+  }
+
+  @Test
+  public void shouldNotOverwriteChangelogUpdates() {
+    cache.onSongChanged(1L, new Song(1L, "Bathers", "Wheezy Joe", "Knowing Me", "Jazz"));
+    cache.putIfAbsent(1L, new SongBean("Wheezy Joe", "Bathers", "Stale"), cache.version());
+    assertThat(cache.get(1L), equalTo(new SongBean("Wheezy Joe", "Bathers", "Knowing Me")));
+  }
+
+  @Test
+  public void shouldNotCacheSongsRemovedDuringLookup() {
+    final long version = cache.version();
+    // the song is removed while it is being looked up in the store
+    cache.onSongChanged(1L, null);
+    cache.putIfAbsent(1L, new SongBean("Wheezy Joe", "Bathers", "Knowing Me"), version);
+    assertThat(cache.get(1L), nullValue());
+
+    cache.putIfAbsent(2L, new SongBean("Wheezy Joe", "Bathers", "Hello"), cache.version());
+    assertThat(cache.get(2L), equalTo(new SongBean("Wheezy Joe", "Bathers", "Hello")));
+  }
+
+  @Test
+  public void shouldCacheSongsWhileOtherSongsChange() {
+    final long version = cache.version();
+    // e.g., while the changelog is being replayed
+    cache.onSongChanged(2L, new Song(2L, "Bathers", "Wheezy Joe", "Hello", "Jazz"));
+    cache.putIfAbsent(1L, new SongBean("Wheezy Joe", "Bathers", "Knowing Me"), version);
+    assertThat(cache.get(1L), equalTo(new SongBean("Wheezy Joe", "Bathers", "Knowing Me")));
+  }
+
+  @Test
+  public void shouldNotCacheSongsWhoseUpdatesMayHaveBeenEvictedDuringLookup() {
+    final long version = cache.version();
+    // more updates than the cache holds, one of which may have removed the song
+    for (long songId = 2L; songId <= 12L; songId++) {
+      cache.onSongChanged(songId, new Song(songId, "Bathers", "Wheezy Joe", "Song " + songId, "Jazz"));
+    }
+    cache.putIfAbsent(1L, new SongBean("Wheezy Joe", "Bathers", "Knowing Me"), version);
+    assertThat(cache.get(1L), nullValue());
+  }
+
+  @Test
+  public void shouldOnlyChangeVersionOfUpdatedSong() {
+    cache.putIfAbsent(1L, new SongBean("Wheezy Joe", "Bathers", "Knowing Me"), cache.version());
+    cache.onSongChanged(2L, new Song(2L, "Bathers", "Wheezy Joe", "Hello", "Jazz"));
+    final long version = cache.version(2L);
+    assertThat(cache.version(1L), equalTo(0L));
+
+    cache.onSongChanged(2L, new Song(2L, "Bathers", "Wheezy Joe", "Hello Again", "Jazz"));
+    assertThat(cache.version(1L), equalTo(0L));
+    assertThat(cache.version(2L) == version, equalTo(false));
+
+    // a removed song has a version of its own, too
+    cache.onSongChanged(2L, null);
+    assertThat(cache.get(2L), nullValue());
+    assertThat(cache.version(2L), equalTo(cache.version()));
+  }
+
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries.kafkamusic;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import io.confluent.examples.streams.avro.SongPlayCount;
+
+/**
+ * A plain timing harness that compares {@link TopKSongs} with the TopFiveSongs class it replaced,
+ * a copy of which is kept below as the baseline. It is not a test, and is run by hand, e.g.:
+ *
+ * <pre>
+ * {@code
+ * $ mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=io.confluent.examples.streams.interactivequeries.kafkamusic.TopKSongsBenchmark
+ * }
+ * </pre>
+ *
+ * The workload is the one of a chart aggregate: every update of a song's play count retracts the
+ * previous play count and adds the new one, and the chart is iterated, e.g., to be serialized. The
+ * updates are generated up front, with a skewed distribution of plays across the songs, so that
+ * only the aggregates are measured. The allocation per update is measured where the JVM supports
+ * it.
+ */
+public class TopKSongsBenchmark {
+
+  private static final int SONGS = 10000;
+  private static final int UPDATES = 1000000;
+  private static final int WARMUP_ROUNDS = 10;
+  private static final int MEASURED_ROUNDS = 10;
+
+  private static long blackhole;
+
+  public static void main(final String[] args) {
+    final SongPlayCount[] retracted = new SongPlayCount[UPDATES];
+    final SongPlayCount[] added = new SongPlayCount[UPDATES];
+    final Random random = new Random(42);
+    final long[] plays = new long[SONGS];
+    for (int i = 0; i < UPDATES; i++) {
+      // a few songs get most of the plays
+      final int song = (int) Math.min(SONGS - 1, Math.abs(random.nextGaussian()) * SONGS / 8);
+      retracted[i] = plays[song] == 0 ? null : new SongPlayCount((long) song, plays[song]);
+      plays[song]++;
+      added[i] = new SongPlayCount((long) song, plays[song]);
+    }
+
+    System.out.printf("%d updates of %d songs, %d rounds%n", UPDATES, SONGS, MEASURED_ROUNDS);
+    measure("TopFiveSongs (baseline)", () -> {
+      final TopFiveSongs chart = new TopFiveSongs();
+      for (int i = 0; i < UPDATES; i++) {
+        if (retracted[i] != null) {
+          chart.remove(retracted[i]);
+        }
+        chart.add(added[i]);
+        for (final SongPlayCount songPlayCount : chart) {
+          blackhole += songPlayCount.getSongId();
+        }
+      }
+    });
+    for (final int slack : new int[] {0, 20}) {
+      measure("TopKSongs, k=5, slack=" + slack, () -> {
+        final TopKSongs chart = new TopKSongs(5, slack);
+        for (int i = 0; i < UPDATES; i++) {
+          if (retracted[i] != null) {
+            chart.remove(retracted[i].getSongId(), retracted[i].getPlays());
+          }
+          chart.add(added[i].getSongId(), added[i].getPlays());
+          chart.forEach((songId, songPlays) -> blackhole += songId);
+        }
+      });
+    }
+    measure("TopKSongs, k=50, slack=20", () -> {
+      final TopKSongs chart = new TopKSongs(50, 20);
+      for (int i = 0; i < UPDATES; i++) {
+        if (retracted[i] != null) {
+          chart.remove(retracted[i].getSongId(), retracted[i].getPlays());
+        }
+        chart.add(added[i].getSongId(), added[i].getPlays());
+        chart.forEach((songId, songPlays) -> blackhole += songId);
+      }
+    });
+    System.out.println("(checksum " + blackhole + ")");
+  }
+
+  private static void measure(final String name, final Runnable round) {
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      round.run();
+    }
+    final long allocatedBefore = allocatedBytes();
+    final long start = System.nanoTime();
+    for (int i = 0; i < MEASURED_ROUNDS; i++) {
+      round.run();
+    }
+    final long elapsed = System.nanoTime() - start;
+    final long allocated = allocatedBytes() - allocatedBefore;
+
+    final long updates = (long) UPDATES * MEASURED_ROUNDS;
+    System.out.printf("%-28s %8.1f ns/update %10s%n",
+                      name,
+                      (double) elapsed / updates,
+                      allocated < 0 ? "" : String.format("%8.1f B/update", (double) allocated / updates));
+  }
+
+  // the bytes allocated by the current thread so far, or a negative value if the JVM cannot tell
+  private static long allocatedBytes() {
+    final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  /**
+   * The top five aggregate that {@link TopKSongs} replaced, as it was.
+   */
+  private static class TopFiveSongs implements Iterable<SongPlayCount> {
+    private final Map<Long, SongPlayCount> currentSongs = new HashMap<>();
+    private final TreeSet<SongPlayCount> topFive = new TreeSet<>((o1, o2) -> {
+      final int result = o2.getPlays().compareTo(o1.getPlays());
+      if (result != 0) {
+        return result;
+      }
+      return o1.getSongId().compareTo(o2.getSongId());
+    });
+
+    public void add(final SongPlayCount songPlayCount) {
+      if(currentSongs.containsKey(songPlayCount.getSongId())) {
+        topFive.remove(currentSongs.remove(songPlayCount.getSongId()));
+      }
+      topFive.add(songPlayCount);
+      currentSongs.put(songPlayCount.getSongId(), songPlayCount);
+      if (topFive.size() > 5) {
+        final SongPlayCount last = topFive.last();
+        currentSongs.remove(last.getSongId());
+        topFive.remove(last);
+      }
+    }
+
+    void remove(final SongPlayCount value) {
+      topFive.remove(value);
+      currentSongs.remove(value.getSongId());
+    }
+
+    @Override
+    public Iterator<SongPlayCount> iterator() {
+      return topFive.iterator();
+    }
+  }
+
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries.kafkamusic;
+
+import org.apache.kafka.common.errors.SerializationException;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class TopKSongsSerdeTest {
+
+  private final TopKSongsSerde serde = new TopKSongsSerde(5);
+
+  @Test
+  public void shouldSerializeDeserialize() {
+    final TopKSongs topSongs = new TopKSongs(5);
+    topSongs.add(1L, 300L);
+    topSongs.add(Long.MAX_VALUE, 2L);
+    topSongs.add(-7L, 1L);
+    topSongs.add(123456789L, Long.MAX_VALUE);
+
+    final byte[] bytes = serde.serializer().serialize("t", topSongs);
+    assertThat(bytes[0], equalTo(TopKSongsSerde.VERSION));
+    assertThat(entries(serde.deserializer().deserialize("t", bytes)), equalTo(entries(topSongs)));
+  }
+
+  @Test
+  public void shouldEncodeSmallValuesCompactly() {
+    final TopKSongs topSongs = new TopKSongs(5);
+    for (long songId = 1; songId <= 5; songId++) {
+      topSongs.add(songId, songId * 10);
+    }
+    // version + flags + count + 5 * (1 byte id + 2 bytes plays at most)
+    assertThat(serde.serializer().serialize("t", topSongs).length <= 3 + 5 * 3, equalTo(true));
+  }
+
+  @Test
+  public void shouldKeepCandidatesAndTruncatedFlag() {
+    final TopKSongsSerde serdeWithSlack = new TopKSongsSerde(2, 2);
+    final TopKSongs topSongs = new TopKSongs(2, 2);
+    for (long songId = 1; songId <= 5; songId++) {
+      topSongs.add(songId, songId);
+    }
+
+    final TopKSongs deserialized =
+        serdeWithSlack.deserializer().deserialize("t", serdeWithSlack.serializer().serialize("t", topSongs));
+    assertThat(deserialized.size(), equalTo(4));
+    assertThat(deserialized.isTruncated(), equalTo(true));
+    assertThat(entries(deserialized), equalTo(Arrays.asList(5L, 5L, 4L, 4L)));
+  }
+
+  @Test
+  public void shouldDeserializeVersionWithoutFlags() {
+    final ByteBuffer v1 = ByteBuffer.allocate(8);
+    v1.put((byte) 1);
+    TopKSongsSerde.writeVarint(v1, 1);
+    TopKSongsSerde.writeVarlong(v1, TopKSongsSerde.zigzag(7L));
+    TopKSongsSerde.writeVarlong(v1, TopKSongsSerde.zigzag(70L));
+
+    final TopKSongs topSongs = serde.deserializer().deserialize("t", Arrays.copyOf(v1.array(), v1.position()));
+    assertThat(entries(topSongs), equalTo(Arrays.asList(7L, 70L)));
+    assertThat(topSongs.isTruncated(), equalTo(false));
+  }
+
+  @Test
+  public void shouldSerializeEmptyChart() {
+    final byte[] bytes = serde.serializer().serialize("t", new TopKSongs(5));
+    assertThat(serde.deserializer().deserialize("t", bytes).size(), equalTo(0));
+  }
+
+  @Test
+  public void shouldHandleNull() {
+    assertThat(serde.serializer().serialize("t", null), nullValue());
+    assertThat(serde.deserializer().deserialize("t", null), nullValue());
+  }
+
+  @Test
+  public void shouldDeserializeLegacyFormat() {
+    final ByteBuffer legacy = ByteBuffer.allocate(32);
+    legacy.putLong(3L).putLong(20L).putLong(4L).putLong(10L);
+
+    final TopKSongs topSongs = serde.deserializer().deserialize("t", legacy.array());
+    assertThat(entries(topSongs), equalTo(Arrays.asList(3L, 20L, 4L, 10L)));
+  }
+
+  @Test(expected = SerializationException.class)
+  public void shouldFailOnTruncatedValue() {
+    final TopKSongs topSongs = new TopKSongs(5);
+    topSongs.add(1L, 300L);
+    final byte[] bytes = serde.serializer().serialize("t", topSongs);
+    serde.deserializer().deserialize("t", Arrays.copyOf(bytes, bytes.length - 1));
+  }
+
+  @Test
+  public void shouldRoundTripVarlongs() {
+    final ByteBuffer buffer = ByteBuffer.allocate(32);
+    for (final long value : new long[]{0L, 1L, -1L, 63L, -64L, 64L, Long.MAX_VALUE, Long.MIN_VALUE}) {
+      buffer.clear();
+      TopKSongsSerde.writeVarlong(buffer, TopKSongsSerde.zigzag(value));
+      buffer.flip();
+      assertThat(TopKSongsSerde.unzigzag(TopKSongsSerde.readVarlong(buffer)), equalTo(value));
+    }
+  }
+
+  private static List<Long> entries(final TopKSongs topSongs) {
+    final List<Long> entries = new ArrayList<>();
+    topSongs.forEach((songId, plays) -> {
+      entries.add(songId);
+      entries.add(plays);
+    });
+    return entries;
+  }
+
+}
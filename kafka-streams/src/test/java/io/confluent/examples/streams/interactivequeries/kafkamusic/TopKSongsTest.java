@@ -0,0 +1,159 @@
+/**
+ * Copyright 2016 Confluent Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.confluent.examples.streams.interactivequeries.kafkamusic;
+
+import org.apache.kafka.streams.KeyValue;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class TopKSongsTest {
+
+  @Test
+  public void shouldKeepSongsWithMostPlaysInOrder() {
+    final TopKSongs topSongs = new TopKSongs(3);
+    topSongs.add(1L, 10L);
+    topSongs.add(2L, 30L);
+    topSongs.add(3L, 20L);
+    topSongs.add(4L, 5L);
+    topSongs.add(5L, 20L);
+
+    assertThat(topSongs.size(), equalTo(3));
+    assertThat(entries(topSongs), equalTo(Arrays.asList(KeyValue.pair(2L, 30L),
+                                                        KeyValue.pair(3L, 20L),
+                                                        KeyValue.pair(5L, 20L))));
+  }
+
+  @Test
+  public void shouldUpdatePlaysOfExistingSong() {
+    final TopKSongs topSongs = new TopKSongs(3);
+    topSongs.add(1L, 10L);
+    topSongs.add(2L, 20L);
+    topSongs.add(1L, 30L);
+
+    assertThat(entries(topSongs), equalTo(Arrays.asList(KeyValue.pair(1L, 30L), KeyValue.pair(2L, 20L))));
+  }
+
+  @Test
+  public void shouldOnlyRemoveSongWithMatchingPlays() {
+    final TopKSongs topSongs = new TopKSongs(3);
+    topSongs.add(1L, 10L);
+    topSongs.add(2L, 20L);
+
+    // retracting an outdated play count must not remove the current entry
+    topSongs.remove(1L, 9L);
+    assertThat(topSongs.size(), equalTo(2));
+
+    topSongs.remove(1L, 10L);
+    assertThat(entries(topSongs), equalTo(Arrays.asList(KeyValue.pair(2L, 20L))));
+  }
+
+  @Test
+  public void shouldStayCompleteWhileRunnerUpsAreLeft() {
+    final TopKSongs topSongs = new TopKSongs(2, 1);
+    topSongs.add(1L, 10L);
+    topSongs.add(2L, 20L);
+    topSongs.add(3L, 30L);
+    assertThat(topSongs.isTruncated(), equalTo(false));
+
+    // song 4 pushes song 1 out of the candidates
+    topSongs.add(4L, 40L);
+    assertThat(topSongs.isTruncated(), equalTo(true));
+    assertThat(topSongs.size(), equalTo(3));
+
+    // the runner-up moves up when a charted song is retracted
+    topSongs.remove(4L, 40L);
+    assertThat(topSongs.isComplete(), equalTo(true));
+    assertThat(entries(topSongs), equalTo(Arrays.asList(KeyValue.pair(3L, 30L), KeyValue.pair(2L, 20L))));
+
+    // song 1 might rank second, but it is not known anymore
+    topSongs.remove(3L, 30L);
+    assertThat(topSongs.isComplete(), equalTo(false));
+  }
+
+  @Test
+  public void shouldMergePartialCharts() {
+    final TopKSongs shard1 = new TopKSongs(2, 1);
+    shard1.add(1L, 10L);
+    shard1.add(3L, 30L);
+    final TopKSongs shard2 = new TopKSongs(2, 1);
+    shard2.add(2L, 20L);
+    shard2.add(4L, 5L);
+
+    final TopKSongs merged = new TopKSongs(2, 1);
+    merged.addAll(shard1);
+    merged.addAll(shard2);
+    assertThat(entries(merged), equalTo(Arrays.asList(KeyValue.pair(3L, 30L), KeyValue.pair(2L, 20L))));
+
+    // an update of a shard retracts its previous version and adds the new one
+    final TopKSongs updatedShard1 = new TopKSongs(2, 1);
+    updatedShard1.add(1L, 10L);
+    updatedShard1.add(3L, 31L);
+    merged.removeAll(shard1);
+    merged.addAll(updatedShard1);
+    assertThat(entries(merged), equalTo(Arrays.asList(KeyValue.pair(3L, 31L), KeyValue.pair(2L, 20L))));
+    assertThat(merged.isComplete(), equalTo(true));
+  }
+
+  @Test
+  public void shouldMatchSortedReferenceForAnyK() {
+    final Random random = new Random(7);
+    for (final int k : new int[]{1, 5, 10, 50}) {
+      final TopKSongs topSongs = new TopKSongs(k);
+      final Map<Long, Long> reference = new HashMap<>();
+      for (int i = 0; i < 5000; i++) {
+        final long songId = random.nextInt(100);
+        final long plays = random.nextInt(1000);
+        if (random.nextInt(4) == 0) {
+          // retract the song from the chart, if it is still in it
+          if (reference.containsKey(songId)) {
+            topSongs.remove(songId, reference.remove(songId));
+          }
+        } else {
+          topSongs.add(songId, plays);
+          reference.put(songId, plays);
+        }
+        // songs that drop out of the chart are gone for good, just like for the previous
+        // TreeSet-based implementation
+        reference.keySet().retainAll(entries(topSongs).stream().map(e -> e.key).collect(Collectors.toSet()));
+        assertThat(entries(topSongs), equalTo(top(reference, k)));
+      }
+    }
+  }
+
+  private static List<KeyValue<Long, Long>> top(final Map<Long, Long> songs, final int k) {
+    return songs.entrySet().stream()
+        .map(e -> KeyValue.pair(e.getKey(), e.getValue()))
+        .sorted(Comparator.<KeyValue<Long, Long>, Long>comparing(kv -> -kv.value).thenComparing(kv -> kv.key))
+        .limit(k)
+        .collect(Collectors.toList());
+  }
+
+  private static List<KeyValue<Long, Long>> entries(final TopKSongs topSongs) {
+    final List<KeyValue<Long, Long>> entries = new ArrayList<>();
+    topSongs.forEach((songId, plays) -> entries.add(KeyValue.pair(songId, plays)));
+    return entries;
+  }
+
+}